@@ -0,0 +1,323 @@
+package com.pesaflow.bench;
+
+import com.pesaflow.AnomalyDetector;
+import com.pesaflow.IngestStatus;
+import com.pesaflow.MPesaParser;
+import com.pesaflow.ParallelAnalytics;
+import com.pesaflow.ParsedSms;
+import com.pesaflow.PartyDictionary;
+import com.pesaflow.QueryCache;
+import com.pesaflow.SmsDates;
+import com.pesaflow.Transaction;
+import com.pesaflow.TransactionAggregates;
+import com.pesaflow.TransactionExporter;
+import com.pesaflow.TransactionManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PesaFlowBenchmarks - JMH benchmarks for the parser, ingestion and analytics
+ * Messages come from SyntheticSms with a fixed seed, so runs are
+ * repeatable. Times are ns per message for the parser and ingest
+ * benchmarks, and ns per call for the rest. Run with "gradle jmh"; the
+ * build adds the gc profiler, which reports bytes allocated per op as
+ * gc.alloc.rate.norm.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PesaFlowBenchmarks {
+
+    private static final int BATCH = 1024;
+    private static final int INGEST_MESSAGES = 100_000;
+
+    /**
+     * Messages - One batch of messages of a single kind, or a realistic mix
+     */
+    @State(Scope.Thread)
+    public static class Messages {
+
+        @Param({"sent", "received", "paid", "withdraw", "deposit", "paybill", "airtime", "fuliza",
+                "reversal", "malformed", "mixed"})
+        public String kind;
+
+        String[] messages;
+        final ParsedSms record = new ParsedSms();
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            messages = kind.equals("mixed")
+                    ? new SyntheticSms(1).batch(BATCH)
+                    : new SyntheticSms(kind.hashCode()).batch(kind, BATCH);
+        }
+    }
+
+    /**
+     * Inbox - A large realistic inbox, and the sent payments in it for the
+     * anomaly detector on its own
+     */
+    @State(Scope.Benchmark)
+    public static class Inbox {
+
+        String[] messages;
+        int payments;
+        int[] partyIds;
+        long[] amounts;
+        long[] timestamps;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            messages = new SyntheticSms(2).batch(INGEST_MESSAGES);
+            partyIds = new int[messages.length];
+            amounts = new long[messages.length];
+            timestamps = new long[messages.length];
+            PartyDictionary parties = new PartyDictionary();
+            ParsedSms record = new ParsedSms();
+            for (String message : messages) {
+                if (MPesaParser.parseInto(message, record) && record.getType() == ParsedSms.TYPE_SENT) {
+                    partyIds[payments] = record.getPartyId(parties);
+                    amounts[payments] = record.getAmountCents();
+                    timestamps[payments] = record.getTimestamp();
+                    payments++;
+                }
+            }
+        }
+    }
+
+    /**
+     * History - A manager holding a history of the given number of rows,
+     * plus a parallel and a cached manager over the same store
+     */
+    @State(Scope.Benchmark)
+    public static class History {
+
+        @Param({"1000", "10000", "100000", "1000000"})
+        public int rows;
+
+        TransactionManager manager;
+        TransactionManager parallel;
+        TransactionManager cached;
+        final long yearStart = SmsDates.parseDate("1/1/23");
+        final long yearEnd = SmsDates.parseDate("1/1/24");
+        final long monthStart = SmsDates.parseDate("1/3/23");
+        final long monthEnd = SmsDates.parseDate("1/4/23");
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            manager = history(rows);
+            parallel = new TransactionManager(manager.getStore());
+            parallel.setParallelAnalytics(new ParallelAnalytics());
+            cached = new TransactionManager(manager.getStore());
+            cached.setQueryCache(new QueryCache(64));
+        }
+    }
+
+    /**
+     * Export - One exporter per format
+     */
+    @State(Scope.Benchmark)
+    public static class Export {
+
+        @Param({"CSV", "JSON_LINES", "BINARY"})
+        public TransactionExporter.Format format;
+
+        TransactionExporter exporter;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            exporter = new TransactionExporter(format);
+        }
+    }
+
+    // Parser
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long parseSMS(Messages state) {
+        long found = 0;
+        for (String message : state.messages) {
+            Transaction t = MPesaParser.parseSMS(message);
+            found += t == null ? 0 : t.getAmountCents();
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long parseIntoReusedRecord(Messages state) {
+        long found = 0;
+        for (String message : state.messages) {
+            if (MPesaParser.parseInto(message, state.record)) {
+                found += state.record.getAmountCents() + state.record.getTimestamp();
+            }
+        }
+        return found;
+    }
+
+    // Ingest
+
+    @Benchmark
+    @OperationsPerInvocation(INGEST_MESSAGES)
+    public int addTransactionFromSMS(Inbox inbox) {
+        TransactionManager manager = new TransactionManager();
+        for (String message : inbox.messages) {
+            manager.addTransactionFromSMS(message);
+        }
+        return manager.getTransactionCount();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INGEST_MESSAGES)
+    public int addTransactionFromSMSWithAnomalyDetector(Inbox inbox) {
+        TransactionManager manager = new TransactionManager();
+        manager.setAnomalyDetector(new AnomalyDetector());
+        for (String message : inbox.messages) {
+            manager.addTransactionFromSMS(message);
+        }
+        return manager.getTransactionCount();
+    }
+
+    // One op is a fresh detector checking every sent payment in the inbox
+    @Benchmark
+    public long anomalyDetectorCheck(Inbox inbox) {
+        AnomalyDetector detector = new AnomalyDetector();
+        long flagged = 0;
+        for (int i = 0; i < inbox.payments; i++) {
+            flagged += detector.check(i, ParsedSms.TYPE_SENT, inbox.amounts[i], inbox.partyIds[i],
+                    inbox.timestamps[i]);
+        }
+        return flagged;
+    }
+
+    // Analytics
+
+    @Benchmark
+    public long getTotalExpenses(History history) {
+        return history.manager.getTotalExpenses();
+    }
+
+    @Benchmark
+    public long getNetChange(History history) {
+        return history.manager.getNetChange();
+    }
+
+    @Benchmark
+    public Map<String, Long> getSpendingByParty(History history) {
+        return history.manager.getSpendingByParty();
+    }
+
+    @Benchmark
+    public Map<String, Integer> getMostFrequentParties(History history) {
+        return history.manager.getMostFrequentParties();
+    }
+
+    @Benchmark
+    public Map<Integer, Long> getSpendingByHour(History history) {
+        return history.manager.getSpendingByHour();
+    }
+
+    @Benchmark
+    public List<Transaction> getTransactionsByDateRangeOneMonth(History history) {
+        return history.manager.getTransactionsByDateRange("1/3/23", "31/3/23");
+    }
+
+    // Full scan of the amount column, with no index
+    @Benchmark
+    public long sumAmountsFullScan(History history) {
+        return history.manager.getStore().sumAmounts(ParsedSms.TYPE_SENT);
+    }
+
+    @Benchmark
+    public TransactionAggregates getReportOneYear(History history) {
+        return history.manager.getReport(history.yearStart, history.yearEnd);
+    }
+
+    @Benchmark
+    public TransactionAggregates getReportOneYearParallel(History history) {
+        return history.parallel.getReport(history.yearStart, history.yearEnd);
+    }
+
+    @Benchmark
+    public Map<String, Long> getTopPayeesByAmount(History history) {
+        return history.manager.getTopPayeesByAmount(10);
+    }
+
+    // Sent to one party, over Ksh 500, in one month
+    @Benchmark
+    public long query(History history) {
+        return history.manager.query()
+                .type(ParsedSms.TYPE_SENT)
+                .party("SAFARICOM LTD")
+                .amountOver(50000)
+                .between(history.monthStart, history.monthEnd)
+                .sumAmounts();
+    }
+
+    @Benchmark
+    public Map<String, Long> getSpendingByPartyOneMonthCached(History history) {
+        return history.cached.getSpendingByParty(history.monthStart, history.monthEnd);
+    }
+
+    // One op exports the whole history; the output is thrown away
+    @Benchmark
+    public long export(History history, Export export) throws IOException {
+        return export.exporter.exportTransactions(history.manager.getStore(), DISCARD);
+    }
+
+    // Accepts and drops everything written to it
+    private static final WritableByteChannel DISCARD = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer source) {
+            int written = source.remaining();
+            source.position(source.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Builds a history of the given size from synthetic messages
+     * Junk and duplicate messages are skipped, so the manager ends up
+     * holding exactly rows transactions.
+     */
+    static TransactionManager history(int rows) {
+        SyntheticSms generator = new SyntheticSms(rows);
+        TransactionManager manager = new TransactionManager();
+        int added = 0;
+        while (added < rows) {
+            if (manager.addTransactionFromSMS(generator.next()) == IngestStatus.ADDED) {
+                added++;
+            }
+        }
+        return manager;
+    }
+}
@@ -0,0 +1,277 @@
+package com.pesaflow;
+
+import java.util.Arrays;
+
+/**
+ * AnomalyDetector - Flags unusual payments as they arrive
+ * Attach it to a TransactionManager and every new payment (money sent)
+ * is checked against what came before it:
+ *
+ *   AMOUNT_SPIKE   the amount is far above what is usually paid to that
+ *                  party (more than `threshold` standard deviations over
+ *                  the party's average)
+ *   PARTY_BURST    more than partyBurstLimit payments to one party within
+ *                  one burst window
+ *   ACCOUNT_BURST  more than accountBurstLimit payments in total within
+ *                  one burst window
+ *
+ * The average and spread per party are exponentially weighted (EWMA):
+ * each new amount moves them by a fraction alpha, so recent habits count
+ * most and nothing needs to be stored but the two numbers. Bursts are
+ * counted with a sliding-window counter: the count for the current
+ * window plus the previous window's count, weighted by how much of it
+ * still overlaps. Either way a party costs a fixed 36 bytes, however much
+ * history it has, and a check is O(1).
+ *
+ * Received money is not checked. Rows without a readable date skip the
+ * burst checks.
+ */
+public class AnomalyDetector {
+
+    public static final int AMOUNT_SPIKE = 1;
+    public static final int PARTY_BURST = 2;
+    public static final int ACCOUNT_BURST = 4;
+
+    /**
+     * Listener - Told about every flagged payment
+     */
+    public interface Listener {
+        /**
+         * @param row Row number of the payment in the manager's store
+         * @param kinds AMOUNT_SPIKE, PARTY_BURST and/or ACCOUNT_BURST, or-ed together
+         */
+        void onAnomaly(int row, int kinds);
+    }
+
+    // A spread below this fraction of the average is treated as this, so a
+    // party paid the same amount every time is not flagged for a few cents
+    private static final double MIN_RELATIVE_SPREAD = 0.1;
+    private static final double MIN_SPREAD_CENTS = 100;
+
+    private final double alpha;
+    private final double threshold;
+    private final int minSamples;
+    private final long burstWindowMillis;
+    private final int partyBurstLimit;
+    private final int accountBurstLimit;
+    private Listener listener;
+
+    // Per party, indexed by party ID
+    private double[] means = new double[64];
+    private double[] variances = new double[64];
+    private int[] samples = new int[64];
+    private long[] windows = new long[64];        // Burst window the counts below belong to
+    private int[] currentCounts = new int[64];
+    private int[] previousCounts = new int[64];
+
+    // The whole account, for ACCOUNT_BURST
+    private long accountWindow;
+    private int accountCurrent;
+    private int accountPrevious;
+
+    private long amountSpikes;
+    private long partyBursts;
+    private long accountBursts;
+
+    /**
+     * Creates a detector with everyday settings: alpha 0.1, 4 standard
+     * deviations after 5 payments, and bursts of more than 5 payments to
+     * one party or 10 in total within 10 minutes
+     */
+    public AnomalyDetector() {
+        this(0.1, 4.0, 5, 10 * 60 * 1000L, 5, 10);
+    }
+
+    /**
+     * @param alpha Weight of each new amount in the average (0 to 1)
+     * @param threshold Standard deviations above the average that count as a spike
+     * @param minSamples Payments to a party before its amounts are judged
+     * @param burstWindowMillis Length of the burst window
+     * @param partyBurstLimit Most payments to one party per window before flagging
+     * @param accountBurstLimit Most payments in total per window before flagging
+     */
+    public AnomalyDetector(double alpha, double threshold, int minSamples, long burstWindowMillis,
+                           int partyBurstLimit, int accountBurstLimit) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha must be in (0, 1]: " + alpha);
+        }
+        if (burstWindowMillis <= 0) {
+            throw new IllegalArgumentException("Burst window must be positive: " + burstWindowMillis);
+        }
+        this.alpha = alpha;
+        this.threshold = threshold;
+        this.minSamples = minSamples;
+        this.burstWindowMillis = burstWindowMillis;
+        this.partyBurstLimit = partyBurstLimit;
+        this.accountBurstLimit = accountBurstLimit;
+        Arrays.fill(windows, Long.MIN_VALUE);
+        accountWindow = Long.MIN_VALUE;
+    }
+
+    /**
+     * @param listener Told about each flagged payment, or null for none
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Checks one new transaction and then learns from it
+     * @param row Row number, passed on to the listener
+     * @param type One of the ParsedSms.TYPE_ constants
+     * @param amountCents Amount in cents
+     * @param partyId Party ID from the PartyDictionary
+     * @param timestamp Epoch milliseconds, or SmsDates.UNKNOWN
+     * @return The kinds of anomaly found, or 0
+     */
+    public int check(int row, int type, long amountCents, int partyId, long timestamp) {
+        if (type != ParsedSms.TYPE_SENT) {
+            return 0;
+        }
+        if (partyId >= means.length) {
+            grow(partyId + 1);
+        }
+
+        int kinds = 0;
+        if (isSpike(partyId, amountCents)) {
+            kinds |= AMOUNT_SPIKE;
+            amountSpikes++;
+        }
+        learn(partyId, amountCents);
+
+        if (timestamp != SmsDates.UNKNOWN) {
+            long window = Math.floorDiv(timestamp, burstWindowMillis);
+            // How much of the previous window still lies inside the sliding window
+            double overlap = 1 - (double) Math.floorMod(timestamp, burstWindowMillis) / burstWindowMillis;
+
+            if (countParty(partyId, window) && currentCounts[partyId] + previousCounts[partyId] * overlap > partyBurstLimit) {
+                kinds |= PARTY_BURST;
+                partyBursts++;
+            }
+            if (countAccount(window) && accountCurrent + accountPrevious * overlap > accountBurstLimit) {
+                kinds |= ACCOUNT_BURST;
+                accountBursts++;
+            }
+        }
+
+        if (kinds != 0 && listener != null) {
+            listener.onAnomaly(row, kinds);
+        }
+        return kinds;
+    }
+
+    public long getAmountSpikeCount() {
+        return amountSpikes;
+    }
+
+    public long getPartyBurstCount() {
+        return partyBursts;
+    }
+
+    public long getAccountBurstCount() {
+        return accountBursts;
+    }
+
+    /**
+     * Typical amount paid to a party, as learned so far
+     * @param partyId Party ID from the PartyDictionary
+     * @return Weighted average in cents (0 if never paid)
+     */
+    public double getTypicalAmount(int partyId) {
+        return partyId < means.length ? means[partyId] : 0;
+    }
+
+    /**
+     * @param kinds Value returned by check()
+     * @return e.g. "amount spike, party burst"
+     */
+    public static String describe(int kinds) {
+        StringBuilder text = new StringBuilder();
+        if ((kinds & AMOUNT_SPIKE) != 0) {
+            text.append("amount spike");
+        }
+        if ((kinds & PARTY_BURST) != 0) {
+            text.append(text.length() > 0 ? ", " : "").append("party burst");
+        }
+        if ((kinds & ACCOUNT_BURST) != 0) {
+            text.append(text.length() > 0 ? ", " : "").append("account burst");
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "amount spikes=" + amountSpikes + " party bursts=" + partyBursts + " account bursts=" + accountBursts;
+    }
+
+    // Judged against what was learned before this amount
+    private boolean isSpike(int partyId, long amountCents) {
+        if (samples[partyId] < minSamples) {
+            return false;
+        }
+        double mean = means[partyId];
+        double spread = Math.max(Math.sqrt(variances[partyId]),
+                Math.max(MIN_RELATIVE_SPREAD * mean, MIN_SPREAD_CENTS));
+        return amountCents - mean > threshold * spread;
+    }
+
+    // Exponentially weighted mean and variance (West's incremental form)
+    private void learn(int partyId, long amountCents) {
+        if (samples[partyId]++ == 0) {
+            means[partyId] = amountCents;
+            return;
+        }
+        double difference = amountCents - means[partyId];
+        double step = alpha * difference;
+        means[partyId] += step;
+        variances[partyId] = (1 - alpha) * (variances[partyId] + difference * step);
+    }
+
+    // Counts a payment in its window; true if it is in the current one
+    private boolean countParty(int partyId, long window) {
+        long current = windows[partyId];
+        if (window == current) {
+            currentCounts[partyId]++;
+            return true;
+        }
+        if (window > current) {
+            previousCounts[partyId] = window == current + 1 ? currentCounts[partyId] : 0;
+            currentCounts[partyId] = 1;
+            windows[partyId] = window;
+            return true;
+        }
+        if (window == current - 1) {
+            previousCounts[partyId]++;    // A late SMS from the window before
+        }
+        return false;
+    }
+
+    private boolean countAccount(long window) {
+        if (window == accountWindow) {
+            accountCurrent++;
+            return true;
+        }
+        if (window > accountWindow) {
+            accountPrevious = window == accountWindow + 1 ? accountCurrent : 0;
+            accountCurrent = 1;
+            accountWindow = window;
+            return true;
+        }
+        if (window == accountWindow - 1) {
+            accountPrevious++;
+        }
+        return false;
+    }
+
+    private void grow(int needed) {
+        int capacity = Math.max(needed, means.length * 2);
+        int old = means.length;
+        means = Arrays.copyOf(means, capacity);
+        variances = Arrays.copyOf(variances, capacity);
+        samples = Arrays.copyOf(samples, capacity);
+        windows = Arrays.copyOf(windows, capacity);
+        Arrays.fill(windows, old, capacity, Long.MIN_VALUE);
+        currentCounts = Arrays.copyOf(currentCounts, capacity);
+        previousCounts = Arrays.copyOf(previousCounts, capacity);
+    }
+}
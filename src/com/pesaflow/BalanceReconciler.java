@@ -0,0 +1,336 @@
+package com.pesaflow;
+
+import java.util.Arrays;
+
+/**
+ * BalanceReconciler - Checks that the balances in the SMS add up
+ * Every M-Pesa SMS ends with the balance after the transaction. Put in
+ * time order, each balance should be the previous one minus what was
+ * sent (or plus what was received). When it is not, an SMS in between
+ * is probably missing - or, for sends, a transaction cost was charged
+ * (allowed for with a FeeSchedule, e.g. MPesaTariff::maxFeeCents).
+ *
+ * Rows are kept in a treap: a binary search tree ordered by timestamp
+ * (then row number) and kept balanced by random priorities. Adding a row
+ * finds its neighbours in O(log n) and re-checks only the links next to
+ * it, so a late SMS slots into place without re-sorting the history.
+ * Rows without a readable date are left out.
+ */
+public class BalanceReconciler {
+
+    /**
+     * FeeSchedule - How much a send may cost on top of its amount
+     */
+    public interface FeeSchedule {
+        /**
+         * @param category One of the ParsedSms.CATEGORY_ constants
+         * @param amountCents Amount sent, in cents
+         * @return Most the balance may be lower than expected, in cents
+         */
+        long maxFeeCents(int category, long amountCents);
+    }
+
+    private static final int NONE = -1;
+
+    private final ColumnarTransactionStore store;
+    private final FeeSchedule fees;
+
+    // Tree nodes; node n holds store row rows[n]. The fields read on every
+    // step down the tree sit side by side, so each step is one cache line:
+    // tree[2n] is the row's timestamp, tree[2n + 1] the left and right child
+    private long[] tree = new long[2 * 1024];
+    private int[] rows = new int[1024];
+    private int[] priorities = new int[1024];      // Random; a parent's is never below its children's
+    private boolean[] broken = new boolean[1024];  // Balance does not follow from the previous node
+    private int size;
+    private int root = NONE;
+
+    // Nodes passed on the way down during an insert
+    private int[] path = new int[64];
+
+    private int gapCount;                   // Nodes with broken set
+    private int lateCount;                  // Rows older than one added before them
+    private long latestTimestamp = Long.MIN_VALUE;
+
+    /**
+     * Creates a reconciler that expects balances to match exactly
+     * @param store Store the rows are read from
+     */
+    public BalanceReconciler(ColumnarTransactionStore store) {
+        this(store, 0);
+    }
+
+    /**
+     * @param store Store the rows are read from
+     * @param feeToleranceCents How much lower than expected a balance may be
+     *        and still count as matching (transaction costs are not part of
+     *        the amount in the SMS)
+     */
+    public BalanceReconciler(ColumnarTransactionStore store, long feeToleranceCents) {
+        this(store, (category, amountCents) -> feeToleranceCents);
+    }
+
+    /**
+     * @param store Store the rows are read from
+     * @param fees Most each send may cost, by category and amount
+     */
+    public BalanceReconciler(ColumnarTransactionStore store, FeeSchedule fees) {
+        this.store = store;
+        this.fees = fees;
+    }
+
+    /**
+     * Adds every row already in the store
+     * An empty reconciler is built in one O(n) pass over the store's time
+     * index, which already holds the rows in order, instead of one insert
+     * per row.
+     */
+    public void addAll() {
+        if (size > 0) {
+            for (int row = 0; row < store.size(); row++) {
+                add(row);
+            }
+            return;
+        }
+
+        TimeIndex index = store.timeIndex();
+        int count = index.size();
+        index.positionOf(Long.MIN_VALUE);    // Merges any rows still waiting to be sorted
+        while (rows.length < count) {
+            grow();
+        }
+
+        // Node n is the n-th row in time order; each is checked against the one before
+        for (int node = 0; node < count; node++) {
+            int row = index.rowAt(node);
+            tree[2 * node] = store.timestamp(row);
+            rows[node] = row;
+            priorities[node] = TransactionIdSet.hash(node);
+            setBroken(node, node > 0 && !follows(rows[node - 1], row));
+        }
+        size = count;
+        link(count);
+
+        // Late rows are counted in the order they were added, as add() does
+        for (int row = 0; row < store.size(); row++) {
+            long timestamp = store.timestamp(row);
+            if (timestamp == SmsDates.UNKNOWN) {
+                continue;
+            }
+            if (timestamp < latestTimestamp) {
+                lateCount++;
+            } else {
+                latestTimestamp = timestamp;
+            }
+        }
+    }
+
+    /**
+     * Places a row in time order and checks the balances on either side
+     * @param row Row number in the store
+     */
+    public void add(int row) {
+        long timestamp = store.timestamp(row);
+        if (timestamp == SmsDates.UNKNOWN) {
+            return;
+        }
+        if (timestamp < latestTimestamp) {
+            lateCount++;
+        } else {
+            latestTimestamp = timestamp;
+        }
+
+        if (size == rows.length) {
+            grow();
+        }
+        int node = size++;
+        tree[2 * node] = timestamp;
+        rows[node] = row;
+        setChildren(node, NONE, NONE);
+        priorities[node] = TransactionIdSet.hash(node);
+
+        // Walk down to the new node's place; the last nodes passed on the
+        // left and right are the ones just before and after it in time
+        int previous = NONE;
+        int next = NONE;
+        int depth = 0;
+        for (int at = root; at != NONE; ) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth++] = at;
+            if (before(node, at)) {
+                next = at;
+                at = left(at);
+            } else {
+                previous = at;
+                at = right(at);
+            }
+        }
+        attach(node, depth);
+
+        // The link previous -> next is replaced by previous -> node -> next
+        setBroken(node, previous != NONE && !follows(rows[previous], row));
+        if (next != NONE) {
+            setBroken(next, !follows(row, rows[next]));
+        }
+    }
+
+    /**
+     * @return Number of places where a balance does not follow from the
+     *         one before it (each is likely one or more missing SMS)
+     */
+    public int getGapCount() {
+        return gapCount;
+    }
+
+    /**
+     * @return Number of rows that arrived after a row with a later date
+     */
+    public int getOutOfOrderCount() {
+        return lateCount;
+    }
+
+    /**
+     * @return Number of rows being checked (rows with a readable date)
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Rows whose balance does not follow from the row before them
+     * @return Row numbers in time order
+     */
+    public int[] getGapRows() {
+        int[] result = new int[gapCount];
+        int count = 0;
+        int[] stack = new int[64];
+        int depth = 0;
+        int at = root;
+        while (at != NONE || depth > 0) {
+            while (at != NONE) {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = at;
+                at = left(at);
+            }
+            at = stack[--depth];
+            if (broken[at]) {
+                result[count++] = rows[at];
+            }
+            at = right(at);
+        }
+        return result;
+    }
+
+    // true if the balance of `row` follows from the balance of `previousRow`
+    private boolean follows(int previousRow, int row) {
+        long amount = store.amountCents(row);
+        long expected = store.balanceCents(previousRow);
+        long maxFee = 0;    // Receiving money is free
+        if (store.type(row) == ParsedSms.TYPE_SENT) {
+            expected -= amount;
+            maxFee = fees.maxFeeCents(store.category(row), amount);
+        } else if (store.type(row) == ParsedSms.TYPE_RECEIVED) {
+            expected += amount;
+        }
+        long shortBy = expected - store.balanceCents(row);
+        return shortBy >= 0 && shortBy <= maxFee;
+    }
+
+    private void setBroken(int node, boolean isBroken) {
+        if (broken[node] != isBroken) {
+            gapCount += isBroken ? 1 : -1;
+            broken[node] = isBroken;
+        }
+    }
+
+    // Ordered by timestamp, then by row number
+    private boolean before(int a, int b) {
+        long keyA = tree[2 * a];
+        long keyB = tree[2 * b];
+        return keyA < keyB || (keyA == keyB && rows[a] < rows[b]);
+    }
+
+    private int left(int node) {
+        return (int) (tree[2 * node + 1] >> 32);
+    }
+
+    private int right(int node) {
+        return (int) tree[2 * node + 1];
+    }
+
+    private void setChildren(int node, int left, int right) {
+        tree[2 * node + 1] = (long) left << 32 | (right & 0xFFFFFFFFL);
+    }
+
+    // Hangs node below path[depth - 1], then rotates it up past every
+    // ancestor with a lower priority
+    private void attach(int node, int depth) {
+        if (depth == 0) {
+            root = node;
+            return;
+        }
+        setChild(path[depth - 1], node, before(node, path[depth - 1]));
+
+        while (depth > 0) {
+            int parent = path[--depth];
+            if (priorities[node] <= priorities[parent]) {
+                return;
+            }
+            // Rotate: node takes parent's place and parent becomes its child
+            if (left(parent) == node) {
+                setChildren(parent, right(node), right(parent));
+                setChildren(node, left(node), parent);
+            } else {
+                setChildren(parent, left(parent), left(node));
+                setChildren(node, parent, right(node));
+            }
+            if (depth == 0) {
+                root = node;
+            } else {
+                int grandparent = path[depth - 1];
+                setChild(grandparent, node, left(grandparent) == parent);
+            }
+        }
+    }
+
+    // Links nodes 0..count-1 (already in order) into a treap. The right
+    // spine is kept on a stack: each node takes the nodes with lower
+    // priorities off it as its left subtree, then hangs on the right of
+    // what is left. Every node goes on and off the stack once.
+    private void link(int count) {
+        int[] spine = new int[Math.max(1, count)];
+        int depth = 0;
+        for (int node = 0; node < count; node++) {
+            int below = NONE;
+            while (depth > 0 && priorities[spine[depth - 1]] < priorities[node]) {
+                below = spine[--depth];
+            }
+            setChildren(node, below, NONE);
+            if (depth > 0) {
+                setChild(spine[depth - 1], node, false);
+            }
+            spine[depth++] = node;
+        }
+        root = depth == 0 ? NONE : spine[0];
+    }
+
+    private void setChild(int node, int child, boolean onLeft) {
+        if (onLeft) {
+            setChildren(node, child, right(node));
+        } else {
+            setChildren(node, left(node), child);
+        }
+    }
+
+    private void grow() {
+        int capacity = rows.length * 2;
+        tree = Arrays.copyOf(tree, 2 * capacity);
+        rows = Arrays.copyOf(rows, capacity);
+        priorities = Arrays.copyOf(priorities, capacity);
+        broken = Arrays.copyOf(broken, capacity);
+    }
+}
@@ -0,0 +1,81 @@
+package com.pesaflow;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ByteSlice - A CharSequence view over bytes in a ByteBuffer
+ * Lets MPesaParser read a line straight out of a memory-mapped file
+ * without copying it into a String first. M-Pesa messages are ASCII, so
+ * charAt reads one byte as one character. That is only right for ASCII:
+ * use isAscii to check a range, and toString (which decodes UTF-8) for
+ * the rare party name that is not.
+ *
+ * A slice can be pointed at a new line with set(), so one instance can
+ * be reused for every line in a file.
+ */
+public final class ByteSlice implements CharSequence {
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+
+    public ByteSlice() {
+    }
+
+    public ByteSlice(ByteBuffer buffer, int offset, int length) {
+        set(buffer, offset, length);
+    }
+
+    /**
+     * Points this slice at a new range
+     * @param buffer Buffer holding the bytes
+     * @param offset Absolute index of the first byte
+     * @param length Number of bytes
+     * @return This slice
+     */
+    public ByteSlice set(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (buffer.get(offset + index) & 0xFF);
+    }
+
+    /**
+     * @param start Index of the first byte
+     * @param end Index just after the last byte
+     * @return true if every byte in [start, end) is below 0x80, so charAt gives the real characters
+     */
+    public boolean isAscii(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(offset + i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new ByteSlice(buffer, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
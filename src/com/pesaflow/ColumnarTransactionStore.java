@@ -0,0 +1,365 @@
+package com.pesaflow;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ColumnarTransactionStore - Keeps transactions as columns of primitives
+ * Instead of one Transaction object per row, each field lives in its own
+ * array (amounts, balances, timestamps, types, categories, party IDs). Analytics then
+ * run as tight loops over those arrays, and a row costs a few bytes per
+ * column instead of an object with four Strings.
+ */
+public class ColumnarTransactionStore {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final PartyDictionary parties;
+
+    private int size;
+    private long[] transactionIds;    // Packed with TransactionIds.pack
+    private byte[] types;
+    private byte[] categories;        // ParsedSms.CATEGORY_ constants
+    private long[] amounts;
+    private long[] balances;
+    private long[] timestamps;
+    private int[] partyIds;
+
+    // Date text we could not parse, kept only for the rows that need it
+    private final Map<Integer, String> unparsedDates = new HashMap<>();
+
+    // IDs that could not be packed into a long, kept only for those rows
+    private final Map<Integer, String> unpackedIds = new HashMap<>();
+
+    // Rows sorted by timestamp, for date range queries
+    private final TimeIndex timeIndex = new TimeIndex();
+
+    // Secondary indexes for TransactionQuery
+    private final TypeBitmaps typeBitmaps = new TypeBitmaps();
+    private final PartyPostings partyPostings = new PartyPostings();
+
+    public ColumnarTransactionStore() {
+        this(new PartyDictionary());
+    }
+
+    public ColumnarTransactionStore(PartyDictionary parties) {
+        this.parties = parties;
+        this.transactionIds = new long[INITIAL_CAPACITY];
+        this.types = new byte[INITIAL_CAPACITY];
+        this.categories = new byte[INITIAL_CAPACITY];
+        this.amounts = new long[INITIAL_CAPACITY];
+        this.balances = new long[INITIAL_CAPACITY];
+        this.timestamps = new long[INITIAL_CAPACITY];
+        this.partyIds = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Adds a transaction as a new row
+     * @param transaction The transaction to store
+     * @return Row number of the new transaction
+     */
+    public int append(Transaction transaction) {
+        long packedId = TransactionIds.pack(transaction.getTransactionId());
+        int row = appendRow(packedId, ParsedSms.typeCode(transaction.getType()),
+                ParsedSms.categoryCode(transaction.getCategory()), transaction.getAmountCents(), transaction.getBalanceCents(),
+                parties.idOf(transaction.getParty()), transaction.getTimestamp());
+        if (packedId == TransactionIds.NOT_PACKABLE) {
+            unpackedIds.put(row, transaction.getTransactionId());
+        }
+        if (transaction.getTimestamp() == SmsDates.UNKNOWN) {
+            unparsedDates.put(row, transaction.getDateTime());
+        }
+        return row;
+    }
+
+    /**
+     * Adds a parsed SMS as a new row without building a Transaction
+     * @param sms Record filled by MPesaParser.parseInto
+     * @return Row number of the new transaction
+     */
+    public int append(ParsedSms sms) {
+        long packedId = sms.getPackedTransactionId();
+        int row = appendRow(packedId, sms.getType(), sms.getCategory(), sms.getAmountCents(),
+                sms.getBalanceCents(), sms.getPartyId(parties), sms.getTimestamp());
+        if (packedId == TransactionIds.NOT_PACKABLE) {
+            unpackedIds.put(row, sms.getTransactionId());
+        }
+        if (sms.getTimestamp() == SmsDates.UNKNOWN) {
+            unparsedDates.put(row, sms.getDateTime());
+        }
+        return row;
+    }
+
+    // Adds a row from already encoded values; partyId must already be in the dictionary
+    private int appendRow(long transactionId, int type, int category, long amountCents, long balanceCents,
+                  int partyId, long timestamp) {
+        ensureCapacity(size + 1);
+        int row = size;
+
+        transactionIds[row] = transactionId;
+        types[row] = (byte) type;
+        categories[row] = (byte) category;
+        amounts[row] = amountCents;
+        balances[row] = balanceCents;
+        partyIds[row] = partyId;
+
+        // The timestamp was read once at parse time; the text is not kept
+        timestamps[row] = timestamp;
+        if (timestamp != SmsDates.UNKNOWN) {
+            timeIndex.add(timestamp, row);
+        }
+        typeBitmaps.add(type, row);
+        partyPostings.add(partyId, row);
+
+        size++;
+        return row;
+    }
+
+    /**
+     * Adds a run of rows from columns filled in elsewhere (used when
+     * loading from disk): one array copy per column, then one pass per
+     * index, instead of appendRow for every row
+     * @param count Number of rows, taken from the start of each array
+     * @param partyIds IDs already present in this store's PartyDictionary
+     */
+    void appendColumns(int count, long[] transactionIds, byte[] types, byte[] categories,
+                       long[] amounts, long[] balances, int[] partyIds, long[] timestamps) {
+        ensureCapacity(size + count);
+        int first = size;
+        System.arraycopy(transactionIds, 0, this.transactionIds, first, count);
+        System.arraycopy(types, 0, this.types, first, count);
+        System.arraycopy(categories, 0, this.categories, first, count);
+        System.arraycopy(amounts, 0, this.amounts, first, count);
+        System.arraycopy(balances, 0, this.balances, first, count);
+        System.arraycopy(partyIds, 0, this.partyIds, first, count);
+        System.arraycopy(timestamps, 0, this.timestamps, first, count);
+        size += count;
+
+        timeIndex.addAll(this.timestamps, first, size);
+        typeBitmaps.addAll(this.types, first, size);
+        partyPostings.addAll(this.partyIds, first, size);
+    }
+
+    /**
+     * Makes room for this many rows in total, so adding them copies no column
+     */
+    void reserve(int rows) {
+        ensureCapacity(rows);
+    }
+
+    /**
+     * Rebuilds the Transaction object for a row
+     * @param row Row number
+     * @return New Transaction with the stored values
+     */
+    public Transaction get(int row) {
+        checkRow(row);
+        return new Transaction(transactionId(row), ParsedSms.typeName(types[row]), amounts[row],
+                parties.nameOf(partyIds[row]), dateTime(row), balances[row], timestamps[row],
+                ParsedSms.categoryName(categories[row]));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public PartyDictionary getParties() {
+        return parties;
+    }
+
+    public String transactionId(int row) {
+        checkRow(row);
+        long packed = transactionIds[row];
+        return packed == TransactionIds.NOT_PACKABLE ? unpackedIds.get(row) : TransactionIds.unpack(packed);
+    }
+
+    /**
+     * @return The packed ID, or TransactionIds.NOT_PACKABLE
+     */
+    public long packedTransactionId(int row) {
+        checkRow(row);
+        return transactionIds[row];
+    }
+
+    public int type(int row) {
+        checkRow(row);
+        return types[row];
+    }
+
+    /**
+     * @return One of the ParsedSms.CATEGORY_ constants
+     */
+    public int category(int row) {
+        checkRow(row);
+        return categories[row];
+    }
+
+    public long amountCents(int row) {
+        checkRow(row);
+        return amounts[row];
+    }
+
+    public long balanceCents(int row) {
+        checkRow(row);
+        return balances[row];
+    }
+
+    public long timestamp(int row) {
+        checkRow(row);
+        return timestamps[row];
+    }
+
+    public int partyId(int row) {
+        checkRow(row);
+        return partyIds[row];
+    }
+
+    /**
+     * Sets the original ID of a row whose ID could not be packed
+     */
+    void setUnpackedId(int row, String transactionId) {
+        unpackedIds.put(row, transactionId);
+    }
+
+    /**
+     * Sets the original date text of a row whose date could not be read
+     */
+    void setUnparsedDate(int row, String dateTime) {
+        unparsedDates.put(row, dateTime);
+    }
+
+    /**
+     * Date text for a row, rebuilt from the timestamp
+     */
+    public String dateTime(int row) {
+        checkRow(row);
+        long timestamp = timestamps[row];
+        if (timestamp == SmsDates.UNKNOWN) {
+            return unparsedDates.get(row);
+        }
+        return SmsDates.format(timestamp);
+    }
+
+    /**
+     * Finds the rows whose timestamp falls in [from, to)
+     * Uses the time index, so the cost is O(log n + k) for k matches.
+     * Rows with an unknown date are never returned.
+     *
+     * @param from Start timestamp (inclusive)
+     * @param to End timestamp (exclusive)
+     * @return Row numbers in time order
+     */
+    public int[] rowsBetween(long from, long to) {
+        return timeIndex.rowsBetween(from, to);
+    }
+
+    TimeIndex timeIndex() {
+        return timeIndex;
+    }
+
+    TypeBitmaps typeBitmaps() {
+        return typeBitmaps;
+    }
+
+    PartyPostings partyPostings() {
+        return partyPostings;
+    }
+
+    /**
+     * Sums the amounts of every row with the given type
+     * @param type One of the ParsedSms.TYPE_ constants
+     * @return Total in cents
+     */
+    public long sumAmounts(int type) {
+        long total = 0;
+        for (int row = 0; row < size; row++) {
+            if (types[row] == type) {
+                total += amounts[row];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Counts rows per party
+     * @return Array indexed by party ID
+     */
+    public int[] countByParty() {
+        int[] counts = new int[parties.size()];
+        for (int row = 0; row < size; row++) {
+            counts[partyIds[row]]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Counts rows per party for rows with the given type
+     * @param type One of the ParsedSms.TYPE_ constants
+     * @return Array indexed by party ID
+     */
+    public int[] countByParty(int type) {
+        int[] counts = new int[parties.size()];
+        for (int row = 0; row < size; row++) {
+            if (types[row] == type) {
+                counts[partyIds[row]]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Sums amounts per party for rows with the given type
+     * @param type One of the ParsedSms.TYPE_ constants
+     * @return Array of cents indexed by party ID
+     */
+    public long[] sumByParty(int type) {
+        long[] totals = new long[parties.size()];
+        for (int row = 0; row < size; row++) {
+            if (types[row] == type) {
+                totals[partyIds[row]] += amounts[row];
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Sums amounts per hour of day for rows with the given type
+     * Rows with an unknown date are skipped.
+     *
+     * @param type One of the ParsedSms.TYPE_ constants
+     * @param seen Set to true for every hour that had at least one row
+     * @return Array of 24 totals in cents
+     */
+    public long[] sumByHour(int type, boolean[] seen) {
+        long[] totals = new long[24];
+        for (int row = 0; row < size; row++) {
+            if (types[row] == type && timestamps[row] != SmsDates.UNKNOWN) {
+                int hour = SmsDates.hourOf(timestamps[row]);
+                totals[hour] += amounts[row];
+                seen[hour] = true;
+            }
+        }
+        return totals;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= amounts.length) {
+            return;
+        }
+        int capacity = Math.max(needed, amounts.length + (amounts.length >> 1));
+        transactionIds = Arrays.copyOf(transactionIds, capacity);
+        types = Arrays.copyOf(types, capacity);
+        categories = Arrays.copyOf(categories, capacity);
+        amounts = Arrays.copyOf(amounts, capacity);
+        balances = Arrays.copyOf(balances, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        partyIds = Arrays.copyOf(partyIds, capacity);
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        }
+    }
+}
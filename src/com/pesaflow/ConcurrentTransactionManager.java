@@ -0,0 +1,447 @@
+package com.pesaflow;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * ConcurrentTransactionManager - Thread-safe ingestion for many producers
+ * Transactions are spread over several stripes, each a TransactionManager
+ * with its own lock. The stripe is chosen from a hash of the transaction
+ * ID, so producers land on different stripes and rarely wait for each
+ * other, and ingestion scales with the number of cores. Because one ID
+ * always goes to the same stripe, each stripe's own duplicate check is
+ * enough to make ingestion idempotent across all stripes.
+ *
+ * Parsing happens outside any lock. Queries lock every stripe (always in
+ * the same order) before reading, so totals are never torn: a transaction
+ * is either fully counted or not counted at all.
+ *
+ * checkpoint saves each stripe to its own segment ("history.0",
+ * "history.1", ...) and load reads them back into the same stripes.
+ */
+public class ConcurrentTransactionManager {
+
+    private final TransactionManager[] stripes;
+    private final ReentrantLock[] locks;
+
+    // One reusable parse record per producer thread
+    private final ThreadLocal<ParsedSms> parsed = ThreadLocal.withInitial(ParsedSms::new);
+
+    // Reusable parse records for addTransactionsFromSMS, per producer thread
+    private final ThreadLocal<List<ParsedSms>> batchRecords = ThreadLocal.withInitial(ArrayList::new);
+
+    // Shared by all stripes; LongAdder-based so producers do not contend
+    private final IngestMetrics metrics = new IngestMetrics();
+
+    // Write-ahead log shared by all stripes, or null when not logging
+    private TransactionLog log;
+
+    /**
+     * Creates a manager with two stripes per available processor
+     */
+    public ConcurrentTransactionManager() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * @param stripeCount Number of independently locked stripes
+     */
+    public ConcurrentTransactionManager(int stripeCount) {
+        this(emptyStores(stripeCount));
+    }
+
+    // One stripe per store; a store must only hold IDs that hash to its stripe
+    private ConcurrentTransactionManager(ColumnarTransactionStore[] stores) {
+        int stripeCount = stores.length;
+        this.stripes = new TransactionManager[stripeCount];
+        this.locks = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new TransactionManager(stores[i], metrics);
+            // A stripe holds a hashed subset of the history, so its balances never chain
+            stripes[i].skipBalanceCheck();
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    private static ColumnarTransactionStore[] emptyStores(int stripeCount) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("stripeCount must be at least 1");
+        }
+        ColumnarTransactionStore[] stores = new ColumnarTransactionStore[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stores[i] = new ColumnarTransactionStore();
+        }
+        return stores;
+    }
+
+    /**
+     * Load a manager from a history saved with checkpoint()
+     * A transaction's stripe depends on the number of stripes, so the
+     * history must be loaded with the count it was saved with.
+     * @param base Path without extension, as passed to checkpoint
+     * @param stripeCount Number of stripes the history was saved with
+     * @return Manager holding every saved transaction
+     * @throws IOException If a stripe's files are missing or corrupt, or
+     *         the history was saved with a different number of stripes
+     */
+    public static ConcurrentTransactionManager load(Path base, int stripeCount) throws IOException {
+        ColumnarTransactionStore[] stores = emptyStores(stripeCount);
+        if (TransactionSegment.exists(stripeBase(base, stripeCount))) {
+            throw new IOException(base + " was saved with more than " + stripeCount + " stripes");
+        }
+        for (int i = 0; i < stripeCount; i++) {
+            if (!TransactionSegment.exists(stripeBase(base, i))) {
+                throw new IOException(base + " was saved with " + i + " stripes, not " + stripeCount);
+            }
+            stores[i] = TransactionSegment.load(stripeBase(base, i));
+        }
+        return new ConcurrentTransactionManager(stores);
+    }
+
+    /**
+     * Add a transaction; safe to call from any thread
+     * @param transaction The transaction to add
+     * @return true if added, false if null or its ID was already added
+     */
+    public boolean addTransaction(Transaction transaction) {
+        if (transaction == null) {
+            return false;
+        }
+        int stripe = stripeFor(transaction.getTransactionId());
+        locks[stripe].lock();
+        try {
+            return stripes[stripe].addTransaction(transaction);
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    /**
+     * Parse an SMS and add it; safe to call from any thread
+     * @param smsMessage The M-Pesa SMS to parse
+     * @return ADDED, DUPLICATE, or the reason the message was rejected
+     */
+    public IngestStatus addTransactionFromSMS(CharSequence smsMessage) {
+        ParsedSms record = parsed.get();
+        long start = System.nanoTime();
+        boolean ok = MPesaParser.parseInto(smsMessage, record);
+        long parsedAt = System.nanoTime();
+        metrics.recordParse(parsedAt - start);
+
+        IngestStatus status = IngestStatus.check(ok, record);
+        if (status == null) {
+            status = addParsed(record) ? IngestStatus.ADDED : IngestStatus.DUPLICATE;
+            metrics.recordStore(System.nanoTime() - parsedAt);
+        }
+        metrics.count(status);
+        return status;
+    }
+
+    /**
+     * Add an already parsed SMS; safe to call from any thread
+     * The record is copied into the store, so the caller may reuse it.
+     * It is stored as is (not checked or counted in the metrics).
+     * @param sms Record filled by MPesaParser.parseInto
+     * @return true if added, false if its ID was already added
+     */
+    public boolean addParsed(ParsedSms sms) {
+        int stripe = stripeFor(sms);
+        locks[stripe].lock();
+        try {
+            return stripes[stripe].append(sms);
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    /**
+     * Parse a batch of SMS and add them; safe to call from any thread
+     * Messages are parsed outside any lock, then each stripe is locked
+     * once for all of the batch's messages that belong to it, instead of
+     * once per message. A message whose add throws (for example because
+     * the log failed) is skipped, and the rest of the batch still goes in.
+     * @param messages The M-Pesa SMS, in the order they arrived
+     * @return Number of messages that failed with an exception (the
+     *         others are counted in the metrics as usual)
+     */
+    public int addTransactionsFromSMS(List<? extends CharSequence> messages) {
+        int count = messages.size();
+        List<ParsedSms> records = batchRecords.get();
+        while (records.size() < count) {
+            records.add(new ParsedSms());
+        }
+
+        // Stripe of each message that parsed, or -1; and how many each stripe got
+        int[] stripeOf = new int[count];
+        int[] perStripe = new int[stripes.length];
+        int failed = 0;
+        for (int i = 0; i < count; i++) {
+            stripeOf[i] = -1;
+            ParsedSms record = records.get(i);
+            try {
+                long start = System.nanoTime();
+                boolean ok = MPesaParser.parseInto(messages.get(i), record);
+                metrics.recordParse(System.nanoTime() - start);
+                IngestStatus status = IngestStatus.check(ok, record);
+                if (status != null) {
+                    metrics.count(status);
+                    continue;
+                }
+                stripeOf[i] = stripeFor(record);
+                perStripe[stripeOf[i]]++;
+            } catch (RuntimeException e) {
+                failed++;
+            }
+        }
+
+        for (int stripe = 0; stripe < stripes.length; stripe++) {
+            if (perStripe[stripe] == 0) {
+                continue;
+            }
+            locks[stripe].lock();
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (stripeOf[i] != stripe) {
+                        continue;
+                    }
+                    try {
+                        long start = System.nanoTime();
+                        boolean added = stripes[stripe].append(records.get(i));
+                        metrics.recordStore(System.nanoTime() - start);
+                        metrics.count(added ? IngestStatus.ADDED : IngestStatus.DUPLICATE);
+                    } catch (RuntimeException e) {
+                        failed++;
+                    }
+                }
+            } finally {
+                locks[stripe].unlock();
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Replay a write-ahead log, then log every new add to it
+     * Call before other threads start adding. All stripes share the log,
+     * so concurrent adds are fsynced together.
+     * @param log Log opened on the file to recover from and append to
+     * @return Number of transactions restored from the log
+     * @throws IOException If the log cannot be read
+     */
+    public int attachLog(TransactionLog log) throws IOException {
+        int[] restored = {0};
+        log.replay(transaction -> {
+            int stripe = stripeFor(transaction.getTransactionId());
+            locks[stripe].lock();
+            try {
+                if (stripes[stripe].append(transaction)) {
+                    restored[0]++;
+                }
+            } finally {
+                locks[stripe].unlock();
+            }
+        });
+        lockAll();
+        try {
+            for (TransactionManager stripe : stripes) {
+                stripe.useLog(log);
+            }
+            this.log = log;
+        } finally {
+            unlockAll();
+        }
+        return restored[0];
+    }
+
+    /**
+     * Save every stripe to disk and empty the write-ahead log
+     * All stripes are locked for the whole save, so the segments and the
+     * log are one consistent cut: each transaction is in exactly one of
+     * them. The log is only emptied once every stripe is saved.
+     * @param base Path without extension, e.g. "data/history"
+     * @return Number of transactions written to the segments
+     * @throws IOException If the files cannot be written
+     */
+    public int checkpoint(Path base) throws IOException {
+        lockAll();
+        try {
+            int written = 0;
+            for (int i = 0; i < stripes.length; i++) {
+                written += stripes[i].save(stripeBase(base, i));
+            }
+            if (log != null) {
+                log.truncate();
+            }
+            return written;
+        } finally {
+            unlockAll();
+        }
+    }
+
+    // Segment path of one stripe, e.g. "data/history.3"
+    private static Path stripeBase(Path base, int stripe) {
+        return base.resolveSibling(base.getFileName() + "." + stripe);
+    }
+
+    private int stripeFor(ParsedSms sms) {
+        long packed = sms.getPackedTransactionId();
+        return packed == TransactionIds.NOT_PACKABLE
+                ? stripeFor(sms.getTransactionId())
+                : stripeFor(packed);
+    }
+
+    // The stripe that owns a transaction ID
+    private int stripeFor(String transactionId) {
+        long packed = TransactionIds.pack(transactionId);
+        return packed == TransactionIds.NOT_PACKABLE
+                ? Math.floorMod(transactionId.hashCode(), stripes.length)
+                : stripeFor(packed);
+    }
+
+    // Uses the high bits of the hash; each stripe's TransactionIdSet uses
+    // the low bits, which stay evenly spread within a stripe this way
+    private int stripeFor(long packedId) {
+        long hash = TransactionIdSet.hash(packedId) & 0xFFFFFFFFL;
+        return (int) ((hash * stripes.length) >>> 32);
+    }
+
+    /**
+     * @return Ingest counters shared by all stripes
+     */
+    public IngestMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getTransactionCount() {
+        return readAll(() -> {
+            int count = 0;
+            for (TransactionManager stripe : stripes) {
+                count += stripe.getTransactionCount();
+            }
+            return count;
+        });
+    }
+
+    /**
+     * @return Total amount received, in cents
+     */
+    public long getTotalIncome() {
+        return readAll(() -> {
+            long total = 0;
+            for (TransactionManager stripe : stripes) {
+                total += stripe.getTotalIncome();
+            }
+            return total;
+        });
+    }
+
+    /**
+     * @return Total amount spent, in cents
+     */
+    public long getTotalExpenses() {
+        return readAll(() -> {
+            long total = 0;
+            for (TransactionManager stripe : stripes) {
+                total += stripe.getTotalExpenses();
+            }
+            return total;
+        });
+    }
+
+    /**
+     * Income minus expenses, both read at the same moment
+     * @return Net change in balance, in cents
+     */
+    public long getNetChange() {
+        return readAll(() -> {
+            long net = 0;
+            for (TransactionManager stripe : stripes) {
+                net += stripe.getNetChange();
+            }
+            return net;
+        });
+    }
+
+    /**
+     * @return Map of party names to transaction counts
+     */
+    public Map<String, Integer> getMostFrequentParties() {
+        return readAll(() -> {
+            Map<String, Integer> merged = new HashMap<>();
+            for (TransactionManager stripe : stripes) {
+                stripe.getMostFrequentParties().forEach((party, count) -> merged.merge(party, count, Integer::sum));
+            }
+            return merged;
+        });
+    }
+
+    /**
+     * @return Map of party names to total amounts spent, in cents
+     */
+    public Map<String, Long> getSpendingByParty() {
+        return readAll(() -> {
+            Map<String, Long> merged = new HashMap<>();
+            for (TransactionManager stripe : stripes) {
+                stripe.getSpendingByParty().forEach((party, total) -> merged.merge(party, total, Long::sum));
+            }
+            return merged;
+        });
+    }
+
+    /**
+     * @return Map of hours to total spending, in cents
+     */
+    public Map<Integer, Long> getSpendingByHour() {
+        return readAll(() -> {
+            Map<Integer, Long> merged = new HashMap<>();
+            for (TransactionManager stripe : stripes) {
+                stripe.getSpendingByHour().forEach((hour, total) -> merged.merge(hour, total, Long::sum));
+            }
+            return merged;
+        });
+    }
+
+    /**
+     * Copies every transaction out of the stripes
+     * The order across stripes is not the order they were added in.
+     * @return New list of all transactions
+     */
+    public List<Transaction> getAllTransactions() {
+        return readAll(() -> {
+            List<Transaction> all = new ArrayList<>();
+            for (TransactionManager stripe : stripes) {
+                all.addAll(stripe.getAllTransactions());
+            }
+            return all;
+        });
+    }
+
+    // Runs a read with every stripe locked, so the result is one consistent cut
+    private <T> T readAll(Supplier<T> read) {
+        lockAll();
+        try {
+            return read.get();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    // Always in the same order, so two threads locking everything cannot deadlock
+    private void lockAll() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+}
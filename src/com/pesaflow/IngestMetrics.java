@@ -0,0 +1,146 @@
+package com.pesaflow;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * IngestMetrics - Counters and latency histograms for ingestion
+ * Counts every ingest outcome by IngestStatus and records how long the
+ * parse and store stages take. All updates are LongAdder increments, so
+ * one instance can be shared by many ingesting threads. Register it with
+ * JMX to watch throughput and failure rates in production.
+ */
+public class IngestMetrics implements IngestMetricsMXBean {
+
+    private final LongAdder[] statusCounts = new LongAdder[IngestStatus.values().length];
+    private final LatencyHistogram parseLatency = new LatencyHistogram();
+    private final LatencyHistogram storeLatency = new LatencyHistogram();
+
+    public IngestMetrics() {
+        for (int i = 0; i < statusCounts.length; i++) {
+            statusCounts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param status Outcome of one ingest
+     */
+    public void count(IngestStatus status) {
+        statusCounts[status.ordinal()].increment();
+    }
+
+    public void recordParse(long nanos) {
+        parseLatency.record(nanos);
+    }
+
+    public void recordStore(long nanos) {
+        storeLatency.record(nanos);
+    }
+
+    /**
+     * @param status An ingest outcome
+     * @return How many ingests ended that way
+     */
+    public long getCount(IngestStatus status) {
+        return statusCounts[status.ordinal()].sum();
+    }
+
+    public LatencyHistogram getParseLatency() {
+        return parseLatency;
+    }
+
+    public LatencyHistogram getStoreLatency() {
+        return storeLatency;
+    }
+
+    /**
+     * Publishes these metrics on the platform MBean server
+     * @param name Name to tell several managers apart, e.g. "main"
+     * @return The ObjectName they were registered under
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("com.pesaflow:type=IngestMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register ingest metrics as " + name, e);
+        }
+    }
+
+    @Override
+    public long getAdded() {
+        return getCount(IngestStatus.ADDED);
+    }
+
+    @Override
+    public long getDuplicates() {
+        return getCount(IngestStatus.DUPLICATE);
+    }
+
+    @Override
+    public long getFailedEmpty() {
+        return getCount(IngestStatus.EMPTY);
+    }
+
+    @Override
+    public long getFailedNotATransaction() {
+        return getCount(IngestStatus.NOT_A_TRANSACTION);
+    }
+
+    @Override
+    public long getFailedInvalidId() {
+        return getCount(IngestStatus.INVALID_ID);
+    }
+
+    @Override
+    public long getFailedMissingAmount() {
+        return getCount(IngestStatus.MISSING_AMOUNT);
+    }
+
+    @Override
+    public long getFailedTotal() {
+        return getFailedEmpty() + getFailedNotATransaction() + getFailedInvalidId() + getFailedMissingAmount();
+    }
+
+    @Override
+    public double getParseMeanNanos() {
+        return parseLatency.getMeanNanos();
+    }
+
+    @Override
+    public long getParseP50Nanos() {
+        return parseLatency.getPercentileNanos(50);
+    }
+
+    @Override
+    public long getParseP99Nanos() {
+        return parseLatency.getPercentileNanos(99);
+    }
+
+    @Override
+    public double getStoreMeanNanos() {
+        return storeLatency.getMeanNanos();
+    }
+
+    @Override
+    public long getStoreP50Nanos() {
+        return storeLatency.getPercentileNanos(50);
+    }
+
+    @Override
+    public long getStoreP99Nanos() {
+        return storeLatency.getPercentileNanos(99);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("added=%d duplicates=%d failed=%d (empty=%d, not a transaction=%d, invalid id=%d,"
+                        + " missing amount=%d) parse p50=%dns p99=%dns store p50=%dns p99=%dns",
+                getAdded(), getDuplicates(), getFailedTotal(), getFailedEmpty(), getFailedNotATransaction(),
+                getFailedInvalidId(), getFailedMissingAmount(), getParseP50Nanos(), getParseP99Nanos(), getStoreP50Nanos(),
+                getStoreP99Nanos());
+    }
+}
@@ -0,0 +1,34 @@
+package com.pesaflow;
+
+/**
+ * IngestMetricsMXBean - Ingest counters as seen through JMX
+ * Shows up in JConsole/VisualVM under com.pesaflow:type=IngestMetrics.
+ */
+public interface IngestMetricsMXBean {
+
+    long getAdded();
+
+    long getDuplicates();
+
+    long getFailedEmpty();
+
+    long getFailedNotATransaction();
+
+    long getFailedInvalidId();
+
+    long getFailedMissingAmount();
+
+    long getFailedTotal();
+
+    double getParseMeanNanos();
+
+    long getParseP50Nanos();
+
+    long getParseP99Nanos();
+
+    double getStoreMeanNanos();
+
+    long getStoreP50Nanos();
+
+    long getStoreP99Nanos();
+}
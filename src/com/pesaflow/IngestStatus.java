@@ -0,0 +1,46 @@
+package com.pesaflow;
+
+/**
+ * IngestStatus - What happened to one message or transaction on ingest
+ * Returned by the add methods instead of printing, so callers (and the
+ * IngestMetrics counters) can see why a message was not stored.
+ */
+public enum IngestStatus {
+
+    ADDED,              // Stored as a new transaction
+    DUPLICATE,          // Its transaction ID was already stored
+    EMPTY,              // Null or blank message
+    NOT_A_TRANSACTION,  // Matches none of the parser's message templates
+    INVALID_ID,         // No transaction ID, or one that is not letters and digits
+    MISSING_AMOUNT;     // No readable "Ksh" amount
+
+    /**
+     * @return true if the message could not be used at all
+     */
+    public boolean isFailure() {
+        return this == EMPTY || this == NOT_A_TRANSACTION || this == INVALID_ID || this == MISSING_AMOUNT;
+    }
+
+    /**
+     * Checks the result of MPesaParser.parseInto before storing it
+     * @param parsed Value returned by parseInto
+     * @param record The record parseInto filled
+     * @return The failure reason, or null if the record can be stored
+     */
+    static IngestStatus check(boolean parsed, ParsedSms record) {
+        if (!parsed) {
+            return EMPTY;
+        }
+        if (record.getType() == ParsedSms.TYPE_UNKNOWN) {
+            return NOT_A_TRANSACTION;
+        }
+        // Checked before the duplicate check, so a bad ID is never stored
+        if (!record.hasValidTransactionId()) {
+            return INVALID_ID;
+        }
+        if (record.getAmountCents() <= 0) {
+            return MISSING_AMOUNT;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,293 @@
+package com.pesaflow;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * IngestionService - Accepts SMS from many sources and ingests them in batches
+ * Producers (for example one thread per gateway connection) put messages
+ * on a bounded queue. A few worker threads take them off in batches and
+ * hand each batch to the parser and store through a
+ * ConcurrentTransactionManager, which locks each stripe once per batch.
+ * A message that fails with an exception is counted (getFailed) and
+ * skipped; it does not stop the worker.
+ *
+ * Backpressure: when the workers fall behind and the queue is full,
+ * submit() blocks (and offer() gives up after a timeout), so a producer
+ * slows down instead of memory growing without limit.
+ *
+ * The time each producer spends getting a message onto the queue and the
+ * queue depth are measured and published through JMX.
+ */
+public class IngestionService implements IngestionServiceMXBean, Closeable {
+
+    private final BlockingQueue<String> queue;
+    private final ConcurrentTransactionManager target;
+    private final int capacity;
+    private final int batchSize;
+    private final Thread[] workers;
+
+    private final LatencyHistogram enqueueLatency = new LatencyHistogram();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedMessages = new LongAdder();
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+
+    // Messages submitted but not yet ingested (queued or in a batch)
+    private final AtomicLong pending = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Creates a service with a queue of 10,000 messages, batches of 256
+     * and one worker per available processor
+     * @param target Where parsed transactions are stored
+     */
+    public IngestionService(ConcurrentTransactionManager target) {
+        this(target, 10_000, 256, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param target Where parsed transactions are stored
+     * @param capacity Most messages that may wait in the queue
+     * @param batchSize Most messages a worker takes at once
+     * @param workerCount Number of worker threads
+     */
+    public IngestionService(ConcurrentTransactionManager target, int capacity, int batchSize, int workerCount) {
+        if (capacity < 1 || batchSize < 1 || workerCount < 1) {
+            throw new IllegalArgumentException("capacity, batchSize and workerCount must be at least 1");
+        }
+        this.target = target;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::work, "pesaflow-ingest-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues a message, waiting while the queue is full
+     * @param smsMessage The M-Pesa SMS
+     * @throws InterruptedException If interrupted while waiting
+     * @throws IllegalStateException If the service has been closed
+     */
+    public void submit(String smsMessage) throws InterruptedException {
+        checkOpen();
+        long start = System.nanoTime();
+        pending.incrementAndGet();
+        try {
+            queue.put(smsMessage);
+        } catch (InterruptedException e) {
+            pending.decrementAndGet();
+            throw e;
+        }
+        queued(start);
+    }
+
+    /**
+     * Queues a message, waiting at most the given time for space
+     * @param smsMessage The M-Pesa SMS
+     * @return true if queued, false if the queue stayed full
+     * @throws InterruptedException If interrupted while waiting
+     * @throws IllegalStateException If the service has been closed
+     */
+    public boolean offer(String smsMessage, long timeout, TimeUnit unit) throws InterruptedException {
+        checkOpen();
+        long start = System.nanoTime();
+        pending.incrementAndGet();
+        boolean queued = false;
+        try {
+            queued = queue.offer(smsMessage, timeout, unit);
+        } finally {
+            if (!queued) {
+                pending.decrementAndGet();
+            }
+        }
+        if (!queued) {
+            rejected.increment();
+            return false;
+        }
+        queued(start);
+        return true;
+    }
+
+    /**
+     * Waits until every message submitted so far has been ingested
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                pending.wait(100);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting messages, ingests what is queued and stops the workers
+     * Call it once the producers have stopped submitting.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The manager messages are ingested into
+     */
+    public ConcurrentTransactionManager getTarget() {
+        return target;
+    }
+
+    /**
+     * Publishes these figures through JMX
+     * @param name Name to tell several services apart, e.g. "gateway"
+     * @return The ObjectName they were registered under
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("com.pesaflow:type=IngestionService,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register ingestion service as " + name, e);
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        return (int) maxDepth.get();
+    }
+
+    @Override
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @Override
+    public double getMeanBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (double) batchedMessages.sum() / count;
+    }
+
+    @Override
+    public double getEnqueueMeanNanos() {
+        return enqueueLatency.getMeanNanos();
+    }
+
+    @Override
+    public long getEnqueueP50Nanos() {
+        return enqueueLatency.getPercentileNanos(50);
+    }
+
+    @Override
+    public long getEnqueueP99Nanos() {
+        return enqueueLatency.getPercentileNanos(99);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("submitted=%d rejected=%d failed=%d queue=%d/%d (max %d) batches=%d (mean %.1f)"
+                        + " enqueue p50=%dns p99=%dns",
+                getSubmitted(), getRejected(), getFailed(), getQueueDepth(), getQueueCapacity(), getMaxQueueDepth(),
+                getBatches(), getMeanBatchSize(), getEnqueueP50Nanos(), getEnqueueP99Nanos());
+    }
+
+    private void queued(long start) {
+        enqueueLatency.record(System.nanoTime() - start);
+        submitted.increment();
+        maxDepth.accumulate(queue.size());
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Ingestion service is closed");
+        }
+    }
+
+    // Worker loop: take a batch, ingest it, repeat until closed and empty
+    private void work() {
+        List<String> batch = new ArrayList<>(batchSize);
+        while (true) {
+            String first;
+            try {
+                first = queue.poll(50, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                if (closed && queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+
+            try {
+                failed.add(target.addTransactionsFromSMS(batch));
+            } catch (RuntimeException e) {
+                // Failures are caught per message, so this is unexpected; count the batch and carry on
+                failed.add(batch.size());
+            } finally {
+                // Always, so flush() cannot wait for messages that will never be ingested
+                batches.increment();
+                batchedMessages.add(batch.size());
+                if (pending.addAndGet(-batch.size()) == 0) {
+                    synchronized (pending) {
+                        pending.notifyAll();
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.pesaflow;
+
+/**
+ * IngestionServiceMXBean - Queue and hand-off figures as seen through JMX
+ * Shows up in JConsole/VisualVM under com.pesaflow:type=IngestionService.
+ */
+public interface IngestionServiceMXBean {
+
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    int getMaxQueueDepth();
+
+    long getSubmitted();
+
+    long getRejected();
+
+    long getFailed();
+
+    long getBatches();
+
+    double getMeanBatchSize();
+
+    double getEnqueueMeanNanos();
+
+    long getEnqueueP50Nanos();
+
+    long getEnqueueP99Nanos();
+}
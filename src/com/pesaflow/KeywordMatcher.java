@@ -0,0 +1,159 @@
+package com.pesaflow;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * KeywordMatcher - Finds many keywords in one left-to-right pass
+ * The keywords are compiled into an Aho-Corasick automaton: a trie of
+ * the keywords where every state also knows where to go on any next
+ * character. Reading a message is then one table lookup per character,
+ * however many keywords there are, so adding a keyword does not slow
+ * down the scan.
+ *
+ * Matching ignores the case of ASCII letters, so "Sent to" and "SENT TO"
+ * both match "sent to".
+ */
+final class KeywordMatcher {
+
+    private static final int ALPHABET = 128;  // Other characters never match a keyword
+    private static final int MAX_KEYWORDS = 64;  // One bit each in the scan() result
+
+    private final String[] keywords;
+
+    // next[row + c] is the row (state * ALPHABET) after reading c,
+    // or ~row if that state ends a keyword
+    private final int[] next;
+    // Keywords that end at each state (including via fail links), or null
+    private final int[][] outputs;
+
+    /**
+     * @param keywords Keywords to find (ASCII only, at most 64)
+     */
+    KeywordMatcher(String[] keywords) {
+        if (keywords.length > MAX_KEYWORDS) {
+            throw new IllegalArgumentException("At most " + MAX_KEYWORDS + " keywords");
+        }
+        this.keywords = keywords.clone();
+
+        // 1. Build the trie over the lower-cased keywords
+        List<int[]> children = new ArrayList<>();
+        List<List<Integer>> ends = new ArrayList<>();
+        children.add(newRow());
+        ends.add(new ArrayList<>());
+        for (int k = 0; k < keywords.length; k++) {
+            int state = 0;
+            for (int i = 0; i < keywords[k].length(); i++) {
+                int c = fold(keywords[k].charAt(i));
+                if (c >= ALPHABET) {
+                    throw new IllegalArgumentException("Keywords must be ASCII: " + keywords[k]);
+                }
+                if (children.get(state)[c] < 0) {
+                    children.get(state)[c] = children.size();
+                    children.add(newRow());
+                    ends.add(new ArrayList<>());
+                }
+                state = children.get(state)[c];
+            }
+            ends.get(state).add(k);
+        }
+
+        // 2. Breadth-first: fill in missing moves and collect outputs from fail links
+        int states = children.size();
+        int[] move = new int[states * ALPHABET];
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET; c++) {
+            int child = children.get(0)[c];
+            move[c] = Math.max(child, 0);
+            if (child > 0) {
+                queue.add(child);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            ends.get(state).addAll(ends.get(fail[state]));
+            for (int c = 0; c < ALPHABET; c++) {
+                int child = children.get(state)[c];
+                if (child > 0) {
+                    fail[child] = move[fail[state] * ALPHABET + c];
+                    move[state * ALPHABET + c] = child;
+                    queue.add(child);
+                } else {
+                    move[state * ALPHABET + c] = move[fail[state] * ALPHABET + c];
+                }
+            }
+        }
+
+        outputs = new int[states][];
+        for (int state = 0; state < states; state++) {
+            List<Integer> found = ends.get(state);
+            if (!found.isEmpty()) {
+                outputs[state] = found.stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+
+        // 3. Final table: upper case shares the lower-case moves, and each
+        // entry is the target row's offset, negated (~) if a keyword ends there
+        next = new int[states * ALPHABET];
+        for (int state = 0; state < states; state++) {
+            for (int c = 0; c < ALPHABET; c++) {
+                int target = move[state * ALPHABET + fold((char) c)];
+                next[state * ALPHABET + c] = outputs[target] == null ? target * ALPHABET : ~(target * ALPHABET);
+            }
+        }
+    }
+
+    /**
+     * @return Number of keywords
+     */
+    int size() {
+        return keywords.length;
+    }
+
+    /**
+     * Finds where each keyword first appears
+     * @param text Text to scan
+     * @param from Index to start scanning at
+     * @param first Filled with the start index of each keyword's first
+     *        match, or -1 if it does not appear (length at least size())
+     * @return Bit k set if keyword k appeared
+     */
+    long scan(CharSequence text, int from, int[] first) {
+        Arrays.fill(first, 0, keywords.length, -1);
+        long seen = 0;
+        int row = 0;
+        int length = text.length();
+        for (int i = from; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= ALPHABET) {
+                row = 0;
+                continue;
+            }
+            row = next[row + c];
+            if (row >= 0) {
+                continue;
+            }
+            row = ~row;
+            for (int k : outputs[row / ALPHABET]) {
+                if (first[k] < 0) {
+                    first[k] = i - keywords[k].length() + 1;
+                    seen |= 1L << k;
+                }
+            }
+        }
+        return seen;
+    }
+
+    private static int[] newRow() {
+        int[] row = new int[ALPHABET];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    private static int fold(char c) {
+        return c >= 'A' && c <= 'Z' ? c + 32 : c;
+    }
+}
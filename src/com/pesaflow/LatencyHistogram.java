@@ -0,0 +1,68 @@
+package com.pesaflow;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram - Counts durations in power-of-two nanosecond buckets
+ * Bucket i holds durations from 2^i up to 2^(i+1) - 1 ns. Recording is
+ * one LongAdder increment, so it is cheap and safe from many threads;
+ * percentiles are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 48;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos Duration to record
+     */
+    public void record(long nanos) {
+        int bucket = nanos <= 1 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos));
+        buckets[bucket].increment();
+        count.increment();
+        totalNanos.add(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) totalNanos.sum() / n;
+    }
+
+    /**
+     * @param percentile Between 0 and 100, e.g. 99
+     * @return Upper bound of the bucket holding that percentile, in ns
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return (2L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
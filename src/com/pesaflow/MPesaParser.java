@@ -1,225 +1,383 @@
 package com.pesaflow;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * MPesaParser - Extracts transaction data from M-Pesa SMS messages
  * This class takes raw SMS text and converts it into Transaction objects
+ *
+ * Each kind of M-Pesa message (Send Money, Buy Goods, Pay Bill, Fuliza,
+ * ...) is described by a template in the TEMPLATES table: the keywords
+ * that identify it, whether money goes out or comes in, and where the
+ * party name starts. All the keywords are compiled into one automaton
+ * (see KeywordMatcher), so the message is read once from left to right
+ * however many templates there are. The first template whose keywords
+ * all appeared decides the type, and the fields are then cut out by
+ * character offset. Amounts are read straight into cents, so no
+ * temporary Strings are created for them.
  */
 public class MPesaParser {
-    
+
+    /**
+     * Template - One kind of M-Pesa message
+     */
+    private static final class Template {
+        final int category;       // ParsedSms.CATEGORY_ constant
+        final int type;           // ParsedSms.TYPE_ constant
+        final String partyAfter;  // Party starts after this keyword (null = no party in the text)
+        final String fixedParty;  // Party to use when the text has none (or null)
+        final String[] keywords;  // All must appear for the template to match
+
+        long mask;                // Bits of the keywords, set by compile()
+        int mainKeyword;          // Index of keywords[0], set by compile()
+        int partyKeyword = -1;    // Index of partyAfter, set by compile()
+
+        Template(int category, int type, String partyAfter, String fixedParty, String... keywords) {
+            this.category = category;
+            this.type = type;
+            this.partyAfter = partyAfter;
+            this.fixedParty = fixedParty;
+            this.keywords = keywords;
+        }
+    }
+
+    // Checked in order, so more specific templates come first (Pay Bill
+    // before Send Money, because both say "sent to").
+    private static final Template[] TEMPLATES = {
+        new Template(ParsedSms.CATEGORY_REVERSAL, ParsedSms.TYPE_RECEIVED,
+                null, "M-PESA REVERSAL", "reversed"),
+        new Template(ParsedSms.CATEGORY_PAY_BILL, ParsedSms.TYPE_SENT,
+                "sent to", null, "sent to", " for account"),
+        new Template(ParsedSms.CATEGORY_SEND_MONEY, ParsedSms.TYPE_SENT,
+                "sent to", null, "sent to"),
+        new Template(ParsedSms.CATEGORY_BUY_GOODS, ParsedSms.TYPE_SENT,
+                "paid to", null, "paid to"),
+        new Template(ParsedSms.CATEGORY_RECEIVE, ParsedSms.TYPE_RECEIVED,
+                "received from", null, "received from"),
+        new Template(ParsedSms.CATEGORY_RECEIVE, ParsedSms.TYPE_RECEIVED,
+                " from ", null, "have received"),
+        new Template(ParsedSms.CATEGORY_WITHDRAWAL, ParsedSms.TYPE_SENT,    // Money going out
+                " - ", null, "withdraw"),
+        new Template(ParsedSms.CATEGORY_DEPOSIT, ParsedSms.TYPE_RECEIVED,   // Money coming in
+                "cash to", null, "cash to"),
+        new Template(ParsedSms.CATEGORY_AIRTIME, ParsedSms.TYPE_SENT,
+                null, "AIRTIME", "airtime"),
+        new Template(ParsedSms.CATEGORY_FULIZA, ParsedSms.TYPE_SENT,        // Overdraft paid back
+                null, "FULIZA M-PESA", "fuliza", "pay your outstanding"),
+        new Template(ParsedSms.CATEGORY_FULIZA, ParsedSms.TYPE_RECEIVED,    // Overdraft paid out to you
+                null, "FULIZA M-PESA", "fuliza"),
+        new Template(ParsedSms.CATEGORY_DEPOSIT, ParsedSms.TYPE_RECEIVED,
+                null, null, "deposit"),
+    };
+
+    // Amounts with this many shillings or more are rejected (read as 0):
+    // far above any real M-Pesa amount, and the cents always fit in a long
+    private static final long TOO_LARGE = 10_000_000_000_000L;
+
+    // Keywords used to find the fields, whatever the template
+    private static final String KSH = "Ksh";
+    private static final String ON = " on ";
+    private static final String BALANCE_IS_KSH = "balance is Ksh";
+    private static final String NEW_MPESA = "New M-PESA";
+    private static final String FOR_ACCOUNT = " for account";
+
+    // Every keyword above, in one automaton; KEYWORDS[i] is keyword number i
+    private static final List<String> KEYWORDS = new ArrayList<>();
+    private static final KeywordMatcher MATCHER = compile();
+    private static final int KSH_ID = KEYWORDS.indexOf(KSH.toLowerCase());
+    private static final int ON_ID = KEYWORDS.indexOf(ON);
+    private static final int BALANCE_IS_KSH_ID = KEYWORDS.indexOf(BALANCE_IS_KSH.toLowerCase());
+    private static final int NEW_MPESA_ID = KEYWORDS.indexOf(NEW_MPESA.toLowerCase());
+    private static final int FOR_ACCOUNT_ID = KEYWORDS.indexOf(FOR_ACCOUNT);
+
+    /**
+     * Gives every distinct keyword a number and builds the automaton
+     */
+    private static KeywordMatcher compile() {
+        for (String field : new String[] {KSH, ON, BALANCE_IS_KSH, NEW_MPESA, FOR_ACCOUNT}) {
+            keywordId(field);
+        }
+        for (Template template : TEMPLATES) {
+            for (String keyword : template.keywords) {
+                template.mask |= 1L << keywordId(keyword);
+            }
+            template.mainKeyword = keywordId(template.keywords[0]);
+            if (template.partyAfter != null) {
+                template.partyKeyword = keywordId(template.partyAfter);
+            }
+        }
+        return new KeywordMatcher(KEYWORDS.toArray(new String[0]));
+    }
+
+    private static int keywordId(String keyword) {
+        String folded = keyword.toLowerCase();
+        int id = KEYWORDS.indexOf(folded);
+        if (id < 0) {
+            id = KEYWORDS.size();
+            KEYWORDS.add(folded);
+        }
+        return id;
+    }
+
     /**
      * Parses an M-Pesa SMS message and creates a Transaction object
-     * 
+     *
      * @param smsMessage The raw SMS text from M-Pesa
      * @return Transaction object with extracted data, or null if parsing fails
      */
     public static Transaction parseSMS(String smsMessage) {
         // Check if the message is null or empty
-        if (smsMessage == null || smsMessage.trim().isEmpty()) {
-            System.out.println("Error: SMS message is empty");
+        if (isBlank(smsMessage)) {
             return null;
         }
-        
-        try {
-            // Extract transaction ID (e.g., "RBK4H8N2M1")
-            String transactionId = extractTransactionId(smsMessage);
-            
-            // Determine transaction type (sent or received)
-            String type = determineTransactionType(smsMessage);
-            
-            // Extract amount (e.g., 500.00 from "Ksh500.00")
-            double amount = extractAmount(smsMessage);
-            
-            // Extract party name (person/business)
-            String party = extractParty(smsMessage, type);
-            
-            // Extract date and time
-            String dateTime = extractDateTime(smsMessage);
-            
-            // Extract new balance
-            double balance = extractBalance(smsMessage);
-            
-            // Create and return the Transaction object
-            return new Transaction(transactionId, type, amount, party, dateTime, balance);
-            
-        } catch (Exception e) {
-            System.out.println("Error parsing SMS: " + e.getMessage());
-            return null;
+
+        ParsedSms parsed = new ParsedSms();
+        parseInto(smsMessage, parsed);
+        return parsed.toTransaction();
+    }
+
+    /**
+     * Parses an M-Pesa SMS message into a caller-supplied record
+     * Reusing the same ParsedSms for every message avoids allocating
+     * a new Transaction (and its Strings) per message.
+     *
+     * @param sms The raw SMS text from M-Pesa
+     * @param out Record to fill with the extracted fields
+     * @return true if the message was parsed, false if it was empty
+     */
+    public static boolean parseInto(CharSequence sms, ParsedSms out) {
+        out.reset(sms);
+        if (isBlank(sms)) {
+            return false;
+        }
+
+        int length = sms.length();
+
+        // Transaction ID is the first word before "Confirmed" (leading
+        // spaces and line breaks, as some SMS exports add, are skipped)
+        int idStart = 0;
+        while (idStart < length && sms.charAt(idStart) <= ' ') {
+            idStart++;
+        }
+        int idEnd = idStart;
+        while (idEnd < length && sms.charAt(idEnd) > ' ') {
+            idEnd++;
+        }
+        out.setTransactionId(idStart, idEnd);
+
+        // One pass over the rest finds where every keyword first appears
+        // (-1 = not seen). The ID is skipped so "KSH" inside it is not a match.
+        int[] first = out.keywordPositions(MATCHER.size());
+        long seen = MATCHER.scan(sms, idEnd, first);
+
+        // The first template whose keywords all appeared decides the type
+        Template template = null;
+        for (Template candidate : TEMPLATES) {
+            if ((seen & candidate.mask) == candidate.mask) {
+                template = candidate;
+                break;
+            }
+        }
+        if (template != null) {
+            out.setType(template.type);
+            out.setCategory(template.category);
+        }
+
+        // Amount follows the first "Ksh", balance follows "balance is Ksh"
+        if (first[KSH_ID] >= 0) {
+            out.setAmountCents(readCents(sms, first[KSH_ID] + KSH.length()));
+        }
+        if (first[BALANCE_IS_KSH_ID] >= 0) {
+            out.setBalanceCents(readCents(sms, first[BALANCE_IS_KSH_ID] + BALANCE_IS_KSH.length()));
+        }
+
+        // Party starts after the template's keyword (looked for from where the
+        // template matched) and stops at " on ", " for account" or "New M-PESA",
+        // whichever comes first, or else at the next "."
+        if (template != null && template.fixedParty != null) {
+            out.setFixedParty(template.fixedParty);
+        } else if (template != null && template.partyKeyword >= 0) {
+            int from = first[template.mainKeyword];
+            int partyStart = find(sms, first, template.partyKeyword, from);
+            if (partyStart >= 0) {
+                partyStart += template.partyAfter.length();
+                int partyEnd = earliest(find(sms, first, ON_ID, partyStart),
+                        earliest(find(sms, first, FOR_ACCOUNT_ID, partyStart),
+                                find(sms, first, NEW_MPESA_ID, partyStart)));
+                if (partyEnd < 0) {
+                    partyEnd = indexOf(sms, ".", partyStart);
+                }
+                if (partyEnd >= 0) {
+                    setTrimmed(sms, partyStart, partyEnd, out, true);
+                }
+            }
+        }
+
+        // Date and time run from " on " up to "New M-PESA" (or the next ".")
+        if (first[ON_ID] >= 0) {
+            int dateStart = first[ON_ID] + ON.length();
+            int dateEnd = find(sms, first, NEW_MPESA_ID, dateStart);
+            if (dateEnd < 0) {
+                dateEnd = indexOf(sms, ".", dateStart);
+            }
+            if (dateEnd >= 0) {
+                setTrimmed(sms, dateStart, dateEnd, out, false);
+                // Read the timestamp now so nothing downstream re-parses the text
+                out.setTimestamp(SmsDates.parse(sms, dateStart, dateEnd));
+            }
         }
+
+        return true;
     }
-    
+
     /**
-     * Extracts the transaction ID from SMS
-     * Example: "RBK4H8N2M1 Confirmed..." -> "RBK4H8N2M1"
+     * Finds a keyword at or after the given position
+     * The scan already knows its first position, so the text is only
+     * searched again when that first match lies before `from`.
+     *
+     * @return Index of the keyword, or -1 if it does not appear there
      */
-    private static String extractTransactionId(String sms) {
-        // Transaction ID is usually the first word before "Confirmed"
-        String[] words = sms.split(" ");
-        if (words.length > 0) {
-            return words[0];
+    private static int find(CharSequence sms, int[] first, int keyword, int from) {
+        if (first[keyword] < 0 || first[keyword] >= from) {
+            return first[keyword];
         }
-        return "UNKNOWN";
+        return indexOf(sms, KEYWORDS.get(keyword), from);
     }
-    
+
     /**
-     * Determines if money was sent or received
-     * Checks for keywords: "sent to" means expense, "received from" means income
+     * @return The smaller of two positions, ignoring -1 (not found)
      */
-    private static String determineTransactionType(String sms) {
-        String lowerSms = sms.toLowerCase();
-        
-        if (lowerSms.contains("sent to") || lowerSms.contains("paid to")) {
-            return "sent";
-        } else if (lowerSms.contains("received from")) {
-            return "received";
-        } else if (lowerSms.contains("withdraw")) {
-            return "sent";  // Withdrawal is money going out
-        } else if (lowerSms.contains("deposit")) {
-            return "received";  // Deposit is money coming in
-        }
-        
-        return "unknown";
+    private static int earliest(int a, int b) {
+        if (a < 0) {
+            return b;
+        }
+        return b < 0 ? a : Math.min(a, b);
     }
-    
+
     /**
-     * Extracts the amount from SMS
-     * Example: "Ksh500.00 sent" -> 500.00
+     * Reads an amount such as "1,500.00" directly into cents
+     * Spaces before the number ("Ksh 150.00") are skipped, commas are
+     * skipped, and reading stops at the first other character (or at a
+     * "." that ends the sentence rather than starting the cents).
+     * A malformed number (no digits, more than one ".", or a value of
+     * TOO_LARGE shillings or more) gives 0.
+     *
+     * @param sms The message
+     * @param start Index of the first character after "Ksh"
+     * @return Amount in cents
      */
-    private static double extractAmount(String sms) {
-        try {
-            // Find "Ksh" and extract the number after it
-            int kshIndex = sms.indexOf("Ksh");
-            if (kshIndex != -1) {
-                // Start after "Ksh"
-                String afterKsh = sms.substring(kshIndex + 3);
-                
-                // Extract numbers and decimal point
-                StringBuilder amountStr = new StringBuilder();
-                for (char c : afterKsh.toCharArray()) {
-                    if (Character.isDigit(c) || c == '.') {
-                        amountStr.append(c);
-                    } else if (c == ',') {
-                        // Skip commas in numbers (e.g., "1,500.00")
-                        continue;
-                    } else {
-                        // Stop at first non-number character
-                        break;
-                    }
+    static long readCents(CharSequence sms, int start) {
+        long whole = 0;
+        long fraction = 0;
+        int fractionDigits = 0;
+        boolean roundUp = false;
+        boolean anyDigit = false;
+        int dots = 0;
+
+        while (start < sms.length() && sms.charAt(start) == ' ') {
+            start++;
+        }
+        for (int i = start; i < sms.length(); i++) {
+            char c = sms.charAt(i);
+            if (c >= '0' && c <= '9') {
+                anyDigit = true;
+                if (dots == 0) {
+                    // Capped, so a long run of digits cannot overflow
+                    whole = Math.min(whole * 10 + (c - '0'), TOO_LARGE);
+                } else if (fractionDigits < 2) {
+                    fraction = fraction * 10 + (c - '0');
+                    fractionDigits++;
+                } else if (fractionDigits == 2) {
+                    // Round half up on the third decimal
+                    roundUp = c >= '5';
+                    fractionDigits++;
                 }
-                
-                return Double.parseDouble(amountStr.toString());
+            } else if (c == '.') {
+                if (i + 1 >= sms.length() || sms.charAt(i + 1) < '0' || sms.charAt(i + 1) > '9') {
+                    break;
+                }
+                dots++;
+            } else if (c != ',') {
+                // Stop at first non-number character
+                break;
             }
-        } catch (Exception e) {
-            System.out.println("Error extracting amount: " + e.getMessage());
         }
-        return 0.0;
+
+        if (!anyDigit || dots > 1 || whole >= TOO_LARGE) {
+            return 0;
+        }
+        if (fractionDigits == 1) {
+            fraction *= 10;
+        }
+        return whole * 100 + fraction + (roundUp ? 1 : 0);
     }
-    
+
     /**
-     * Extracts the party (person/business) from SMS
-     * Example: "sent to JOHN DOE on" -> "JOHN DOE"
+     * Stores the range [start, end) with surrounding whitespace removed
      */
-    private static String extractParty(String sms, String type) {
-        try {
-            String keyword;
-            
-            // Choose keyword based on transaction type
-            if (type.equals("sent")) {
-                if (sms.contains("sent to")) {
-                    keyword = "sent to";
-                } else if (sms.contains("paid to")) {
-                    keyword = "paid to";
-                } else {
-                    return "UNKNOWN";
-                }
-            } else if (type.equals("received")) {
-                keyword = "received from";
-            } else {
-                return "UNKNOWN";
-            }
-            
-            // Find the keyword and extract text after it
-            int startIndex = sms.indexOf(keyword);
-            if (startIndex != -1) {
-                startIndex += keyword.length();
-                
-                // Find where the name ends (usually at "on" or ".")
-                int endIndex = sms.indexOf(" on ", startIndex);
-                if (endIndex == -1) {
-                    endIndex = sms.indexOf(".", startIndex);
-                }
-                
-                if (endIndex != -1) {
-                    return sms.substring(startIndex, endIndex).trim();
+    private static void setTrimmed(CharSequence sms, int start, int end, ParsedSms out, boolean party) {
+        while (start < end && sms.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && sms.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (party) {
+            out.setParty(start, end);
+        } else {
+            out.setDateTime(start, end);
+        }
+    }
+
+    /**
+     * Checks whether the lower-case keyword appears at the given position
+     * Matching ignores case, but only folds ASCII letters, which is all
+     * the keywords contain.
+     */
+    private static boolean matches(CharSequence sms, int at, String keyword) {
+        int length = keyword.length();
+        if (at + length > sms.length()) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            char c = sms.charAt(at + k);
+            char expected = keyword.charAt(k);
+            if (c != expected) {
+                if (c < 'A' || c > 'Z' || (char) (c + 32) != expected) {
+                    return false;
                 }
             }
-        } catch (Exception e) {
-            System.out.println("Error extracting party: " + e.getMessage());
         }
-        return "UNKNOWN";
+        return true;
     }
-    
+
     /**
-     * Extracts date and time from SMS
-     * Example: "on 15/1/26 at 2:30 PM" -> "15/1/26 2:30 PM"
+     * Finds the lower-case keyword at or after the given position, ignoring case
+     * @return Index of the keyword, or -1 if it does not appear
      */
-    private static String extractDateTime(String sms) {
-        try {
-            // Find "on" keyword
-            int onIndex = sms.indexOf(" on ");
-            if (onIndex != -1) {
-                // Start after "on "
-                String afterOn = sms.substring(onIndex + 4);
-                
-                // Extract until "New M-PESA balance" or end of relevant part
-                int endIndex = afterOn.indexOf("New M-PESA");
-                if (endIndex == -1) {
-                    endIndex = afterOn.indexOf(".");
-                }
-                
-                if (endIndex != -1) {
-                    String dateTimePart = afterOn.substring(0, endIndex).trim();
-                    // Remove "at" if present
-                    dateTimePart = dateTimePart.replace(" at ", " ");
-                    return dateTimePart;
-                }
+    private static int indexOf(CharSequence sms, String keyword, int from) {
+        int last = sms.length() - keyword.length();
+        for (int i = from; i <= last; i++) {
+            if (matches(sms, i, keyword)) {
+                return i;
             }
-        } catch (Exception e) {
-            System.out.println("Error extracting date/time: " + e.getMessage());
         }
-        return "UNKNOWN";
+        return -1;
     }
-    
+
     /**
-     * Extracts the new balance from SMS
-     * Example: "New M-PESA balance is Ksh1,500.00" -> 1500.00
+     * Checks if a message is null or contains only whitespace
      */
-    private static double extractBalance(String sms) {
-        try {
-            // Find "balance is Ksh"
-            int balanceIndex = sms.indexOf("balance is Ksh");
-            if (balanceIndex != -1) {
-                // Start after "balance is Ksh"
-                String afterBalance = sms.substring(balanceIndex + 14);
-                
-                // Extract numbers and decimal point
-                StringBuilder balanceStr = new StringBuilder();
-                for (char c : afterBalance.toCharArray()) {
-                    if (Character.isDigit(c) || c == '.') {
-                        balanceStr.append(c);
-                    } else if (c == ',') {
-                        // Skip commas
-                        continue;
-                    } else {
-                        // Stop at first non-number character
-                        break;
-                    }
-                }
-                
-                return Double.parseDouble(balanceStr.toString());
+    private static boolean isBlank(CharSequence sms) {
+        if (sms == null) {
+            return true;
+        }
+        for (int i = 0; i < sms.length(); i++) {
+            if (sms.charAt(i) > ' ') {
+                return false;
             }
-        } catch (Exception e) {
-            System.out.println("Error extracting balance: " + e.getMessage());
         }
-        return 0.0;
+        return true;
     }
-}
\ No newline at end of file
+}
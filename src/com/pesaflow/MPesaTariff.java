@@ -0,0 +1,69 @@
+package com.pesaflow;
+
+/**
+ * MPesaTariff - The most M-Pesa charges for a transaction
+ * An SMS gives the amount and the balance after it, but the transaction
+ * cost is taken from the balance as well. A Ksh500 send leaves the
+ * balance Ksh507 lower, so the balance check needs to know how much
+ * lower is still normal.
+ *
+ * The bands below are Safaricom's published customer charges (2023):
+ * sending money (also used for Pay Bill, where the business may pass the
+ * charge on) and withdrawing at an agent. Buy Goods, airtime and Fuliza
+ * repayments cost the customer nothing. Charges change from time to
+ * time; TransactionManager.setBalanceFeeSchedule takes a different one.
+ */
+public final class MPesaTariff {
+
+    // Highest amount of each band, in cents, and the charge for that band
+    private static final long[] SEND_UP_TO = {
+        100_00, 500_00, 1_000_00, 1_500_00, 2_500_00, 3_500_00,
+        5_000_00, 7_500_00, 10_000_00, 15_000_00, 20_000_00, 250_000_00
+    };
+    private static final long[] SEND_FEE = {
+        0, 7_00, 13_00, 23_00, 33_00, 53_00,
+        57_00, 78_00, 90_00, 100_00, 105_00, 108_00
+    };
+    private static final long[] WITHDRAW_UP_TO = {
+        100_00, 2_500_00, 3_500_00, 5_000_00, 7_500_00, 10_000_00,
+        15_000_00, 20_000_00, 35_000_00, 50_000_00, 250_000_00
+    };
+    private static final long[] WITHDRAW_FEE = {
+        11_00, 29_00, 52_00, 69_00, 87_00, 115_00,
+        167_00, 185_00, 197_00, 278_00, 309_00
+    };
+
+    private MPesaTariff() {
+    }
+
+    /**
+     * @param category One of the ParsedSms.CATEGORY_ constants
+     * @param amountCents Amount of the transaction, in cents
+     * @return The most the transaction can have cost on top of its amount,
+     *         in cents. A row with no category (added as a Transaction, or
+     *         from an older file) gets the higher withdrawal charge, so a
+     *         real fee is never reported as a gap.
+     */
+    public static long maxFeeCents(int category, long amountCents) {
+        switch (category) {
+            case ParsedSms.CATEGORY_SEND_MONEY:
+            case ParsedSms.CATEGORY_PAY_BILL:
+                return fee(SEND_UP_TO, SEND_FEE, amountCents);
+            case ParsedSms.CATEGORY_WITHDRAWAL:
+            case ParsedSms.CATEGORY_UNKNOWN:
+                return fee(WITHDRAW_UP_TO, WITHDRAW_FEE, amountCents);
+            default:
+                return 0;
+        }
+    }
+
+    // Charge of the band the amount falls in (the top band beyond the table)
+    private static long fee(long[] upTo, long[] fees, long amountCents) {
+        for (int band = 0; band < upTo.length; band++) {
+            if (amountCents <= upTo[band]) {
+                return fees[band];
+            }
+        }
+        return fees[fees.length - 1];
+    }
+}
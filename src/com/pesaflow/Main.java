@@ -12,6 +12,16 @@ public class Main {
         // Create a TransactionManager
         TransactionManager manager = new TransactionManager();
         
+        // Remember query results until a new transaction changes them
+        manager.setQueryCache(new QueryCache(64));
+        
+        // Check every new payment for unusual amounts and bursts as it arrives
+        AnomalyDetector detector = new AnomalyDetector();
+        detector.setListener((row, kinds) -> System.out.println("  ALERT (" + AnomalyDetector.describe(kinds) + "): "
+                + manager.getStore().transactionId(row) + " Ksh " + Money.format(manager.getStore().amountCents(row))
+                + " to " + manager.getStore().getParties().nameOf(manager.getStore().partyId(row))));
+        manager.setAnomalyDetector(detector);
+        
         // Sample M-Pesa SMS messages
         String[] smsMessages = {
             "RBK4H8N2M1 Confirmed. Ksh500.00 sent to JOHN DOE on 15/1/26 at 2:30 PM. New M-PESA balance is Ksh5,000.00",
@@ -27,9 +37,17 @@ public class Main {
         // Add all SMS messages to manager
         System.out.println("--- Adding Transactions ---");
         for (String sms : smsMessages) {
-            manager.addTransactionFromSMS(sms);
+            IngestStatus status = manager.addTransactionFromSMS(sms);
+            System.out.println(status + ": " + sms.substring(0, sms.indexOf(' ')));
         }
         
+        // Re-importing a message that was already added is skipped
+        IngestStatus again = manager.addTransactionFromSMS(smsMessages[0]);
+        System.out.println(again + ": " + smsMessages[0].substring(0, smsMessages[0].indexOf(' ')));
+        
+        // The manager prints nothing itself; its metrics count every outcome
+        System.out.println("\nIngest metrics: " + manager.getMetrics());
+        
         System.out.println("\n" + "=".repeat(50) + "\n");
         
         // Print all transactions
@@ -42,16 +60,7 @@ public class Main {
         System.out.println("\n=== CUSTOM ANALYSIS ===");
         
         // Find peak spending hour
-        var hourlySpending = manager.getSpendingByHour();
-        int peakHour = -1;
-        double maxSpending = 0;
-        
-        for (var entry : hourlySpending.entrySet()) {
-            if (entry.getValue() > maxSpending) {
-                maxSpending = entry.getValue();
-                peakHour = entry.getKey();
-            }
-        }
+        int peakHour = manager.getPeakSpendingHour();
         
         if (peakHour != -1) {
             String timeOfDay;
@@ -64,25 +73,70 @@ public class Main {
             }
             
             System.out.println("Peak Spending Time: " + timeOfDay);
-            System.out.println("Amount Spent: Ksh " + String.format("%.2f", maxSpending));
+            System.out.println("Amount Spent: Ksh " + Money.format(manager.getAggregates().hourlySpending(peakHour)));
         }
         
         // Find party you spend most with
-        var spendingByParty = manager.getSpendingByParty();
         String topParty = "";
-        double topAmount = 0;
-        
-        for (var entry : spendingByParty.entrySet()) {
-            if (entry.getValue() > topAmount) {
-                topAmount = entry.getValue();
-                topParty = entry.getKey();
-            }
+        long topAmount = 0;
+        for (var entry : manager.getTopPayeesByAmount(1).entrySet()) {
+            topParty = entry.getKey();
+            topAmount = entry.getValue();
         }
         
         if (!topParty.isEmpty()) {
             System.out.println("\nYou spend most with: " + topParty);
-            System.out.println("Total spent: Ksh " + String.format("%.2f", topAmount));
+            System.out.println("Total spent: Ksh " + Money.format(topAmount));
+        }
+        
+        // Spending per week, from the pre-added weekly totals
+        System.out.println("\nWeekly spending:");
+        for (var entry : manager.getWeeklySpending(3).entrySet()) {
+            System.out.println("  " + entry.getKey() + ": Ksh " + Money.format(entry.getValue()));
+        }
+        
+        // Transactions from a range of days
+        System.out.println("\nTransactions from 13/1/26 to 14/1/26:");
+        for (Transaction t : manager.getTransactionsByDateRange("13/1/26", "14/1/26")) {
+            System.out.println("  " + t);
+        }
+        
+        // Filters combined in one query, answered from the party's index
+        System.out.println("\nPayments to SAFARICOM LTD over Ksh 200:");
+        manager.query()
+               .type(ParsedSms.TYPE_SENT)
+               .party("SAFARICOM LTD")
+               .amountOver(20000)
+               .stream()
+               .forEach(t -> System.out.println("  " + t));
+        
+        // Balances that do not follow from the SMS before them point to missing messages
+        BalanceReconciler balances = manager.getBalanceReconciler();
+        System.out.println("\nBalance check: " + balances.getGapCount() + " gaps, "
+                + balances.getOutOfOrderCount() + " SMS arrived out of order");
+        for (int row : balances.getGapRows()) {
+            System.out.println("  Possible missing SMS before " + manager.getStore().transactionId(row));
+        }
+        
+        // Asking again (e.g. a dashboard refresh) is answered from the cache
+        manager.getTransactionsByDateRange("13/1/26", "14/1/26");
+        System.out.println("\nQuery cache: " + manager.getQueryCache());
+        
+        // A quick run of payments to one party, the last one far larger than the rest
+        System.out.println("\n--- Live Alerts ---");
+        String[] burst = {
+            "SBA1M2B3G1 Confirmed. Ksh100.00 paid to MAMA MBOGA on 16/1/26 at 8:00 PM. New M-PESA balance is Ksh5,799.50",
+            "SBA1M2B3G2 Confirmed. Ksh120.00 paid to MAMA MBOGA on 16/1/26 at 8:01 PM. New M-PESA balance is Ksh5,679.50",
+            "SBA1M2B3G3 Confirmed. Ksh90.00 paid to MAMA MBOGA on 16/1/26 at 8:02 PM. New M-PESA balance is Ksh5,589.50",
+            "SBA1M2B3G4 Confirmed. Ksh110.00 paid to MAMA MBOGA on 16/1/26 at 8:03 PM. New M-PESA balance is Ksh5,479.50",
+            "SBA1M2B3G5 Confirmed. Ksh100.00 paid to MAMA MBOGA on 16/1/26 at 8:04 PM. New M-PESA balance is Ksh5,379.50",
+            "SBA1M2B3G6 Confirmed. Ksh95.00 paid to MAMA MBOGA on 16/1/26 at 8:05 PM. New M-PESA balance is Ksh5,284.50",
+            "SBA1M2B3G7 Confirmed. Ksh4,500.00 paid to MAMA MBOGA on 16/1/26 at 8:06 PM. New M-PESA balance is Ksh784.50"
+        };
+        for (String sms : burst) {
+            manager.addTransactionFromSMS(sms);
         }
+        System.out.println("Anomalies: " + detector);
         
         System.out.println("\n=== Analysis Complete ===");
     }
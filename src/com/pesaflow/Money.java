@@ -0,0 +1,33 @@
+package com.pesaflow;
+
+/**
+ * Money - Helpers for amounts stored as whole cents
+ * All money in PesaFlow is kept as a long number of cents (Ksh1.50 -> 150),
+ * so adding up millions of transactions stays exact.
+ */
+public final class Money {
+
+    private Money() {
+    }
+
+    /**
+     * Formats cents as shillings with two decimals
+     * Example: 120050 -> "1200.50", -99 -> "-0.99"
+     *
+     * @param cents Amount in cents
+     * @return Formatted amount without a currency prefix
+     */
+    public static String format(long cents) {
+        StringBuilder result = new StringBuilder(16);
+        if (cents < 0) {
+            result.append('-');
+            cents = -cents;
+        }
+        long remainder = cents % 100;
+        result.append(cents / 100).append('.');
+        if (remainder < 10) {
+            result.append('0');
+        }
+        return result.append(remainder).toString();
+    }
+}
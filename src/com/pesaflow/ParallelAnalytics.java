@@ -0,0 +1,132 @@
+package com.pesaflow;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ParallelAnalytics - Builds TransactionAggregates on several threads
+ * The rows are split in half again and again until each piece is small.
+ * Each thread that runs pieces adds them to its own partial totals (no
+ * shared state, no locks), and the few partials - one per thread, not
+ * one per piece - are merged once at the end. A partial holds an array
+ * slot for every party, so allocating and merging one per piece would
+ * cost more than the totalling itself on a history with many parties.
+ *
+ * Below the threshold, or with only one thread available, the rows are
+ * simply totalled on the calling thread: splitting would cost more than
+ * it saves. Either way the result is exactly the same, since every
+ * total is a whole number of cents or a count.
+ */
+public class ParallelAnalytics {
+
+    /** Histories smaller than this are totalled on one thread */
+    public static final int DEFAULT_THRESHOLD = 1 << 16;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    /**
+     * Uses the common fork-join pool and the default threshold
+     */
+    public ParallelAnalytics() {
+        this(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param pool Pool to run the pieces on
+     * @param threshold Minimum number of rows worth splitting
+     */
+    public ParallelAnalytics(ForkJoinPool pool, int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("threshold must be at least 1");
+        }
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Totals every row of a store
+     * @param store Store to read; must not change while this runs
+     * @return New aggregates
+     */
+    public TransactionAggregates aggregate(ColumnarTransactionStore store) {
+        return aggregate(store, null, store.size());
+    }
+
+    /**
+     * Totals the given rows of a store
+     * @param store Store to read; must not change while this runs
+     * @param rows Row numbers, e.g. from rowsBetween, or null for rows 0..count
+     * @param count Number of rows to total
+     * @return New aggregates
+     */
+    public TransactionAggregates aggregate(ColumnarTransactionStore store, int[] rows, int count) {
+        int partyCount = store.getParties().size();
+        if (count < threshold || pool.getParallelism() < 2) {
+            TransactionAggregates totals = new TransactionAggregates(partyCount);
+            totals.addRows(store, rows, 0, count);
+            return totals;
+        }
+        // A few pieces per thread so a slow thread does not hold everyone up
+        int pieceSize = Math.max(threshold / 4, count / (pool.getParallelism() * 4) + 1);
+        Map<Thread, TransactionAggregates> partials = new ConcurrentHashMap<>();
+        pool.invoke(new Piece(store, rows, 0, count, pieceSize, partyCount, partials));
+
+        TransactionAggregates totals = null;
+        for (TransactionAggregates partial : partials.values()) {
+            if (totals == null) {
+                totals = partial;
+            } else {
+                totals.merge(partial);
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * @return true if a history of this many rows would be split
+     */
+    public boolean wouldSplit(int rows) {
+        return rows >= threshold && pool.getParallelism() >= 2;
+    }
+
+    // One range of rows; splits itself until it is small enough
+    private static final class Piece extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ColumnarTransactionStore store;
+        private final int[] rows;
+        private final int from;
+        private final int to;
+        private final int pieceSize;
+        private final int partyCount;
+        // Partial totals of each thread; only that thread adds to its own
+        private final Map<Thread, TransactionAggregates> partials;
+
+        Piece(ColumnarTransactionStore store, int[] rows, int from, int to, int pieceSize, int partyCount,
+              Map<Thread, TransactionAggregates> partials) {
+            this.store = store;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.pieceSize = pieceSize;
+            this.partyCount = partyCount;
+            this.partials = partials;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= pieceSize) {
+                partials.computeIfAbsent(Thread.currentThread(), thread -> new TransactionAggregates(partyCount))
+                        .addRows(store, rows, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Piece(store, rows, from, middle, pieceSize, partyCount, partials),
+                    new Piece(store, rows, middle, to, pieceSize, partyCount, partials));
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.pesaflow;
+
+/**
+ * ParsedSms - Reusable holder for the fields found in one M-Pesa SMS
+ * MPesaParser fills this in place, so a caller that parses millions of
+ * messages can reuse a single instance instead of allocating per message.
+ *
+ * Text fields (ID, party, date) are kept as character offsets into the
+ * source message and only turned into Strings when asked for.
+ */
+public class ParsedSms {
+
+    // Transaction type codes (stored as numbers so they are cheap to compare)
+    public static final int TYPE_UNKNOWN = 0;
+    public static final int TYPE_SENT = 1;
+    public static final int TYPE_RECEIVED = 2;
+
+    // Message categories (which M-Pesa service the message came from)
+    public static final int CATEGORY_UNKNOWN = 0;
+    public static final int CATEGORY_SEND_MONEY = 1;
+    public static final int CATEGORY_BUY_GOODS = 2;
+    public static final int CATEGORY_PAY_BILL = 3;
+    public static final int CATEGORY_RECEIVE = 4;
+    public static final int CATEGORY_WITHDRAWAL = 5;
+    public static final int CATEGORY_DEPOSIT = 6;
+    public static final int CATEGORY_AIRTIME = 7;
+    public static final int CATEGORY_FULIZA = 8;
+    public static final int CATEGORY_REVERSAL = 9;
+
+    private static final String[] CATEGORY_NAMES = {
+        "unknown", "send money", "buy goods", "pay bill", "receive",
+        "withdrawal", "deposit", "airtime", "fuliza", "reversal"
+    };
+
+    private CharSequence source;      // The message these offsets point into
+    private int idStart, idEnd;       // Transaction ID range
+    private int type;                 // One of the TYPE_ constants
+    private int category;             // One of the CATEGORY_ constants
+    private long amountCents;         // Amount in cents (Ksh500.00 -> 50000)
+    private int partyStart, partyEnd; // Party range, -1 when not found
+    private String fixedParty;        // Party named by the message type (e.g. airtime), or null
+    private int dateStart, dateEnd;   // Date/time range, -1 when not found
+    private long balanceCents;        // Balance after the transaction in cents
+    private long timestamp;           // Date/time as epoch milliseconds
+    private int[] keywordPositions = new int[0];  // Parser scratch space, reused per message
+
+    public ParsedSms() {
+        reset(null);
+    }
+
+    /**
+     * Clears all fields so the record can be filled again
+     * @param source The message about to be parsed
+     */
+    void reset(CharSequence source) {
+        this.source = source;
+        this.idStart = 0;
+        this.idEnd = 0;
+        this.type = TYPE_UNKNOWN;
+        this.category = CATEGORY_UNKNOWN;
+        this.amountCents = 0;
+        this.partyStart = -1;
+        this.partyEnd = -1;
+        this.fixedParty = null;
+        this.dateStart = -1;
+        this.dateEnd = -1;
+        this.balanceCents = 0;
+        this.timestamp = SmsDates.UNKNOWN;
+    }
+
+    /**
+     * Scratch array the parser records keyword positions in
+     * @param size Number of keywords the parser looks for
+     */
+    int[] keywordPositions(int size) {
+        if (keywordPositions.length < size) {
+            keywordPositions = new int[size];
+        }
+        return keywordPositions;
+    }
+
+    void setTransactionId(int start, int end) {
+        this.idStart = start;
+        this.idEnd = end;
+    }
+
+    void setType(int type) {
+        this.type = type;
+    }
+
+    void setCategory(int category) {
+        this.category = category;
+    }
+
+    void setAmountCents(long amountCents) {
+        this.amountCents = amountCents;
+    }
+
+    void setParty(int start, int end) {
+        this.partyStart = start;
+        this.partyEnd = end;
+    }
+
+    void setFixedParty(String party) {
+        this.fixedParty = party;
+    }
+
+    void setDateTime(int start, int end) {
+        this.dateStart = start;
+        this.dateEnd = end;
+    }
+
+    void setBalanceCents(long balanceCents) {
+        this.balanceCents = balanceCents;
+    }
+
+    void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public CharSequence getSource() {
+        return source;
+    }
+
+    public String getTransactionId() {
+        return source.subSequence(idStart, idEnd).toString();
+    }
+
+    /**
+     * Transaction ID packed into a long, read without making a String
+     * @return Packed ID, or TransactionIds.NOT_PACKABLE
+     */
+    public long getPackedTransactionId() {
+        return TransactionIds.pack(source, idStart, idEnd);
+    }
+
+    /**
+     * @return true if the transaction ID is usable (see TransactionIds.isWellFormed)
+     */
+    public boolean hasValidTransactionId() {
+        return TransactionIds.isWellFormed(source, idStart, idEnd);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public String getTypeName() {
+        return typeName(type);
+    }
+
+    public int getCategory() {
+        return category;
+    }
+
+    public String getCategoryName() {
+        return categoryName(category);
+    }
+
+    public long getAmountCents() {
+        return amountCents;
+    }
+
+    public String getParty() {
+        if (fixedParty != null) {
+            return fixedParty;
+        }
+        if (partyStart < 0) {
+            return PartyDictionary.UNKNOWN;
+        }
+        return source.subSequence(partyStart, partyEnd).toString();
+    }
+
+    /**
+     * Party ID in a dictionary, looked up straight from the message text
+     * No String is made unless the party has never been seen before.
+     * @param parties Dictionary to look the name up in (and add it to)
+     * @return Dense party ID
+     */
+    public int getPartyId(PartyDictionary parties) {
+        if (fixedParty != null) {
+            return parties.idOf(fixedParty);
+        }
+        if (partyStart < 0) {
+            return parties.idOf(PartyDictionary.UNKNOWN);
+        }
+        if (source instanceof ByteSlice && !((ByteSlice) source).isAscii(partyStart, partyEnd)) {
+            // Each byte of a multi-byte UTF-8 character would be read as a
+            // character of its own, so a name like that is decoded first
+            return parties.idOf(getParty());
+        }
+        return parties.idOf(source, partyStart, partyEnd);
+    }
+
+    /**
+     * Date and time with the word "at" removed
+     * Example: "15/1/26 at 2:30 PM" -> "15/1/26 2:30 PM"
+     */
+    public String getDateTime() {
+        if (dateStart < 0) {
+            return "UNKNOWN";
+        }
+
+        StringBuilder result = new StringBuilder(dateEnd - dateStart);
+        int i = dateStart;
+        while (i < dateEnd) {
+            // Replace every " at " with a single space
+            if (i + 4 <= dateEnd && source.charAt(i) == ' ' && source.charAt(i + 1) == 'a'
+                    && source.charAt(i + 2) == 't' && source.charAt(i + 3) == ' ') {
+                result.append(' ');
+                i += 4;
+            } else {
+                result.append(source.charAt(i));
+                i++;
+            }
+        }
+        return result.toString();
+    }
+
+    public long getBalanceCents() {
+        return balanceCents;
+    }
+
+    /**
+     * @return Date/time as epoch milliseconds, or SmsDates.UNKNOWN
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Builds a Transaction from the parsed fields
+     * @return New Transaction object
+     */
+    public Transaction toTransaction() {
+        return new Transaction(getTransactionId(), getTypeName(), amountCents,
+                getParty(), getDateTime(), balanceCents, timestamp, getCategoryName());
+    }
+
+    /**
+     * Converts a type code into the name used by Transaction
+     * @param type One of the TYPE_ constants
+     * @return "sent", "received" or "unknown"
+     */
+    public static String typeName(int type) {
+        switch (type) {
+            case TYPE_SENT:
+                return "sent";
+            case TYPE_RECEIVED:
+                return "received";
+            default:
+                return "unknown";
+        }
+    }
+
+    /**
+     * Converts a Transaction type name back into its code
+     * @param name "sent", "received" or anything else
+     * @return One of the TYPE_ constants
+     */
+    public static int typeCode(String name) {
+        if ("sent".equalsIgnoreCase(name)) {
+            return TYPE_SENT;
+        } else if ("received".equalsIgnoreCase(name)) {
+            return TYPE_RECEIVED;
+        }
+        return TYPE_UNKNOWN;
+    }
+
+    /**
+     * Converts a category code into its name
+     * @param category One of the CATEGORY_ constants
+     * @return e.g. "pay bill", or "unknown" for codes we do not know
+     */
+    public static String categoryName(int category) {
+        if (category < 0 || category >= CATEGORY_NAMES.length) {
+            return CATEGORY_NAMES[CATEGORY_UNKNOWN];
+        }
+        return CATEGORY_NAMES[category];
+    }
+
+    /**
+     * Converts a category name back into its code
+     * @param name A name returned by categoryName (null counts as unknown)
+     * @return One of the CATEGORY_ constants
+     */
+    public static int categoryCode(String name) {
+        for (int i = 0; i < CATEGORY_NAMES.length; i++) {
+            if (CATEGORY_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return CATEGORY_UNKNOWN;
+    }
+}
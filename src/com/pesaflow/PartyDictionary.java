@@ -0,0 +1,238 @@
+package com.pesaflow;
+
+import java.util.Arrays;
+
+/**
+ * PartyDictionary - Gives every party name a small int ID
+ * Storing the ID instead of the name means each name is kept once,
+ * and per-party totals can live in arrays indexed by ID.
+ *
+ * Names are normalized before they are compared: surrounding spaces are
+ * dropped, runs of spaces become one, and letters are compared without
+ * case. So "NAIVAS  SUPERMARKET" and "Naivas Supermarket" share an ID,
+ * and the first spelling seen is the one shown.
+ *
+ * A name can be looked up straight from the SMS text (a range of
+ * characters), so no String is made for parties already seen. A small
+ * cache in front of the main table answers the most common payees
+ * with a single probe.
+ */
+public class PartyDictionary {
+
+    // Shown for transactions with no party
+    static final String UNKNOWN = "UNKNOWN";
+
+    private static final int CACHE_SIZE = 256;  // Must be a power of two
+
+    private String[] names = new String[16];
+    private int[] nameHashes = new int[16];
+    private int size;
+
+    // Open-addressing table of IDs (-1 = empty), at most half full
+    private int[] table = newTable(32);
+
+    // Direct-mapped cache: slot = hash & (CACHE_SIZE - 1)
+    private final int[] cacheHashes = new int[CACHE_SIZE];
+    private final int[] cacheIds = newTable(CACHE_SIZE);
+
+    /**
+     * Returns the ID for a name, adding the name if it is new
+     * @param name Party name (null counts as "UNKNOWN")
+     * @return Dense ID starting from 0
+     */
+    public int idOf(String name) {
+        if (name == null) {
+            name = UNKNOWN;
+        }
+        return idOf(name, 0, name.length());
+    }
+
+    /**
+     * Returns the ID for the name in text[start, end), adding it if new
+     * A String is only made the first time a name is seen.
+     * @param text Text holding the name, e.g. the SMS itself
+     * @param start Index of the first character of the name
+     * @param end Index just after the name
+     * @return Dense ID starting from 0
+     */
+    public int idOf(CharSequence text, int start, int end) {
+        while (start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int hash = hash(text, start, end);
+
+        int slot = hash & (CACHE_SIZE - 1);
+        int cached = cacheIds[slot];
+        if (cached >= 0 && cacheHashes[slot] == hash && sameName(names[cached], text, start, end)) {
+            return cached;
+        }
+
+        int id = lookup(hash, text, start, end);
+        if (id < 0) {
+            id = add(normalize(text, start, end), hash);
+        }
+        cacheHashes[slot] = hash;
+        cacheIds[slot] = id;
+        return id;
+    }
+
+    /**
+     * Looks up a name without adding it
+     * @param name Party name
+     * @return ID, or -1 if the name has never been seen
+     */
+    public int find(String name) {
+        if (name == null) {
+            name = UNKNOWN;
+        }
+        int start = 0;
+        int end = name.length();
+        while (start < end && name.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && name.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return lookup(hash(name, start, end), name, start, end);
+    }
+
+    /**
+     * @param id ID returned by idOf
+     * @return The party name, as first seen (with spaces tidied)
+     */
+    public String nameOf(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("Party ID " + id + ", size " + size);
+        }
+        return names[id];
+    }
+
+    /**
+     * @return Number of distinct parties
+     */
+    public int size() {
+        return size;
+    }
+
+    private int lookup(int hash, CharSequence text, int start, int end) {
+        int mask = table.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int id = table[i];
+            if (id < 0) {
+                return -1;
+            }
+            if (nameHashes[id] == hash && sameName(names[id], text, start, end)) {
+                return id;
+            }
+        }
+    }
+
+    private int add(String name, int hash) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            nameHashes = Arrays.copyOf(nameHashes, size * 2);
+        }
+        int id = size++;
+        names[id] = name;
+        nameHashes[id] = hash;
+
+        if (size * 2 > table.length) {
+            table = newTable(table.length * 2);
+            for (int i = 0; i < size; i++) {
+                insert(i);
+            }
+        } else {
+            insert(id);
+        }
+        return id;
+    }
+
+    private void insert(int id) {
+        int mask = table.length - 1;
+        int i = nameHashes[id] & mask;
+        while (table[i] >= 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = id;
+    }
+
+    private static int[] newTable(int capacity) {
+        int[] table = new int[capacity];
+        Arrays.fill(table, -1);
+        return table;
+    }
+
+    // Hash of the normalized name: spaces collapsed, ASCII letters upper-cased
+    private static int hash(CharSequence text, int start, int end) {
+        int hash = 0;
+        boolean inSpace = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c <= ' ') {
+                inSpace = true;
+                continue;
+            }
+            if (inSpace) {
+                hash = hash * 31 + ' ';
+                inSpace = false;
+            }
+            hash = hash * 31 + fold(c);
+        }
+        // Spread the bits so the low ones (used for slots) depend on every character
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        return hash ^ (hash >>> 16);
+    }
+
+    // Compares a stored (already normalized) name with text[start, end)
+    private static boolean sameName(String name, CharSequence text, int start, int end) {
+        int n = 0;
+        int length = name.length();
+        boolean inSpace = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c <= ' ') {
+                inSpace = true;
+                continue;
+            }
+            if (inSpace) {
+                if (n >= length || name.charAt(n) != ' ') {
+                    return false;
+                }
+                n++;
+                inSpace = false;
+            }
+            if (n >= length || fold(name.charAt(n)) != fold(c)) {
+                return false;
+            }
+            n++;
+        }
+        return n == length;
+    }
+
+    // text[start, end) with runs of whitespace turned into one space
+    private static String normalize(CharSequence text, int start, int end) {
+        StringBuilder name = new StringBuilder(end - start);
+        boolean inSpace = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c <= ' ') {
+                inSpace = true;
+                continue;
+            }
+            if (inSpace) {
+                name.append(' ');
+                inSpace = false;
+            }
+            name.append(c);
+        }
+        return name.toString();
+    }
+
+    private static char fold(char c) {
+        return c >= 'a' && c <= 'z' ? (char) (c - 32) : c;
+    }
+}
@@ -0,0 +1,92 @@
+package com.pesaflow;
+
+import java.util.Arrays;
+
+/**
+ * PartyPostings - The rows of each party, in the order they were added
+ * Like the index at the back of a book: for every party ID there is a
+ * list of the rows it appears in, so a query about one party reads only
+ * that party's rows.
+ */
+class PartyPostings {
+
+    private static final int[] EMPTY = new int[0];
+
+    private int[][] rows = new int[16][];
+    private int[] sizes = new int[16];
+
+    /**
+     * Records that a row belongs to a party
+     * @param partyId Party ID from the PartyDictionary
+     * @param row Row number
+     */
+    void add(int partyId, int row) {
+        if (partyId >= rows.length) {
+            int capacity = Math.max(partyId + 1, rows.length * 2);
+            rows = Arrays.copyOf(rows, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+        int[] list = rows[partyId];
+        int size = sizes[partyId];
+        if (list == null) {
+            list = new int[4];
+        } else if (size == list.length) {
+            list = Arrays.copyOf(list, size * 2);
+        }
+        list[size] = row;
+        rows[partyId] = list;
+        sizes[partyId] = size + 1;
+    }
+
+    /**
+     * Records a run of rows in one go (used when loading from disk)
+     * The rows are counted per party first, so each party's list is
+     * grown once to its final size instead of doubling as it fills.
+     * @param partyIds Party ID column
+     * @param from First row to add
+     * @param to Row to stop before
+     */
+    void addAll(int[] partyIds, int from, int to) {
+        int[] added = new int[rows.length];
+        for (int row = from; row < to; row++) {
+            int partyId = partyIds[row];
+            if (partyId >= added.length) {
+                added = Arrays.copyOf(added, Math.max(partyId + 1, added.length * 2));
+            }
+            added[partyId]++;
+        }
+        if (added.length > rows.length) {
+            rows = Arrays.copyOf(rows, added.length);
+            sizes = Arrays.copyOf(sizes, added.length);
+        }
+        for (int partyId = 0; partyId < added.length; partyId++) {
+            if (added[partyId] == 0) {
+                continue;
+            }
+            int needed = sizes[partyId] + added[partyId];
+            if (rows[partyId] == null) {
+                rows[partyId] = new int[needed];
+            } else if (rows[partyId].length < needed) {
+                rows[partyId] = Arrays.copyOf(rows[partyId], needed);
+            }
+        }
+        for (int row = from; row < to; row++) {
+            int partyId = partyIds[row];
+            rows[partyId][sizes[partyId]++] = row;
+        }
+    }
+
+    /**
+     * @return Number of rows with the party
+     */
+    int count(int partyId) {
+        return partyId < sizes.length ? sizes[partyId] : 0;
+    }
+
+    /**
+     * @return Rows of the party (only the first count(partyId) are valid)
+     */
+    int[] rows(int partyId) {
+        return partyId < rows.length && rows[partyId] != null ? rows[partyId] : EMPTY;
+    }
+}
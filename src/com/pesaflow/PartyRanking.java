@@ -0,0 +1,199 @@
+package com.pesaflow;
+
+import java.util.Arrays;
+import java.util.function.IntToLongFunction;
+
+/**
+ * PartyRanking - Keeps the top parties by some running total
+ * A small min-heap holds the best `capacity` parties. When a party's
+ * total goes up it either moves within the heap or, if it now beats
+ * the weakest party in the heap, takes its place.
+ *
+ * Because totals only ever go up, a party outside the heap can never
+ * overtake the heap without passing through update(), so the heap is
+ * always exactly the top `capacity` (not an estimate). Ties are broken
+ * by the smaller party ID. If a total ever goes down (a negative
+ * amount), the ranking is rebuilt from the totals on the next query.
+ *
+ * top(k) costs O(capacity log capacity) no matter how many parties exist;
+ * only k larger than the capacity falls back to scanning every party.
+ */
+public class PartyRanking {
+
+    private final int capacity;
+    private final IntToLongFunction totals;
+
+    // Min-heap of party IDs, weakest at index 0, with their totals alongside
+    private final int[] heap;
+    private final long[] values;
+    private int size;
+
+    // Heap index + 1 for each party ID (0 = not in the heap)
+    private int[] positions = new int[64];
+
+    private boolean stale;
+
+    /**
+     * @param capacity Number of parties kept ranked
+     * @param totals Current total for a party ID (used to rebuild and for large k)
+     */
+    public PartyRanking(int capacity, IntToLongFunction totals) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.totals = totals;
+        this.heap = new int[capacity];
+        this.values = new long[capacity];
+    }
+
+    /**
+     * Records a party's new total
+     * @param partyId Party ID
+     * @param total Its total after the latest transaction
+     */
+    public void update(int partyId, long total) {
+        if (stale) {
+            return;
+        }
+        if (partyId >= positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(partyId + 1, positions.length * 2));
+        }
+
+        int at = positions[partyId] - 1;
+        if (at >= 0) {
+            if (total < values[at]) {
+                stale = true;  // Went down: a party outside might now be ahead
+                return;
+            }
+            values[at] = total;
+            siftDown(at);
+        } else if (size < capacity) {
+            place(size++, partyId, total);
+            siftUp(size - 1);
+        } else if (ranksAbove(total, partyId, values[0], heap[0])) {
+            positions[heap[0]] = 0;
+            place(0, partyId, total);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Marks the ranking as out of date (rebuilt on the next query)
+     */
+    public void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * The k parties with the largest totals
+     * @param k How many parties to return
+     * @param partyCount Number of parties that exist (only read for large k)
+     * @return Party IDs, largest total first, with totals of 0 left out
+     */
+    public int[] top(int k, int partyCount) {
+        if (stale) {
+            rebuild(partyCount);
+        }
+        if (k <= capacity) {
+            return sorted(heap, values, size, k);
+        }
+
+        // Asked for more than we keep: rank every party with a heap of size k
+        PartyRanking wide = new PartyRanking(k, totals);
+        for (int id = 0; id < partyCount; id++) {
+            wide.update(id, totals.applyAsLong(id));
+        }
+        return sorted(wide.heap, wide.values, wide.size, k);
+    }
+
+    /**
+     * @return Current total of a party, as used for ranking
+     */
+    public long totalOf(int partyId) {
+        return totals.applyAsLong(partyId);
+    }
+
+    private void rebuild(int partyCount) {
+        stale = false;
+        size = 0;
+        Arrays.fill(positions, 0);
+        for (int id = 0; id < partyCount; id++) {
+            update(id, totals.applyAsLong(id));
+        }
+    }
+
+    // Copies the heap out and sorts it, best first; skips zero totals
+    private static int[] sorted(int[] heap, long[] values, int size, int k) {
+        int[] order = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (values[i] > 0) {
+                order[count++] = i;
+            }
+        }
+        // Insertion sort of heap positions by rank (the heap is small)
+        for (int i = 1; i < count; i++) {
+            int at = order[i];
+            int j = i - 1;
+            while (j >= 0 && ranksAbove(values[at], heap[at], values[order[j]], heap[order[j]])) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = at;
+        }
+        int[] result = new int[Math.min(k, count)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = heap[order[i]];
+        }
+        return result;
+    }
+
+    // true if (value, id) should be ranked ahead of (otherValue, otherId)
+    private static boolean ranksAbove(long value, int id, long otherValue, int otherId) {
+        return value > otherValue || (value == otherValue && id < otherId);
+    }
+
+    private void place(int at, int partyId, long total) {
+        heap[at] = partyId;
+        values[at] = total;
+        positions[partyId] = at + 1;
+    }
+
+    private void siftUp(int at) {
+        while (at > 0) {
+            int parent = (at - 1) >>> 1;
+            if (!ranksAbove(values[parent], heap[parent], values[at], heap[at])) {
+                return;
+            }
+            swap(at, parent);
+            at = parent;
+        }
+    }
+
+    private void siftDown(int at) {
+        while (true) {
+            int weakest = at;
+            int left = 2 * at + 1;
+            int right = left + 1;
+            if (left < size && ranksAbove(values[weakest], heap[weakest], values[left], heap[left])) {
+                weakest = left;
+            }
+            if (right < size && ranksAbove(values[weakest], heap[weakest], values[right], heap[right])) {
+                weakest = right;
+            }
+            if (weakest == at) {
+                return;
+            }
+            swap(at, weakest);
+            at = weakest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int partyA = heap[a];
+        long valueA = values[a];
+        place(a, heap[b], values[b]);
+        place(b, partyA, valueA);
+    }
+}
@@ -0,0 +1,224 @@
+package com.pesaflow;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * QueryCache - Remembers the results of recent analytics queries
+ * A dashboard tends to ask the same questions again and again (spending
+ * per party this month, transactions this week). The answers are kept
+ * here, keyed by query kind, time window and party, so repeats are a map
+ * lookup instead of a rescan.
+ *
+ * At most maxEntries results are kept; when full, the least recently
+ * used one is dropped. A new transaction only removes the results it
+ * can change: those whose window contains its timestamp, whose party
+ * (if any) is its party, and - for spending queries - only if it is a
+ * payment. A cached report for last month survives today's SMS.
+ *
+ * Like TransactionManager, it is meant to be used from one thread; the
+ * counters can be read from any thread (e.g. over JMX).
+ */
+public class QueryCache implements QueryCacheMXBean {
+
+    // Kinds of cached result
+    static final int SPENDING_BY_PARTY = 0;
+    static final int SPENDING_BY_HOUR = 1;
+    static final int FREQUENT_PARTIES = 2;
+    static final int TRANSACTIONS_BETWEEN = 3;
+    static final int PARTY_SPENDING = 4;
+
+    // Party of a result that covers every party
+    static final int ALL_PARTIES = -1;
+
+    private final int maxEntries;
+    private final Map<Key, Object> results;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param maxEntries Most results to keep (e.g. 128)
+     */
+    public QueryCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache needs room for at least one result: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        // Access order: every get moves the entry to the end, so the
+        // eldest entry is always the least recently used
+        this.results = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                if (size() > QueryCache.this.maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Looks up a result, counting a hit or a miss
+     * @param kind One of the kind constants above
+     * @param from Start of the window (inclusive)
+     * @param to End of the window (exclusive)
+     * @param partyId Party of the query, or ALL_PARTIES
+     * @return The cached result, or null
+     */
+    Object get(int kind, long from, long to, int partyId) {
+        Object result = results.get(new Key(kind, from, to, partyId));
+        if (result == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return result;
+    }
+
+    /**
+     * Keeps a result (it must not be changed afterwards)
+     */
+    void put(int kind, long from, long to, int partyId, Object result) {
+        results.put(new Key(kind, from, to, partyId), result);
+    }
+
+    /**
+     * Drops every result a new transaction could change
+     * @param type One of the ParsedSms.TYPE_ constants
+     * @param partyId Party of the transaction
+     * @param timestamp Its timestamp (SmsDates.UNKNOWN only affects all-time results)
+     */
+    void invalidate(int type, int partyId, long timestamp) {
+        if (results.isEmpty()) {
+            return;
+        }
+        for (Iterator<Key> keys = results.keySet().iterator(); keys.hasNext(); ) {
+            if (keys.next().affectedBy(type, partyId, timestamp)) {
+                keys.remove();
+                invalidations.increment();
+            }
+        }
+    }
+
+    /**
+     * Drops every result
+     */
+    public void clear() {
+        results.clear();
+    }
+
+    /**
+     * Publishes these counters on the platform MBean server
+     * @param name Name to tell several caches apart, e.g. "dashboard"
+     * @return The ObjectName they were registered under
+     */
+    public ObjectName register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("com.pesaflow:type=QueryCache,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register query cache as " + name, e);
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public int getSize() {
+        return results.size();
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d hit rate=%.0f%% evictions=%d invalidations=%d size=%d/%d",
+                getHits(), getMisses(), getHitRate() * 100, getEvictions(), getInvalidations(),
+                getSize(), maxEntries);
+    }
+
+    /**
+     * Key - What a cached result answers
+     */
+    private static final class Key {
+
+        final int kind;
+        final long from;
+        final long to;
+        final int partyId;
+
+        Key(int kind, long from, long to, int partyId) {
+            this.kind = kind;
+            this.from = from;
+            this.to = to;
+            this.partyId = partyId;
+        }
+
+        // true if a new transaction would change this result
+        boolean affectedBy(int type, int partyId, long timestamp) {
+            boolean spendingOnly = kind == SPENDING_BY_PARTY || kind == SPENDING_BY_HOUR || kind == PARTY_SPENDING;
+            if (spendingOnly && type != ParsedSms.TYPE_SENT) {
+                return false;
+            }
+            if (this.partyId != ALL_PARTIES && this.partyId != partyId) {
+                return false;
+            }
+            return timestamp >= from && timestamp < to;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return kind == key.kind && from == key.from && to == key.to && partyId == key.partyId;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = kind;
+            hash = 31 * hash + Long.hashCode(from);
+            hash = 31 * hash + Long.hashCode(to);
+            return 31 * hash + partyId;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.pesaflow;
+
+/**
+ * QueryCacheMXBean - Query cache counters as seen through JMX
+ * Shows up in JConsole/VisualVM under com.pesaflow:type=QueryCache.
+ */
+public interface QueryCacheMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRate();
+
+    long getEvictions();
+
+    long getInvalidations();
+
+    int getSize();
+
+    int getMaxEntries();
+}
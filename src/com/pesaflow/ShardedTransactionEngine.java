@@ -0,0 +1,377 @@
+package com.pesaflow;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * ShardedTransactionEngine - Transactions for many accounts in one JVM
+ * Instead of one TransactionManager per customer, accounts are spread
+ * over a fixed number of shards by a hash of the account number (e.g.
+ * the phone number). Each shard is owned by one thread, which does all
+ * the work for its accounts, so nothing inside a shard needs a lock.
+ *
+ * Memory stays predictable: each shard has one column store and one
+ * PartyDictionary shared by all its accounts, and an account only adds a
+ * small object with its totals, its row numbers and the IDs it has seen.
+ * Duplicates are checked per account: the sender's and the recipient's
+ * SMS carry the same M-Pesa ID, and both must be counted.
+ *
+ * All calls return a CompletableFuture that completes on the shard's
+ * thread. Calls for one account run in the order they were made. Each
+ * shard queues at most queueCapacity calls; when it is full, the caller
+ * waits for room, so a slow shard slows its producers down instead of
+ * its queue growing without limit. A call made on a shard's own thread
+ * (from inside a query function) runs at once instead of being queued
+ * behind the function that is waiting for it.
+ */
+public class ShardedTransactionEngine implements Closeable {
+
+    private final Shard[] shards;
+    private final IngestMetrics metrics = new IngestMetrics();
+
+    /**
+     * Creates an engine with one shard per available processor
+     */
+    public ShardedTransactionEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param shardCount Number of shards (and shard threads)
+     */
+    public ShardedTransactionEngine(int shardCount) {
+        this(shardCount, 10_000);
+    }
+
+    /**
+     * @param shardCount Number of shards (and shard threads)
+     * @param queueCapacity Most calls that may wait for each shard
+     */
+    public ShardedTransactionEngine(int shardCount, int queueCapacity) {
+        if (shardCount < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("shardCount and queueCapacity must be at least 1");
+        }
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i, queueCapacity);
+        }
+    }
+
+    /**
+     * Parse an SMS and add it to an account
+     * @param account Account number, e.g. "254712345678"
+     * @param smsMessage The M-Pesa SMS
+     * @return ADDED, DUPLICATE, or the reason the message was rejected
+     */
+    public CompletableFuture<IngestStatus> addTransactionFromSMS(String account, String smsMessage) {
+        Shard shard = shardFor(account);
+        return shard.submit(() -> shard.addFromSms(account, smsMessage));
+    }
+
+    /**
+     * Add a transaction to an account
+     * @param account Account number
+     * @param transaction The transaction to add
+     * @return true if added, false if null or its ID was already added
+     */
+    public CompletableFuture<Boolean> addTransaction(String account, Transaction transaction) {
+        Shard shard = shardFor(account);
+        return shard.submit(() -> shard.add(account, transaction));
+    }
+
+    /**
+     * Run a read on an account, on the thread that owns it
+     * The Account must not be kept or used after the function returns.
+     * @param account Account number
+     * @param query Reads what it needs from the account (an empty account if unknown)
+     * @return The query's result
+     */
+    public <T> CompletableFuture<T> query(String account, Function<Account, T> query) {
+        Shard shard = shardFor(account);
+        return shard.submit(() -> query.apply(shard.accountOrEmpty(account)));
+    }
+
+    public CompletableFuture<Long> getTotalExpenses(String account) {
+        return query(account, Account::getTotalExpenses);
+    }
+
+    public CompletableFuture<Long> getTotalIncome(String account) {
+        return query(account, Account::getTotalIncome);
+    }
+
+    public CompletableFuture<Map<String, Long>> getSpendingByParty(String account) {
+        return query(account, Account::getSpendingByParty);
+    }
+
+    public CompletableFuture<List<Transaction>> getTransactions(String account) {
+        return query(account, Account::getTransactions);
+    }
+
+    /**
+     * @return Number of accounts with at least one transaction
+     */
+    public int getAccountCount() {
+        int total = 0;
+        for (Shard shard : shards) {
+            total += shard.run(() -> shard.accounts.size());
+        }
+        return total;
+    }
+
+    /**
+     * @return Number of transactions over all accounts
+     */
+    public int getTransactionCount() {
+        int total = 0;
+        for (Shard shard : shards) {
+            total += shard.run(() -> shard.store.size());
+        }
+        return total;
+    }
+
+    /**
+     * @return Ingest counters shared by every shard
+     */
+    public IngestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Finishes the queued work and stops the shard threads
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards) {
+            shard.thread.shutdown();
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Same high-bits trick as ConcurrentTransactionManager
+    private Shard shardFor(String account) {
+        long hash = TransactionIdSet.hash(account.hashCode()) & 0xFFFFFFFFL;
+        return shards[(int) ((hash * shards.length) >>> 32)];
+    }
+
+    /**
+     * Account - One customer's transactions inside a shard
+     * Only use it inside a function passed to query().
+     */
+    public static final class Account {
+
+        private final String accountId;
+        private final ColumnarTransactionStore store;
+        private final TransactionIdSet seenIds = new TransactionIdSet(16);
+        private int[] rows = new int[4];
+        private int count;
+        private long totalIncome;
+        private long totalExpenses;
+
+        Account(String accountId, ColumnarTransactionStore store) {
+            this.accountId = accountId;
+            this.store = store;
+        }
+
+        /**
+         * @return true if the account has not seen this packed ID before (and now has)
+         */
+        boolean isNew(ParsedSms sms) {
+            long packed = sms.getPackedTransactionId();
+            return packed == TransactionIds.NOT_PACKABLE
+                    ? seenIds.add(sms.getTransactionId())
+                    : seenIds.add(packed);
+        }
+
+        boolean isNew(String transactionId) {
+            return seenIds.add(transactionId);
+        }
+
+        void add(int row) {
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, count * 2);
+            }
+            rows[count++] = row;
+            int type = store.type(row);
+            if (type == ParsedSms.TYPE_RECEIVED) {
+                totalIncome += store.amountCents(row);
+            } else if (type == ParsedSms.TYPE_SENT) {
+                totalExpenses += store.amountCents(row);
+            }
+        }
+
+        public String getAccountId() {
+            return accountId;
+        }
+
+        public int getTransactionCount() {
+            return count;
+        }
+
+        public long getTotalIncome() {
+            return totalIncome;
+        }
+
+        public long getTotalExpenses() {
+            return totalExpenses;
+        }
+
+        public long getNetChange() {
+            return totalIncome - totalExpenses;
+        }
+
+        /**
+         * @return The account's transactions, oldest added first
+         */
+        public List<Transaction> getTransactions() {
+            List<Transaction> transactions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                transactions.add(store.get(rows[i]));
+            }
+            return transactions;
+        }
+
+        /**
+         * @return Map of party names to total amounts spent, in cents
+         */
+        public Map<String, Long> getSpendingByParty() {
+            Map<String, Long> spending = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                int row = rows[i];
+                if (store.type(row) == ParsedSms.TYPE_SENT) {
+                    spending.merge(store.getParties().nameOf(store.partyId(row)), store.amountCents(row), Long::sum);
+                }
+            }
+            return spending;
+        }
+    }
+
+    // One thread and everything it owns
+    private final class Shard {
+
+        final ThreadPoolExecutor thread;
+        // The thread the executor started, so calls made on it can run inline
+        private volatile Thread owner;
+        // Only the shard thread uses these, so the dictionary needs no lock
+        final ColumnarTransactionStore store = new ColumnarTransactionStore(new PartyDictionary());
+        final Map<String, Account> accounts = new HashMap<>();
+        final ParsedSms parsed = new ParsedSms();
+        private final Account empty;
+
+        Shard(int index, int queueCapacity) {
+            thread = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity),
+                    task -> {
+                        Thread t = new Thread(task, "pesaflow-shard-" + index);
+                        t.setDaemon(true);
+                        owner = t;
+                        return t;
+                    },
+                    Shard::waitForRoom);
+            // Started now rather than on the first call: a thread still being
+            // started when close() runs can strand the calls queued behind it
+            thread.prestartCoreThread();
+            empty = new Account("", store);
+        }
+
+        // Called when the queue is full: wait for room instead of failing
+        private static void waitForRoom(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Engine is closed");
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the shard queue", e);
+            }
+            // If close() ran while we waited, the thread may already have
+            // emptied the queue and stopped, and the task would never run.
+            // Take it back out; if it is gone, the thread took it and will run it.
+            if (executor.isShutdown() && executor.getQueue().remove(task)) {
+                throw new RejectedExecutionException("Engine is closed");
+            }
+        }
+
+        IngestStatus addFromSms(String account, String smsMessage) {
+            long start = System.nanoTime();
+            boolean ok = MPesaParser.parseInto(smsMessage, parsed);
+            long parsedAt = System.nanoTime();
+            metrics.recordParse(parsedAt - start);
+
+            IngestStatus status = IngestStatus.check(ok, parsed);
+            if (status == null) {
+                Account target = accountFor(account);
+                if (target.isNew(parsed)) {
+                    target.add(store.append(parsed));
+                    status = IngestStatus.ADDED;
+                } else {
+                    status = IngestStatus.DUPLICATE;
+                }
+                metrics.recordStore(System.nanoTime() - parsedAt);
+            }
+            metrics.count(status);
+            return status;
+        }
+
+        boolean add(String account, Transaction transaction) {
+            if (transaction == null) {
+                return false;
+            }
+            long start = System.nanoTime();
+            Account target = accountFor(account);
+            boolean added = target.isNew(transaction.getTransactionId());
+            if (added) {
+                target.add(store.append(transaction));
+            }
+            metrics.recordStore(System.nanoTime() - start);
+            metrics.count(added ? IngestStatus.ADDED : IngestStatus.DUPLICATE);
+            return added;
+        }
+
+        Account accountFor(String account) {
+            return accounts.computeIfAbsent(account, id -> new Account(id, store));
+        }
+
+        Account accountOrEmpty(String account) {
+            Account found = accounts.get(account);
+            return found == null ? empty : found;
+        }
+
+        // Runs work on the shard thread. Already on it (a call from inside
+        // a query function), queueing the work and waiting for it would
+        // wait on itself forever, so it runs right here instead.
+        <T> CompletableFuture<T> submit(Supplier<T> work) {
+            if (Thread.currentThread() == owner) {
+                try {
+                    return CompletableFuture.completedFuture(work.get());
+                } catch (RuntimeException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            }
+            return CompletableFuture.supplyAsync(work, thread);
+        }
+
+        // Runs a read on the shard thread and waits for it
+        <T> T run(Supplier<T> read) {
+            return submit(read).join();
+        }
+    }
+}
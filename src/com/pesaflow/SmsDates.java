@@ -0,0 +1,277 @@
+package com.pesaflow;
+
+/**
+ * SmsDates - Converts M-Pesa date/time text into epoch timestamps
+ * M-Pesa writes times like "15/1/26 2:30 PM" in Kenyan time (EAT, UTC+3,
+ * no daylight saving). Timestamps are stored as epoch milliseconds so
+ * they can live in primitive arrays and be compared directly.
+ */
+public final class SmsDates {
+
+    // Returned when a date cannot be read
+    public static final long UNKNOWN = Long.MIN_VALUE;
+
+    static final long MILLIS_PER_MINUTE = 60_000L;
+    static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+    static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    // Kenya is always three hours ahead of UTC
+    static final long EAT_OFFSET_MILLIS = 3 * MILLIS_PER_HOUR;
+
+    private SmsDates() {
+    }
+
+    /**
+     * Parses a date/time such as "15/1/26 2:30 PM"
+     * @param dateTime Text in day/month/year hour:minute AM|PM form
+     * @return Epoch milliseconds, or UNKNOWN if the text is not a date
+     */
+    public static long parse(CharSequence dateTime) {
+        if (dateTime == null) {
+            return UNKNOWN;
+        }
+        return parse(dateTime, 0, dateTime.length());
+    }
+
+    /**
+     * Parses the date/time found in part of a longer text
+     * Words between the date and the time (such as "at") are skipped,
+     * and the AM/PM marker is optional (24-hour clock when missing).
+     *
+     * @param text Text containing the date
+     * @param start Index of the first character of the date
+     * @param end Index after the last character to look at
+     * @return Epoch milliseconds, or UNKNOWN if the text is not a date
+     */
+    public static long parse(CharSequence text, int start, int end) {
+        // Each read returns (value << 32 | next index), or -1 when there are no digits
+        long read = readNumber(text, start, end);
+        int day = valueOf(read);
+        int i = indexOf(read);
+        if (day < 1 || day > 31 || !isChar(text, i, end, '/')) {
+            return UNKNOWN;
+        }
+        read = readNumber(text, i + 1, end);
+        int month = valueOf(read);
+        i = indexOf(read);
+        if (month < 1 || month > 12 || !isChar(text, i, end, '/')) {
+            return UNKNOWN;
+        }
+        read = readNumber(text, i + 1, end);
+        int year = valueOf(read);
+        if (year < 0) {
+            return UNKNOWN;
+        }
+        if (indexOf(read) - (i + 1) <= 2) {
+            year += 2000;  // "26" means 2026
+        }
+        if (day > daysInMonth(year, month)) {
+            return UNKNOWN;  // e.g. 31/2/26, which would otherwise roll over into March
+        }
+        i = indexOf(read);
+
+        // Skip anything up to the hour, e.g. " at "
+        while (i < end && (text.charAt(i) < '0' || text.charAt(i) > '9')) {
+            i++;
+        }
+        read = readNumber(text, i, end);
+        int hour = valueOf(read);
+        i = indexOf(read);
+        if (hour < 0 || hour > 23 || !isChar(text, i, end, ':')) {
+            return UNKNOWN;
+        }
+        read = readNumber(text, i + 1, end);
+        int minute = valueOf(read);
+        i = indexOf(read);
+        if (minute < 0 || minute > 59) {
+            return UNKNOWN;
+        }
+
+        // Optional AM/PM marker
+        while (i < end && text.charAt(i) == ' ') {
+            i++;
+        }
+        if (i + 1 < end && (text.charAt(i + 1) == 'M' || text.charAt(i + 1) == 'm')) {
+            char period = text.charAt(i);
+            if (hour < 1 || hour > 12) {
+                return UNKNOWN;
+            }
+            if ((period == 'P' || period == 'p') && hour != 12) {
+                hour += 12;
+            } else if ((period == 'A' || period == 'a') && hour == 12) {
+                hour = 0;
+            }
+        }
+
+        long days = daysFromCivil(year, month, day);
+        return days * MILLIS_PER_DAY + hour * MILLIS_PER_HOUR + minute * MILLIS_PER_MINUTE
+                - EAT_OFFSET_MILLIS;
+    }
+
+    /**
+     * Parses a date without a time, such as "15/1/26"
+     * @param date Text in day/month/year form
+     * @return Epoch milliseconds at midnight Kenyan time, or UNKNOWN
+     */
+    public static long parseDate(CharSequence date) {
+        if (date == null) {
+            return UNKNOWN;
+        }
+        int end = date.length();
+        long read = readNumber(date, 0, end);
+        int day = valueOf(read);
+        int i = indexOf(read);
+        if (day < 1 || day > 31 || !isChar(date, i, end, '/')) {
+            return UNKNOWN;
+        }
+        read = readNumber(date, i + 1, end);
+        int month = valueOf(read);
+        i = indexOf(read);
+        if (month < 1 || month > 12 || !isChar(date, i, end, '/')) {
+            return UNKNOWN;
+        }
+        read = readNumber(date, i + 1, end);
+        int year = valueOf(read);
+        if (year < 0 || indexOf(read) != end) {
+            return UNKNOWN;
+        }
+        if (end - (i + 1) <= 2) {
+            year += 2000;
+        }
+        if (day > daysInMonth(year, month)) {
+            return UNKNOWN;
+        }
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY - EAT_OFFSET_MILLIS;
+    }
+
+    /**
+     * Hour of day (0-23) in Kenyan time
+     * @param epochMillis Timestamp from parse
+     * @return Hour, or -1 for UNKNOWN
+     */
+    public static int hourOf(long epochMillis) {
+        if (epochMillis == UNKNOWN) {
+            return -1;
+        }
+        return (int) (Math.floorMod(epochMillis + EAT_OFFSET_MILLIS, MILLIS_PER_DAY) / MILLIS_PER_HOUR);
+    }
+
+    /**
+     * Day number in Kenyan time (days since 1/1/70, midnight to midnight EAT)
+     * @param epochMillis Timestamp from parse (not UNKNOWN)
+     * @return Day number
+     */
+    static long dayOf(long epochMillis) {
+        return Math.floorDiv(epochMillis + EAT_OFFSET_MILLIS, MILLIS_PER_DAY);
+    }
+
+    /**
+     * Midnight Kenyan time at the start of a day number from dayOf
+     * @return Epoch milliseconds
+     */
+    static long startOfDay(long day) {
+        return day * MILLIS_PER_DAY - EAT_OFFSET_MILLIS;
+    }
+
+    /**
+     * Formats a timestamp the way M-Pesa writes it
+     * Example: -> "15/1/26 2:30 PM"
+     *
+     * @param epochMillis Timestamp from parse
+     * @return Formatted date/time, or "UNKNOWN"
+     */
+    public static String format(long epochMillis) {
+        if (epochMillis == UNKNOWN) {
+            return "UNKNOWN";
+        }
+        long local = epochMillis + EAT_OFFSET_MILLIS;
+        long days = Math.floorDiv(local, MILLIS_PER_DAY);
+        long millisOfDay = Math.floorMod(local, MILLIS_PER_DAY);
+        int hour = (int) (millisOfDay / MILLIS_PER_HOUR);
+        int minute = (int) (millisOfDay % MILLIS_PER_HOUR / MILLIS_PER_MINUTE);
+
+        int[] date = civilFromDays(days);
+        int hour12 = hour % 12 == 0 ? 12 : hour % 12;
+
+        StringBuilder result = new StringBuilder(16);
+        result.append(date[2]).append('/').append(date[1]).append('/');
+        int yy = date[0] % 100;
+        if (yy < 10) {
+            result.append('0');
+        }
+        result.append(yy).append(' ').append(hour12).append(':');
+        if (minute < 10) {
+            result.append('0');
+        }
+        result.append(minute).append(hour < 12 ? " AM" : " PM");
+        return result.toString();
+    }
+
+    /**
+     * Number of days in a month, with February 29 in leap years
+     */
+    static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+            return leap ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    /**
+     * Days since 1970-01-01 for a calendar date (proleptic Gregorian)
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Calendar date for a number of days since 1970-01-01
+     * @return {year, month, day}
+     */
+    static int[] civilFromDays(long days) {
+        days += 719468;
+        long era = Math.floorDiv(days, 146097);
+        long dayOfEra = days - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        return new int[] {year, month, day};
+    }
+
+    // Reads up to 4 digits starting at i
+    private static long readNumber(CharSequence text, int i, int end) {
+        int value = 0;
+        int digits = 0;
+        while (i < end && digits < 4) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            digits++;
+            i++;
+        }
+        return digits == 0 ? -1 : (long) value << 32 | i;
+    }
+
+    private static int valueOf(long read) {
+        return read < 0 ? -1 : (int) (read >>> 32);
+    }
+
+    private static int indexOf(long read) {
+        return read < 0 ? Integer.MAX_VALUE : (int) read;
+    }
+
+    private static boolean isChar(CharSequence text, int i, int end, char c) {
+        return i < end && text.charAt(i) == c;
+    }
+}
@@ -0,0 +1,255 @@
+package com.pesaflow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * SmsFileImporter - Bulk import of SMS export files
+ * The file holds one message per line (a line wrapped in double quotes,
+ * as CSV exports write it, has the quotes removed). It is memory-mapped
+ * and split into one region per thread, each region starting on a line
+ * boundary. Every worker maps its region a window at a time and hands
+ * each line to the parser as a ByteSlice, so no line is copied into a
+ * String and memory use does not grow with the file size.
+ */
+public class SmsFileImporter {
+
+    // How much of the file one worker maps at a time
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final int threads;
+    private final int windowSize;
+
+    /**
+     * Creates an importer with one worker per available processor
+     */
+    public SmsFileImporter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads Number of worker threads
+     */
+    public SmsFileImporter(int threads) {
+        this(threads, WINDOW_SIZE);
+    }
+
+    SmsFileImporter(int threads, int windowSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Imports every message in a file
+     * @param file SMS export, one message per line
+     * @param target Manager to add the transactions to
+     * @return Counts and timing for the import
+     * @throws IOException If the file cannot be read
+     */
+    public ImportResult importFile(Path file, ConcurrentTransactionManager target) throws IOException {
+        long begin = System.nanoTime();
+        long[] totals = new long[2];  // lines, imported
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            // Region boundaries, each moved forward to the start of a line
+            long[] bounds = new long[threads + 1];
+            bounds[threads] = size;
+            for (int i = 1; i < threads; i++) {
+                bounds[i] = Math.max(bounds[i - 1], nextLineStart(channel, size * i / threads, size));
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<long[]>> results = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    long from = bounds[i];
+                    long to = bounds[i + 1];
+                    results.add(pool.submit(() -> importRegion(channel, from, to, target)));
+                }
+                for (Future<long[]> result : results) {
+                    long[] counts = result.get();
+                    totals[0] += counts[0];
+                    totals[1] += counts[1];
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Import interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Import failed: " + e.getCause().getMessage(), e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+
+            return new ImportResult(totals[0], totals[1], size, System.nanoTime() - begin);
+        }
+    }
+
+    /**
+     * Parses every line in [from, to), mapping one window at a time
+     * @return {lines seen, transactions imported}
+     */
+    private long[] importRegion(FileChannel channel, long from, long to,
+                                ConcurrentTransactionManager target) throws IOException {
+        ByteSlice line = new ByteSlice();
+        long lines = 0;
+        long imported = 0;
+
+        long position = from;
+        while (position < to) {
+            int length = (int) Math.min(windowSize, to - position);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+            // Only process whole lines; the last partial line starts the next window
+            int limit = length;
+            if (position + length < to) {
+                limit = lastNewline(window, length) + 1;
+                if (limit == 0) {
+                    // A single line longer than the window: count it and skip it
+                    lines++;
+                    position = nextLineStart(channel, position + length, to);
+                    continue;
+                }
+            }
+
+            int start = 0;
+            while (start < limit) {
+                int end = start;
+                while (end < limit && window.get(end) != '\n') {
+                    end++;
+                }
+                lines++;
+                if (target.addTransactionFromSMS(trim(window, start, end, line)) == IngestStatus.ADDED) {
+                    imported++;
+                }
+                start = end + 1;
+            }
+            position += limit;
+        }
+        return new long[] {lines, imported};
+    }
+
+    // Drops a trailing '\r' and surrounding CSV quotes
+    private static ByteSlice trim(ByteBuffer window, int start, int end, ByteSlice line) {
+        if (end > start && window.get(end - 1) == '\r') {
+            end--;
+        }
+        if (end - start >= 2 && window.get(start) == '"' && window.get(end - 1) == '"') {
+            start++;
+            end--;
+        }
+        return line.set(window, start, end - start);
+    }
+
+    private static int lastNewline(ByteBuffer window, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (window.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Position just after the next '\n' at or after position (or end)
+    private static long nextLineStart(FileChannel channel, long position, long end) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+        while (position < end) {
+            chunk.clear();
+            int read = channel.read(chunk, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (chunk.get(i) == '\n') {
+                    return Math.min(position + i + 1, end);
+                }
+            }
+            position += read;
+        }
+        return end;
+    }
+
+    /**
+     * ImportResult - What one import did and how fast
+     */
+    public static class ImportResult {
+
+        private final long lines;
+        private final long imported;
+        private final long bytes;
+        private final long elapsedNanos;
+
+        ImportResult(long lines, long imported, long bytes, long elapsedNanos) {
+            this.lines = lines;
+            this.imported = imported;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getLines() {
+            return lines;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        /**
+         * @return Lines that were rejected or duplicates
+         * (the target's IngestMetrics has the reasons)
+         */
+        public long getSkipped() {
+            return lines - imported;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getLinesPerSecond() {
+            return elapsedNanos == 0 ? 0 : lines / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Imported %,d of %,d lines (%,d bytes) in %.2f s - %,.0f lines/sec",
+                    imported, lines, bytes, elapsedNanos / 1e9, getLinesPerSecond());
+        }
+    }
+
+    /**
+     * Imports a file from the command line and prints the result
+     * Usage: java com.pesaflow.SmsFileImporter file [threads]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: SmsFileImporter <file> [threads]");
+            return;
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        ConcurrentTransactionManager manager = new ConcurrentTransactionManager();
+        ImportResult result = new SmsFileImporter(threads).importFile(Paths.get(args[0]), manager);
+        System.out.println(result);
+        System.out.println("Total Income: Ksh " + Money.format(manager.getTotalIncome()));
+        System.out.println("Total Expenses: Ksh " + Money.format(manager.getTotalExpenses()));
+    }
+}
@@ -0,0 +1,121 @@
+package com.pesaflow;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * SmsGatewayServer - Local TCP stand-in for an SMS gateway
+ * Each connection sends one SMS per line (UTF-8). Lines go straight into
+ * an IngestionService; when its queue is full, reading from the socket
+ * pauses, so TCP flow control pushes back on the sender. When the sender
+ * closes its side, the server replies "OK <lines>" and closes.
+ *
+ * Every connection gets its own thread (Java 17 has no virtual threads),
+ * which is fine for the tens of gateway connections this is meant for.
+ */
+public class SmsGatewayServer implements Closeable {
+
+    private final ServerSocket server;
+    private final IngestionService service;
+    private final ExecutorService connections;
+    private final Thread acceptor;
+
+    /**
+     * Starts listening on the loopback address
+     * @param port Port to listen on, or 0 for any free port
+     * @param service Where received messages are queued
+     * @throws IOException If the port cannot be opened
+     */
+    public SmsGatewayServer(int port, IngestionService service) throws IOException {
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.service = service;
+        this.connections = Executors.newCachedThreadPool(task -> {
+            Thread t = new Thread(task, "pesaflow-gateway-connection");
+            t.setDaemon(true);
+            return t;
+        });
+        this.acceptor = new Thread(this::acceptLoop, "pesaflow-gateway");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    /**
+     * @return Port the server is listening on
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections and closes the ones that are open
+     */
+    @Override
+    public void close() throws IOException {
+        server.close();
+        connections.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                connections.execute(() -> handle(socket));
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    System.out.println("Gateway accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Reads lines until the sender is done, queuing each one
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+            long lines = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                service.submit(line);
+                lines++;
+            }
+            OutputStream out = s.getOutputStream();
+            out.write(("OK " + lines + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Gateway connection failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs a gateway until the process is stopped
+     * Usage: SmsGatewayServer [port]
+     * Try it with: nc localhost 9099 < messages.txt
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9099;
+        ConcurrentTransactionManager manager = new ConcurrentTransactionManager();
+        manager.getMetrics().register("gateway");
+        IngestionService service = new IngestionService(manager);
+        service.register("gateway");
+
+        try (SmsGatewayServer gateway = new SmsGatewayServer(port, service)) {
+            System.out.println("Listening on port " + gateway.getPort());
+            while (true) {
+                Thread.sleep(10_000);
+                System.out.println(service);
+                System.out.println("Ingest: " + manager.getMetrics());
+            }
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.pesaflow;
+
+import java.util.Arrays;
+
+/**
+ * SpendingRollup - Pre-added income and expense totals per time bucket
+ * Every transaction is added to four buckets at once: its hour, day,
+ * week (Monday to Sunday) and month, all in Kenyan time. Each bucket
+ * keeps income and expense totals overall and per party, so a report
+ * such as "spending per party for the last 12 months" reads 12 buckets
+ * instead of every transaction.
+ *
+ * Buckets are numbered: hours and days since 1/1/70, weeks since the
+ * Monday before it, and months as year * 12 + (month - 1). Transactions
+ * without a known date are not added.
+ */
+public class SpendingRollup {
+
+    /**
+     * Size of a bucket
+     */
+    public enum Granularity {
+        HOUR,
+        DAY,
+        WEEK,
+        MONTH
+    }
+
+    private static final Granularity[] LEVELS = Granularity.values();
+    private static final String[] MONTH_NAMES = {
+        "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+    };
+
+    // One table of buckets per Granularity, indexed by ordinal
+    private final BucketTable[] levels = new BucketTable[LEVELS.length];
+
+    // Most transactions land in the same buckets as the one before,
+    // so remember the last bucket per level to skip the map lookup
+    private final long[] lastKeys = new long[LEVELS.length];
+    private final Bucket[] lastBuckets = new Bucket[LEVELS.length];
+
+    private long latestTimestamp = SmsDates.UNKNOWN;
+    private long lastDay = Long.MIN_VALUE;
+    private long lastMonth;
+
+    public SpendingRollup() {
+        for (int level = 0; level < LEVELS.length; level++) {
+            levels[level] = new BucketTable();
+        }
+    }
+
+    /**
+     * Adds one transaction to its hour, day, week and month
+     * @param type One of the ParsedSms.TYPE_ constants
+     * @param amountCents Amount in cents
+     * @param partyId Party ID from the PartyDictionary
+     * @param timestamp Epoch milliseconds, or SmsDates.UNKNOWN (ignored)
+     */
+    public void add(int type, long amountCents, int partyId, long timestamp) {
+        if (timestamp == SmsDates.UNKNOWN
+                || (type != ParsedSms.TYPE_SENT && type != ParsedSms.TYPE_RECEIVED)) {
+            return;
+        }
+        if (latestTimestamp == SmsDates.UNKNOWN || timestamp > latestTimestamp) {
+            latestTimestamp = timestamp;
+        }
+        boolean expense = type == ParsedSms.TYPE_SENT;
+
+        // Working out the month needs a calendar conversion; reuse it within a day
+        long day = SmsDates.dayOf(timestamp);
+        if (day != lastDay) {
+            lastDay = day;
+            lastMonth = bucketOf(Granularity.MONTH, timestamp);
+        }
+        addTo(Granularity.HOUR, bucketOf(Granularity.HOUR, timestamp), expense, amountCents, partyId);
+        addTo(Granularity.DAY, day, expense, amountCents, partyId);
+        addTo(Granularity.WEEK, Math.floorDiv(day + 3, 7), expense, amountCents, partyId);
+        addTo(Granularity.MONTH, lastMonth, expense, amountCents, partyId);
+    }
+
+    private void addTo(Granularity level, long key, boolean expense, long amountCents, int partyId) {
+        int i = level.ordinal();
+        Bucket bucket = lastBuckets[i];
+        if (bucket == null || lastKeys[i] != key) {
+            bucket = levels[i].getOrAdd(key);
+            lastKeys[i] = key;
+            lastBuckets[i] = bucket;
+        }
+        bucket.add(expense, amountCents, partyId);
+    }
+
+    /**
+     * Adds every row already in a store
+     * @param store Store to read
+     */
+    public void addAll(ColumnarTransactionStore store) {
+        for (int row = 0; row < store.size(); row++) {
+            add(store.type(row), store.amountCents(row), store.partyId(row), store.timestamp(row));
+        }
+    }
+
+    /**
+     * @return Latest transaction time added, or SmsDates.UNKNOWN if none
+     */
+    public long getLatestTimestamp() {
+        return latestTimestamp;
+    }
+
+    /**
+     * @return Total spent in the bucket, in cents
+     */
+    public long expenses(Granularity level, long bucket) {
+        Bucket b = levels[level.ordinal()].get(bucket);
+        return b == null ? 0 : b.expenses;
+    }
+
+    /**
+     * @return Total received in the bucket, in cents
+     */
+    public long income(Granularity level, long bucket) {
+        Bucket b = levels[level.ordinal()].get(bucket);
+        return b == null ? 0 : b.income;
+    }
+
+    /**
+     * @return Number of expenses in the bucket
+     */
+    public int expenseCount(Granularity level, long bucket) {
+        Bucket b = levels[level.ordinal()].get(bucket);
+        return b == null ? 0 : b.expenseCount;
+    }
+
+    /**
+     * @return Number of incoming transactions in the bucket
+     */
+    public int incomeCount(Granularity level, long bucket) {
+        Bucket b = levels[level.ordinal()].get(bucket);
+        return b == null ? 0 : b.incomeCount;
+    }
+
+    /**
+     * Parties with at least one transaction in the bucket
+     * @return Party IDs, in the order they first appeared in the bucket
+     */
+    public int[] parties(Granularity level, long bucket) {
+        Bucket b = levels[level.ordinal()].get(bucket);
+        return b == null ? new int[0] : Arrays.copyOf(b.partyIds, b.partyCount);
+    }
+
+    /**
+     * @return Amount spent with the party in the bucket, in cents
+     */
+    public long partyExpenses(Granularity level, long bucket, int partyId) {
+        Bucket b = levels[level.ordinal()].get(bucket);
+        int slot = b == null ? -1 : b.find(partyId);
+        return slot < 0 ? 0 : b.partyExpenses[slot];
+    }
+
+    /**
+     * @return Amount received from the party in the bucket, in cents
+     */
+    public long partyIncome(Granularity level, long bucket, int partyId) {
+        Bucket b = levels[level.ordinal()].get(bucket);
+        int slot = b == null ? -1 : b.find(partyId);
+        return slot < 0 ? 0 : b.partyIncome[slot];
+    }
+
+    /**
+     * @return Number of expenses paid to the party in the bucket
+     */
+    public int partyExpenseCount(Granularity level, long bucket, int partyId) {
+        Bucket b = levels[level.ordinal()].get(bucket);
+        int slot = b == null ? -1 : b.find(partyId);
+        return slot < 0 ? 0 : b.partyExpenseCounts[slot];
+    }
+
+    /**
+     * @return Number of buckets of this size that have data
+     */
+    public int bucketCount(Granularity level) {
+        return levels[level.ordinal()].size;
+    }
+
+    /**
+     * Bucket number a timestamp falls into
+     * @param level Bucket size
+     * @param timestamp Epoch milliseconds (not UNKNOWN)
+     * @return Bucket number
+     */
+    public static long bucketOf(Granularity level, long timestamp) {
+        if (level == Granularity.HOUR) {
+            // Kenyan time is a whole number of hours ahead, so hours line up with UTC
+            return Math.floorDiv(timestamp, SmsDates.MILLIS_PER_HOUR);
+        }
+        long day = SmsDates.dayOf(timestamp);
+        switch (level) {
+            case DAY:
+                return day;
+            case WEEK:
+                // 1/1/70 was a Thursday; shift so weeks start on Monday
+                return Math.floorDiv(day + 3, 7);
+            default:
+                int[] date = SmsDates.civilFromDays(day);
+                return date[0] * 12L + date[1] - 1;
+        }
+    }
+
+    /**
+     * Start of a bucket
+     * @return Epoch milliseconds at the first moment of the bucket (Kenyan time)
+     */
+    public static long bucketStart(Granularity level, long bucket) {
+        switch (level) {
+            case HOUR:
+                return bucket * SmsDates.MILLIS_PER_HOUR;
+            case DAY:
+                return SmsDates.startOfDay(bucket);
+            case WEEK:
+                return SmsDates.startOfDay(bucket * 7 - 3);
+            default:
+                int year = (int) Math.floorDiv(bucket, 12);
+                int month = Math.floorMod(bucket, 12) + 1;
+                return SmsDates.startOfDay(SmsDates.daysFromCivil(year, month, 1));
+        }
+    }
+
+    /**
+     * Short name for a bucket, e.g. "15/1/26 2:00 PM", "15/1/26",
+     * "Week of 12/1/26" or "Jan 2026"
+     */
+    public static String label(Granularity level, long bucket) {
+        if (level == Granularity.MONTH) {
+            return MONTH_NAMES[Math.floorMod(bucket, 12)] + " " + Math.floorDiv(bucket, 12);
+        }
+        String start = SmsDates.format(bucketStart(level, bucket));
+        String date = start.substring(0, start.indexOf(' '));
+        switch (level) {
+            case HOUR:
+                return start;
+            case DAY:
+                return date;
+            default:
+                return "Week of " + date;
+        }
+    }
+
+    /**
+     * Bucket - Totals for one hour, day, week or month
+     * Per-party totals sit in parallel arrays; a small hash table from
+     * party ID to slot is only built once the bucket has many parties.
+     */
+    private static final class Bucket {
+
+        private static final int SCAN_LIMIT = 8;
+
+        long income;
+        long expenses;
+        int incomeCount;
+        int expenseCount;
+
+        int partyCount;
+        // Most hour buckets only ever see one party, so start with room for one
+        int[] partyIds = new int[1];
+        long[] partyIncome = new long[1];
+        long[] partyExpenses = new long[1];
+        int[] partyIncomeCounts = new int[1];
+        int[] partyExpenseCounts = new int[1];
+        int[] table;  // slot + 1, 0 = empty; null while partyCount <= SCAN_LIMIT
+
+        void add(boolean expense, long amountCents, int partyId) {
+            int slot = find(partyId);
+            if (slot < 0) {
+                slot = addParty(partyId);
+            }
+            if (expense) {
+                expenses += amountCents;
+                expenseCount++;
+                partyExpenses[slot] += amountCents;
+                partyExpenseCounts[slot]++;
+            } else {
+                income += amountCents;
+                incomeCount++;
+                partyIncome[slot] += amountCents;
+                partyIncomeCounts[slot]++;
+            }
+        }
+
+        int find(int partyId) {
+            if (table == null) {
+                for (int i = 0; i < partyCount; i++) {
+                    if (partyIds[i] == partyId) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+            int mask = table.length - 1;
+            for (int i = TransactionIdSet.hash(partyId) & mask; table[i] != 0; i = (i + 1) & mask) {
+                if (partyIds[table[i] - 1] == partyId) {
+                    return table[i] - 1;
+                }
+            }
+            return -1;
+        }
+
+        private int addParty(int partyId) {
+            if (partyCount == partyIds.length) {
+                int capacity = partyCount * 2;
+                partyIds = Arrays.copyOf(partyIds, capacity);
+                partyIncome = Arrays.copyOf(partyIncome, capacity);
+                partyExpenses = Arrays.copyOf(partyExpenses, capacity);
+                partyIncomeCounts = Arrays.copyOf(partyIncomeCounts, capacity);
+                partyExpenseCounts = Arrays.copyOf(partyExpenseCounts, capacity);
+            }
+            int slot = partyCount++;
+            partyIds[slot] = partyId;
+
+            if (partyCount > SCAN_LIMIT && (table == null || partyCount * 2 > table.length)) {
+                table = new int[Integer.highestOneBit(partyCount * 4)];
+                for (int i = 0; i < partyCount; i++) {
+                    insert(i);
+                }
+            } else if (table != null) {
+                insert(slot);
+            }
+            return slot;
+        }
+
+        private void insert(int slot) {
+            int mask = table.length - 1;
+            int i = TransactionIdSet.hash(partyIds[slot]) & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = slot + 1;
+        }
+    }
+
+    /**
+     * BucketTable - Buckets by number, without boxing the keys
+     * Open addressing with linear probing, kept at most half full.
+     */
+    private static final class BucketTable {
+
+        private long[] keys = new long[64];
+        private Bucket[] buckets = new Bucket[64];
+        int size;
+
+        Bucket get(long key) {
+            int mask = keys.length - 1;
+            for (int i = TransactionIdSet.hash(key) & mask; buckets[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return buckets[i];
+                }
+            }
+            return null;
+        }
+
+        Bucket getOrAdd(long key) {
+            int mask = keys.length - 1;
+            int i = TransactionIdSet.hash(key) & mask;
+            for (; buckets[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return buckets[i];
+                }
+            }
+            Bucket bucket = new Bucket();
+            keys[i] = key;
+            buckets[i] = bucket;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+            return bucket;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            Bucket[] oldBuckets = buckets;
+            keys = new long[oldKeys.length * 2];
+            buckets = new Bucket[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldBuckets[j] != null) {
+                    int i = TransactionIdSet.hash(oldKeys[j]) & mask;
+                    while (buckets[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    buckets[i] = oldBuckets[j];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.pesaflow;
+
+import java.util.Arrays;
+
+/**
+ * TimeIndex - Row numbers sorted by timestamp
+ * Range queries use binary search, so they cost O(log n + k) instead of
+ * a full scan.
+ *
+ * SMS usually arrive in time order, and those rows are appended straight
+ * onto the sorted arrays. Rows that arrive out of order wait in a small
+ * pending buffer and are merged in (one sort of the buffer plus one merge)
+ * the next time the index is queried.
+ */
+class TimeIndex {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Sorted part: keys[i] is the timestamp of row rows[i]
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private int[] rows = new int[INITIAL_CAPACITY];
+    private int size;
+
+    // Out-of-order rows waiting to be merged
+    private long[] pendingKeys = new long[16];
+    private int[] pendingRows = new int[16];
+    private int pendingSize;
+
+    /**
+     * Adds a row to the index
+     * @param timestamp Timestamp of the row
+     * @param row Row number
+     */
+    void add(long timestamp, int row) {
+        if (pendingSize == 0 && (size == 0 || timestamp >= keys[size - 1])) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            keys[size] = timestamp;
+            rows[size] = row;
+            size++;
+            return;
+        }
+
+        if (pendingSize == pendingKeys.length) {
+            pendingKeys = Arrays.copyOf(pendingKeys, pendingSize * 2);
+            pendingRows = Arrays.copyOf(pendingRows, pendingSize * 2);
+        }
+        pendingKeys[pendingSize] = timestamp;
+        pendingRows[pendingSize] = row;
+        pendingSize++;
+    }
+
+    /**
+     * Adds a run of rows in one go (used when loading from disk)
+     * The arrays are grown once for the whole run. Rows already in time
+     * order, as in a saved history, go straight onto the sorted arrays.
+     * @param timestamps Timestamp column; UNKNOWN entries are skipped
+     * @param from First row to add
+     * @param to Row to stop before
+     */
+    void addAll(long[] timestamps, int from, int to) {
+        int needed = size + to - from;
+        if (needed > keys.length) {
+            keys = Arrays.copyOf(keys, needed);
+            rows = Arrays.copyOf(rows, needed);
+        }
+        for (int row = from; row < to; row++) {
+            long timestamp = timestamps[row];
+            if (timestamp == SmsDates.UNKNOWN) {
+                continue;
+            }
+            if (pendingSize == 0 && (size == 0 || timestamp >= keys[size - 1])) {
+                keys[size] = timestamp;
+                rows[size] = row;
+                size++;
+            } else {
+                add(timestamp, row);
+            }
+        }
+    }
+
+    /**
+     * Finds the rows with timestamps in [from, to)
+     * @return Row numbers in time order
+     */
+    int[] rowsBetween(long from, long to) {
+        mergePending();
+        if (from >= to) {
+            return new int[0];
+        }
+        int start = lowerBound(from);
+        int end = lowerBound(to);
+        return Arrays.copyOfRange(rows, start, end);
+    }
+
+    /**
+     * Finds where a timestamp would go in the index
+     * Positions run in time order; rowAt() reads the row at a position.
+     * @param timestamp Timestamp to look for
+     * @return Position of the first row with a timestamp >= the given one
+     */
+    int positionOf(long timestamp) {
+        mergePending();
+        return lowerBound(timestamp);
+    }
+
+    /**
+     * @param position Position from positionOf (before any new row is added)
+     * @return Row number at that position
+     */
+    int rowAt(int position) {
+        return rows[position];
+    }
+
+    /**
+     * @return Number of indexed rows
+     */
+    int size() {
+        return size + pendingSize;
+    }
+
+    // First position whose key is >= timestamp
+    private int lowerBound(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void mergePending() {
+        if (pendingSize == 0) {
+            return;
+        }
+        sortPending(0, pendingSize, new long[pendingSize], new int[pendingSize]);
+
+        // Merge from the back so the sorted arrays can be grown in place
+        int total = size + pendingSize;
+        if (total > keys.length) {
+            int capacity = Math.max(total, keys.length * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            rows = Arrays.copyOf(rows, capacity);
+        }
+        int i = size - 1;
+        int j = pendingSize - 1;
+        for (int k = total - 1; j >= 0; k--) {
+            if (i >= 0 && keys[i] > pendingKeys[j]) {
+                keys[k] = keys[i];
+                rows[k] = rows[i];
+                i--;
+            } else {
+                keys[k] = pendingKeys[j];
+                rows[k] = pendingRows[j];
+                j--;
+            }
+        }
+        size = total;
+        pendingSize = 0;
+    }
+
+    // Stable merge sort of the pending keys and rows
+    private void sortPending(int from, int to, long[] tempKeys, int[] tempRows) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        sortPending(from, mid, tempKeys, tempRows);
+        sortPending(mid, to, tempKeys, tempRows);
+
+        int i = from;
+        int j = mid;
+        int k = from;
+        while (i < mid || j < to) {
+            if (j >= to || (i < mid && pendingKeys[i] <= pendingKeys[j])) {
+                tempKeys[k] = pendingKeys[i];
+                tempRows[k++] = pendingRows[i++];
+            } else {
+                tempKeys[k] = pendingKeys[j];
+                tempRows[k++] = pendingRows[j++];
+            }
+        }
+        System.arraycopy(tempKeys, from, pendingKeys, from, to - from);
+        System.arraycopy(tempRows, from, pendingRows, from, to - from);
+    }
+}
@@ -9,21 +9,40 @@ public class Transaction {
     // Instance variables - these store data for each transaction
     private String transactionId;    // Unique ID from M-Pesa (e.g., "RBK4H8N2M1")
     private String type;              // Type: "received" or "sent"
-    private double amount;            // Amount of money
+    private long amountCents;         // Amount of money in cents (Ksh500.00 -> 50000)
     private String party;             // Person/business you transacted with
     private String dateTime;          // When the transaction happened
-    private double balance;           // Your balance after transaction
+    private long balanceCents;        // Your balance after transaction, in cents
+    private long timestamp;           // dateTime as epoch milliseconds (SmsDates.UNKNOWN if unreadable)
+    private String category;          // M-Pesa service, e.g. "pay bill" (see ParsedSms.categoryName)
     
     // Constructor - this is called when we create a new Transaction object
-    // It initializes all the variables
-    public Transaction(String transactionId, String type, double amount, 
-                      String party, String dateTime, double balance) {
+    // It initializes all the variables and reads the date text once
+    public Transaction(String transactionId, String type, long amountCents,
+                      String party, String dateTime, long balanceCents) {
+        this(transactionId, type, amountCents, party, dateTime, balanceCents,
+             SmsDates.parse(dateTime));
+    }
+    
+    // Constructor for callers that already know the timestamp (e.g. the parser)
+    public Transaction(String transactionId, String type, long amountCents,
+                      String party, String dateTime, long balanceCents, long timestamp) {
+        this(transactionId, type, amountCents, party, dateTime, balanceCents, timestamp,
+             ParsedSms.categoryName(ParsedSms.CATEGORY_UNKNOWN));
+    }
+    
+    // Constructor that also records which M-Pesa service the message came from
+    public Transaction(String transactionId, String type, long amountCents,
+                      String party, String dateTime, long balanceCents, long timestamp,
+                      String category) {
         this.transactionId = transactionId;
         this.type = type;
-        this.amount = amount;
+        this.amountCents = amountCents;
         this.party = party;
         this.dateTime = dateTime;
-        this.balance = balance;
+        this.balanceCents = balanceCents;
+        this.timestamp = timestamp;
+        this.category = category;
     }
     
     // Getter methods - these allow us to READ the private variables
@@ -37,8 +56,8 @@ public class Transaction {
         return type;
     }
     
-    public double getAmount() {
-        return amount;
+    public long getAmountCents() {
+        return amountCents;
     }
     
     public String getParty() {
@@ -49,8 +68,16 @@ public class Transaction {
         return dateTime;
     }
     
-    public double getBalance() {
-        return balance;
+    public long getBalanceCents() {
+        return balanceCents;
+    }
+    
+    public long getTimestamp() {
+        return timestamp;
+    }
+    
+    public String getCategory() {
+        return category;
     }
     
     // toString method - this is called when we print a Transaction object
@@ -58,8 +85,8 @@ public class Transaction {
     @Override
     public String toString() {
         return String.format(
-            "Transaction[ID=%s, Type=%s, Amount=Ksh %.2f, Party=%s, Date=%s, Balance=Ksh %.2f]",
-            transactionId, type, amount, party, dateTime, balance
+            "Transaction[ID=%s, Type=%s, Amount=Ksh %s, Party=%s, Date=%s, Balance=Ksh %s]",
+            transactionId, type, Money.format(amountCents), party, dateTime, Money.format(balanceCents)
         );
     }
     
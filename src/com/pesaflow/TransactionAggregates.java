@@ -0,0 +1,166 @@
+package com.pesaflow;
+
+import java.util.Arrays;
+
+/**
+ * TransactionAggregates - Running totals updated as each transaction arrives
+ * Keeps income/expense totals, per-party counts and spending, and spending
+ * per hour of day in primitive counters. Summary queries read these instead
+ * of scanning the whole history.
+ */
+public class TransactionAggregates {
+
+    private long totalIncome;
+    private long totalExpenses;
+
+    // Indexed by party ID from the PartyDictionary
+    private int[] partyCounts;
+    private int[] partyExpenseCounts;
+    private long[] partySpending;
+
+    // Indexed by hour of day (0-23)
+    private final long[] hourlySpending = new long[24];
+    private final int[] hourlyExpenseCounts = new int[24];
+
+    public TransactionAggregates() {
+        this(64);
+    }
+
+    /**
+     * @param partyCapacity Number of parties to make room for up front
+     */
+    public TransactionAggregates(int partyCapacity) {
+        int capacity = Math.max(1, partyCapacity);
+        partyCounts = new int[capacity];
+        partyExpenseCounts = new int[capacity];
+        partySpending = new long[capacity];
+    }
+
+    /**
+     * Adds one transaction to the totals
+     * @param type One of the ParsedSms.TYPE_ constants
+     * @param amountCents Amount in cents
+     * @param partyId Party ID from the PartyDictionary
+     * @param timestamp Epoch milliseconds, or SmsDates.UNKNOWN
+     */
+    public void add(int type, long amountCents, int partyId, long timestamp) {
+        ensurePartyCapacity(partyId + 1);
+        partyCounts[partyId]++;
+
+        if (type == ParsedSms.TYPE_RECEIVED) {
+            totalIncome += amountCents;
+        } else if (type == ParsedSms.TYPE_SENT) {
+            totalExpenses += amountCents;
+            partyExpenseCounts[partyId]++;
+            partySpending[partyId] += amountCents;
+
+            int hour = SmsDates.hourOf(timestamp);
+            if (hour >= 0) {
+                hourlySpending[hour] += amountCents;
+                hourlyExpenseCounts[hour]++;
+            }
+        }
+    }
+
+    /**
+     * Adds every row already in a store, e.g. when a manager is created
+     * on top of a store that was filled elsewhere
+     * @param store Store to read
+     */
+    public void addAll(ColumnarTransactionStore store) {
+        addRows(store, null, 0, store.size());
+    }
+
+    /**
+     * Adds part of a store: rows[from..to), or rows from..to when rows is null
+     * @param store Store to read
+     * @param rows Row numbers (e.g. from the time index), or null
+     * @param from First position to add
+     * @param to Position just after the last one to add
+     */
+    public void addRows(ColumnarTransactionStore store, int[] rows, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int row = rows == null ? i : rows[i];
+            add(store.type(row), store.amountCents(row), store.partyId(row), store.timestamp(row));
+        }
+    }
+
+    /**
+     * Adds another set of totals into this one
+     * All totals are whole numbers, so the result is the same whatever
+     * order the parts are merged in.
+     * @param other Totals to add (not changed)
+     */
+    public void merge(TransactionAggregates other) {
+        totalIncome += other.totalIncome;
+        totalExpenses += other.totalExpenses;
+        ensurePartyCapacity(other.partyCounts.length);
+        for (int id = 0; id < other.partyCounts.length; id++) {
+            partyCounts[id] += other.partyCounts[id];
+            partyExpenseCounts[id] += other.partyExpenseCounts[id];
+            partySpending[id] += other.partySpending[id];
+        }
+        for (int hour = 0; hour < 24; hour++) {
+            hourlySpending[hour] += other.hourlySpending[hour];
+            hourlyExpenseCounts[hour] += other.hourlyExpenseCounts[hour];
+        }
+    }
+
+    public long getTotalIncome() {
+        return totalIncome;
+    }
+
+    public long getTotalExpenses() {
+        return totalExpenses;
+    }
+
+    /**
+     * @param partyId Party ID
+     * @return Number of transactions with the party
+     */
+    public int partyCount(int partyId) {
+        return partyId < partyCounts.length ? partyCounts[partyId] : 0;
+    }
+
+    /**
+     * @param partyId Party ID
+     * @return Number of expenses paid to the party
+     */
+    public int partyExpenseCount(int partyId) {
+        return partyId < partyExpenseCounts.length ? partyExpenseCounts[partyId] : 0;
+    }
+
+    /**
+     * @param partyId Party ID
+     * @return Total spent with the party, in cents
+     */
+    public long partySpending(int partyId) {
+        return partyId < partySpending.length ? partySpending[partyId] : 0;
+    }
+
+    /**
+     * @param hour Hour of day (0-23)
+     * @return Total spent during that hour, in cents
+     */
+    public long hourlySpending(int hour) {
+        return hourlySpending[hour];
+    }
+
+    /**
+     * @param hour Hour of day (0-23)
+     * @return Number of expenses during that hour
+     */
+    public int hourlyExpenseCount(int hour) {
+        return hourlyExpenseCounts[hour];
+    }
+
+    private void ensurePartyCapacity(int needed) {
+        if (needed <= partyCounts.length) {
+            return;
+        }
+        int capacity = Math.max(needed, partyCounts.length * 2);
+        partyCounts = Arrays.copyOf(partyCounts, capacity);
+        partyExpenseCounts = Arrays.copyOf(partyExpenseCounts, capacity);
+        partySpending = Arrays.copyOf(partySpending, capacity);
+    }
+}
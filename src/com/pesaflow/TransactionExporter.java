@@ -0,0 +1,585 @@
+package com.pesaflow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * TransactionExporter - Streams transactions and reports to a channel
+ * Rows are read straight from the column store and formatted into one
+ * reused buffer, which is written to the channel whenever it fills up.
+ * Numbers, dates and IDs are written digit by digit, and each party name
+ * is encoded once and then copied, so exporting allocates almost nothing
+ * per row no matter how many rows there are.
+ *
+ * Formats:
+ *   CSV         header line, then id,date,type,category,party,amount,balance
+ *   JSON_LINES  one JSON object per line with the same fields
+ *   BINARY      8-byte magic, then tagged big-endian entries; a party's
+ *               name is sent once ('P' id name) before the first entry
+ *               that uses its ID
+ *
+ * Dates are written as ISO 8601 in Kenyan time, e.g. 2026-01-15T14:30:00+03:00,
+ * or as the original SMS text when it could not be read. Amounts are in
+ * shillings with two decimals (binary: cents).
+ *
+ * An exporter keeps its buffer between calls and is not thread-safe;
+ * use one per thread.
+ */
+public class TransactionExporter {
+
+    /**
+     * Output format
+     */
+    public enum Format {
+        CSV,
+        JSON_LINES,
+        BINARY
+    }
+
+    // Binary entries: magic, then [tag byte][fields]
+    static final long BINARY_MAGIC = 0x5046_4558_5031_0001L;  // "PFEXP1" v1
+    static final byte TAG_PARTY = 'P';         // int id, int length, UTF-8 name
+    static final byte TAG_TRANSACTION = 'T';   // long id, long timestamp, long amount, long balance,
+                                               // int party, byte type, byte category
+                                               // (+ int length, UTF-8 id when the ID is NOT_PACKABLE)
+    static final byte TAG_TOTALS = 'S';        // long income, long expenses
+    static final byte TAG_PARTY_TOTALS = 'Q';  // int party, int transactions, int payments, long spent
+    static final byte TAG_HOUR = 'H';          // byte hour, int payments, long spent
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_FIXED_RECORD = 256;  // Longest entry, not counting names and text
+
+    // Fixed text, encoded once
+    private static final byte[] CSV_HEADER = ascii("id,date,type,category,party,amount,balance\n");
+    private static final byte[] CSV_REPORT_HEADER = ascii("section,key,transactions,payments,amount\n");
+    private static final byte[] CSV_INCOME = ascii("total,income,,,");
+    private static final byte[] CSV_EXPENSES = ascii("\ntotal,expenses,,,");
+    private static final byte[] CSV_PARTY = ascii("party,");
+    private static final byte[] CSV_HOUR = ascii("hour,");
+    private static final byte[] JSON_ID = ascii("{\"id\":");
+    private static final byte[] JSON_DATE = ascii(",\"date\":");
+    private static final byte[] JSON_TYPE = ascii(",\"type\":\"");
+    private static final byte[] JSON_CATEGORY = ascii("\",\"category\":\"");
+    private static final byte[] JSON_PARTY = ascii("\",\"party\":");
+    private static final byte[] JSON_AMOUNT = ascii(",\"amount\":");
+    private static final byte[] JSON_BALANCE = ascii(",\"balance\":");
+    private static final byte[] JSON_TOTAL = ascii("{\"section\":\"total\",\"income\":");
+    private static final byte[] JSON_EXPENSES = ascii(",\"expenses\":");
+    private static final byte[] JSON_PARTY_LINE = ascii("{\"section\":\"party\",\"party\":");
+    private static final byte[] JSON_HOUR_LINE = ascii("{\"section\":\"hour\",\"hour\":");
+    private static final byte[] JSON_TRANSACTIONS = ascii(",\"transactions\":");
+    private static final byte[] JSON_PAYMENTS = ascii(",\"payments\":");
+    private static final byte[] JSON_SPENT = ascii(",\"spent\":");
+    private static final byte[] JSON_END = ascii("}\n");
+
+    // Type and category names, encoded once
+    private static final byte[][] TYPE_TEXT = new byte[3][];
+    private static final byte[][] CATEGORY_TEXT = new byte[16][];
+    static {
+        for (int type = 0; type < TYPE_TEXT.length; type++) {
+            TYPE_TEXT[type] = ascii(ParsedSms.typeName(type));
+        }
+        for (int category = 0; category < CATEGORY_TEXT.length; category++) {
+            CATEGORY_TEXT[category] = ascii(ParsedSms.categoryName(category));
+        }
+    }
+
+    private final Format format;
+    private final byte[] buffer;
+    private final ByteBuffer view;    // Wraps buffer for channel writes
+    private int position;
+    private WritableByteChannel out;
+    private long written;
+
+    // Party names encoded for this format, by party ID (filled on first use)
+    private PartyDictionary encodedFor;
+    private byte[][] partyText = new byte[0][];
+    // Binary only: parties already sent in the current stream
+    private boolean[] sent = new boolean[0];
+
+    // Last day written, so rows from the same day skip the calendar maths
+    private long cachedDay = Long.MIN_VALUE;
+    private int cachedYear;
+    private int cachedMonth;
+    private int cachedDayOfMonth;
+
+    /**
+     * @param format Output format
+     */
+    public TransactionExporter(Format format) {
+        this(format, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param format Output format
+     * @param bufferSize Bytes collected before each channel write
+     */
+    public TransactionExporter(Format format, int bufferSize) {
+        this.format = format;
+        this.buffer = new byte[Math.max(bufferSize, 2 * MAX_FIXED_RECORD)];
+        this.view = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Writes every row of a store
+     * @param store Rows to export
+     * @param channel Where to write (not closed)
+     * @return Number of bytes written
+     * @throws IOException If the channel cannot be written
+     */
+    public long exportTransactions(ColumnarTransactionStore store, WritableByteChannel channel) throws IOException {
+        return exportTransactions(store, null, store.size(), channel);
+    }
+
+    /**
+     * Writes some rows of a store, e.g. the rows of a date range
+     * @param store Store holding the rows
+     * @param rows Row numbers to export, in the order to write them
+     *        (null = rows 0 to count - 1)
+     * @param count Number of rows to export
+     * @param channel Where to write (not closed)
+     * @return Number of bytes written
+     * @throws IOException If the channel cannot be written
+     */
+    public long exportTransactions(ColumnarTransactionStore store, int[] rows, int count,
+                                   WritableByteChannel channel) throws IOException {
+        start(channel, store.getParties());
+        try {
+            if (format == Format.CSV) {
+                put(CSV_HEADER);
+            } else if (format == Format.BINARY) {
+                putInt64(BINARY_MAGIC);
+            }
+            for (int i = 0; i < count; i++) {
+                int row = rows == null ? i : rows[i];
+                switch (format) {
+                    case CSV:
+                        csvRow(store, row);
+                        break;
+                    case JSON_LINES:
+                        jsonRow(store, row);
+                        break;
+                    default:
+                        binaryRow(store, row);
+                        break;
+                }
+            }
+            flush();
+            return written;
+        } finally {
+            out = null;
+        }
+    }
+
+    /**
+     * Writes a summary: totals, then each party's numbers, then each hour's
+     * @param report Totals to export, e.g. TransactionManager.getReport
+     * @param parties Dictionary the report's party IDs belong to
+     * @param channel Where to write (not closed)
+     * @return Number of bytes written
+     * @throws IOException If the channel cannot be written
+     */
+    public long exportReport(TransactionAggregates report, PartyDictionary parties,
+                             WritableByteChannel channel) throws IOException {
+        start(channel, parties);
+        try {
+            switch (format) {
+                case CSV:
+                    csvReport(report, parties);
+                    break;
+                case JSON_LINES:
+                    jsonReport(report, parties);
+                    break;
+                default:
+                    binaryReport(report, parties);
+                    break;
+            }
+            flush();
+            return written;
+        } finally {
+            out = null;
+        }
+    }
+
+    private void start(WritableByteChannel channel, PartyDictionary parties) {
+        out = channel;
+        written = 0;
+        position = 0;
+        if (parties != encodedFor) {
+            encodedFor = parties;
+            partyText = new byte[Math.max(16, parties.size())][];
+        }
+        Arrays.fill(sent, false);
+    }
+
+    // ----- Transactions -----
+
+    private void csvRow(ColumnarTransactionStore store, int row) throws IOException {
+        room(MAX_FIXED_RECORD);
+        putId(store, row);
+        buffer[position++] = ',';
+        putDate(store, row);
+        buffer[position++] = ',';
+        put(TYPE_TEXT[store.type(row)]);
+        buffer[position++] = ',';
+        put(CATEGORY_TEXT[store.category(row)]);
+        buffer[position++] = ',';
+        put(party(store.partyId(row)));
+        room(MAX_FIXED_RECORD);
+        buffer[position++] = ',';
+        putCents(store.amountCents(row));
+        buffer[position++] = ',';
+        putCents(store.balanceCents(row));
+        buffer[position++] = '\n';
+    }
+
+    private void jsonRow(ColumnarTransactionStore store, int row) throws IOException {
+        room(MAX_FIXED_RECORD);
+        put(JSON_ID);
+        putId(store, row);
+        put(JSON_DATE);
+        putDate(store, row);
+        put(JSON_TYPE);
+        put(TYPE_TEXT[store.type(row)]);
+        put(JSON_CATEGORY);
+        put(CATEGORY_TEXT[store.category(row)]);
+        put(JSON_PARTY);
+        put(party(store.partyId(row)));
+        room(MAX_FIXED_RECORD);
+        put(JSON_AMOUNT);
+        putCents(store.amountCents(row));
+        put(JSON_BALANCE);
+        putCents(store.balanceCents(row));
+        put(JSON_END);
+    }
+
+    private void binaryRow(ColumnarTransactionStore store, int row) throws IOException {
+        int partyId = store.partyId(row);
+        sendParty(partyId);
+        room(MAX_FIXED_RECORD);
+        long packedId = store.packedTransactionId(row);
+        buffer[position++] = TAG_TRANSACTION;
+        putInt64(packedId);
+        putInt64(store.timestamp(row));
+        putInt64(store.amountCents(row));
+        putInt64(store.balanceCents(row));
+        putInt32(partyId);
+        buffer[position++] = (byte) store.type(row);
+        buffer[position++] = (byte) store.category(row);
+        if (packedId == TransactionIds.NOT_PACKABLE) {
+            byte[] id = store.transactionId(row).getBytes(StandardCharsets.UTF_8);
+            putInt32(id.length);
+            put(id);
+        }
+    }
+
+    // The ID as text: unpacked digit by digit, or the rare unpackable ID quoted
+    private void putId(ColumnarTransactionStore store, int row) throws IOException {
+        long packedId = store.packedTransactionId(row);
+        if (packedId == TransactionIds.NOT_PACKABLE) {
+            put(encode(store.transactionId(row)));
+            return;
+        }
+        boolean json = format == Format.JSON_LINES;
+        if (json) {
+            buffer[position++] = '"';
+        }
+        TransactionIds.unpack(packedId, buffer, position);
+        position += TransactionIds.LENGTH;
+        if (json) {
+            buffer[position++] = '"';
+        }
+    }
+
+    // ISO date in Kenyan time, or the original text if it was never read
+    private void putDate(ColumnarTransactionStore store, int row) throws IOException {
+        long timestamp = store.timestamp(row);
+        if (timestamp == SmsDates.UNKNOWN) {
+            put(encode(store.dateTime(row)));
+            return;
+        }
+        long local = timestamp + SmsDates.EAT_OFFSET_MILLIS;
+        long day = Math.floorDiv(local, SmsDates.MILLIS_PER_DAY);
+        long millisOfDay = Math.floorMod(local, SmsDates.MILLIS_PER_DAY);
+        if (day != cachedDay) {
+            int[] date = SmsDates.civilFromDays(day);
+            cachedDay = day;
+            cachedYear = date[0];
+            cachedMonth = date[1];
+            cachedDayOfMonth = date[2];
+        }
+
+        boolean json = format == Format.JSON_LINES;
+        if (json) {
+            buffer[position++] = '"';
+        }
+        putPadded(cachedYear, 4);
+        buffer[position++] = '-';
+        putPadded(cachedMonth, 2);
+        buffer[position++] = '-';
+        putPadded(cachedDayOfMonth, 2);
+        buffer[position++] = 'T';
+        putPadded(millisOfDay / SmsDates.MILLIS_PER_HOUR, 2);
+        buffer[position++] = ':';
+        putPadded(millisOfDay % SmsDates.MILLIS_PER_HOUR / SmsDates.MILLIS_PER_MINUTE, 2);
+        buffer[position++] = ':';
+        putPadded(millisOfDay % SmsDates.MILLIS_PER_MINUTE / 1000, 2);
+        buffer[position++] = '+';
+        buffer[position++] = '0';
+        buffer[position++] = '3';
+        buffer[position++] = ':';
+        buffer[position++] = '0';
+        buffer[position++] = '0';
+        if (json) {
+            buffer[position++] = '"';
+        }
+    }
+
+    // ----- Reports -----
+
+    private void csvReport(TransactionAggregates report, PartyDictionary parties) throws IOException {
+        put(CSV_REPORT_HEADER);
+        put(CSV_INCOME);
+        putCents(report.getTotalIncome());
+        put(CSV_EXPENSES);
+        putCents(report.getTotalExpenses());
+        buffer[position++] = '\n';
+        for (int id = 0; id < parties.size(); id++) {
+            if (report.partyCount(id) == 0) {
+                continue;
+            }
+            room(MAX_FIXED_RECORD);
+            put(CSV_PARTY);
+            put(party(id));
+            room(MAX_FIXED_RECORD);
+            buffer[position++] = ',';
+            putPadded(report.partyCount(id), 1);
+            buffer[position++] = ',';
+            putPadded(report.partyExpenseCount(id), 1);
+            buffer[position++] = ',';
+            putCents(report.partySpending(id));
+            buffer[position++] = '\n';
+        }
+        for (int hour = 0; hour < 24; hour++) {
+            room(MAX_FIXED_RECORD);
+            put(CSV_HOUR);
+            putPadded(hour, 1);
+            buffer[position++] = ',';
+            buffer[position++] = ',';
+            putPadded(report.hourlyExpenseCount(hour), 1);
+            buffer[position++] = ',';
+            putCents(report.hourlySpending(hour));
+            buffer[position++] = '\n';
+        }
+    }
+
+    private void jsonReport(TransactionAggregates report, PartyDictionary parties) throws IOException {
+        put(JSON_TOTAL);
+        putCents(report.getTotalIncome());
+        put(JSON_EXPENSES);
+        putCents(report.getTotalExpenses());
+        put(JSON_END);
+        for (int id = 0; id < parties.size(); id++) {
+            if (report.partyCount(id) == 0) {
+                continue;
+            }
+            room(MAX_FIXED_RECORD);
+            put(JSON_PARTY_LINE);
+            put(party(id));
+            room(MAX_FIXED_RECORD);
+            put(JSON_TRANSACTIONS);
+            putPadded(report.partyCount(id), 1);
+            put(JSON_PAYMENTS);
+            putPadded(report.partyExpenseCount(id), 1);
+            put(JSON_SPENT);
+            putCents(report.partySpending(id));
+            put(JSON_END);
+        }
+        for (int hour = 0; hour < 24; hour++) {
+            room(MAX_FIXED_RECORD);
+            put(JSON_HOUR_LINE);
+            putPadded(hour, 1);
+            put(JSON_PAYMENTS);
+            putPadded(report.hourlyExpenseCount(hour), 1);
+            put(JSON_SPENT);
+            putCents(report.hourlySpending(hour));
+            put(JSON_END);
+        }
+    }
+
+    private void binaryReport(TransactionAggregates report, PartyDictionary parties) throws IOException {
+        putInt64(BINARY_MAGIC);
+        buffer[position++] = TAG_TOTALS;
+        putInt64(report.getTotalIncome());
+        putInt64(report.getTotalExpenses());
+        for (int id = 0; id < parties.size(); id++) {
+            if (report.partyCount(id) == 0) {
+                continue;
+            }
+            sendParty(id);
+            room(MAX_FIXED_RECORD);
+            buffer[position++] = TAG_PARTY_TOTALS;
+            putInt32(id);
+            putInt32(report.partyCount(id));
+            putInt32(report.partyExpenseCount(id));
+            putInt64(report.partySpending(id));
+        }
+        for (int hour = 0; hour < 24; hour++) {
+            room(MAX_FIXED_RECORD);
+            buffer[position++] = TAG_HOUR;
+            buffer[position++] = (byte) hour;
+            putInt32(report.hourlyExpenseCount(hour));
+            putInt64(report.hourlySpending(hour));
+        }
+    }
+
+    // ----- Parties and text -----
+
+    // Encoded name of a party, made the first time the party is written
+    private byte[] party(int partyId) {
+        if (partyId >= partyText.length) {
+            partyText = Arrays.copyOf(partyText, Math.max(partyId + 1, partyText.length * 2));
+        }
+        byte[] text = partyText[partyId];
+        if (text == null) {
+            text = encode(encodedFor.nameOf(partyId));
+            partyText[partyId] = text;
+        }
+        return text;
+    }
+
+    // Binary: sends the party's name the first time its ID is used
+    private void sendParty(int partyId) throws IOException {
+        if (partyId >= sent.length) {
+            sent = Arrays.copyOf(sent, Math.max(partyId + 1, sent.length * 2));
+        }
+        if (sent[partyId]) {
+            return;
+        }
+        sent[partyId] = true;
+        byte[] name = party(partyId);
+        room(MAX_FIXED_RECORD);
+        buffer[position++] = TAG_PARTY;
+        putInt32(partyId);
+        putInt32(name.length);
+        put(name);
+    }
+
+    // Text as this format writes it: CSV field, JSON string, or plain UTF-8
+    private byte[] encode(String text) {
+        switch (format) {
+            case CSV:
+                return csvField(text).getBytes(StandardCharsets.UTF_8);
+            case JSON_LINES:
+                return jsonString(text).getBytes(StandardCharsets.UTF_8);
+            default:
+                return text.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    // Quotes a CSV field if it holds a comma, quote or line break
+    static String csvField(String text) {
+        boolean quote = false;
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        return quote ? '"' + text.replace("\"", "\"\"") + '"' : text;
+    }
+
+    // A JSON string literal, quotes included
+    static String jsonString(String text) {
+        StringBuilder result = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // ----- Buffer -----
+
+    // Makes sure `needed` bytes fit, writing out what is buffered if not
+    private void room(int needed) throws IOException {
+        if (buffer.length - position < needed) {
+            flush();
+        }
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        room(bytes.length);
+        if (bytes.length > buffer.length) {
+            // Larger than the whole buffer: write it directly
+            ByteBuffer large = ByteBuffer.wrap(bytes);
+            while (large.hasRemaining()) {
+                out.write(large);
+            }
+            written += bytes.length;
+            return;
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void flush() throws IOException {
+        view.clear().limit(position);
+        while (view.hasRemaining()) {
+            out.write(view);
+        }
+        written += position;
+        position = 0;
+    }
+
+    // Shillings with two decimals, e.g. -150 -> "-1.50"
+    private void putCents(long cents) {
+        long whole = cents / 100;
+        int fraction = (int) Math.abs(cents % 100);
+        if (cents < 0) {
+            buffer[position++] = '-';
+            whole = -whole;
+        }
+        putPadded(whole, 1);
+        buffer[position++] = '.';
+        buffer[position++] = (byte) ('0' + fraction / 10);
+        buffer[position++] = (byte) ('0' + fraction % 10);
+    }
+
+    // A non-negative number with at least `width` digits (zero padded)
+    private void putPadded(long value, int width) {
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, width);
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    private void putInt64(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void putInt32(int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (value >>> shift);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.pesaflow;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * TransactionIdSet - Remembers which transaction IDs have been seen
+ * Packed IDs go into an open-addressing hash table of longs, so checking
+ * an ID costs a few array reads and no allocation, and each ID takes
+ * about 16 bytes even with tens of millions of them. The rare ID that
+ * cannot be packed falls back to a HashSet of Strings.
+ */
+public class TransactionIdSet {
+
+    private static final long EMPTY = -1;  // Packed IDs are never negative
+
+    private long[] table;
+    private int size;
+    private int resizeAt;
+
+    private final Set<String> unpacked = new HashSet<>();
+
+    public TransactionIdSet() {
+        this(1024);
+    }
+
+    /**
+     * @param expected Number of IDs expected, to size the table up front
+     */
+    public TransactionIdSet(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        table = new long[capacity];
+        Arrays.fill(table, EMPTY);
+        resizeAt = capacity / 2;
+    }
+
+    /**
+     * Adds an ID
+     * @param id Transaction ID
+     * @return true if the ID was new, false if it was already there
+     */
+    public boolean add(String id) {
+        long packed = TransactionIds.pack(id);
+        return packed == TransactionIds.NOT_PACKABLE ? unpacked.add(id) : add(packed);
+    }
+
+    /**
+     * Adds a packed ID
+     * @param packed Value from TransactionIds.pack (not NOT_PACKABLE)
+     * @return true if the ID was new, false if it was already there
+     */
+    public boolean add(long packed) {
+        int mask = table.length - 1;
+        int slot = hash(packed) & mask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] == packed) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = packed;
+        if (++size >= resizeAt) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * @param id Transaction ID
+     * @return true if the ID has been added before
+     */
+    public boolean contains(String id) {
+        long packed = TransactionIds.pack(id);
+        return packed == TransactionIds.NOT_PACKABLE ? unpacked.contains(id) : contains(packed);
+    }
+
+    /**
+     * @param packed Value from TransactionIds.pack
+     * @return true if the ID has been added before
+     */
+    public boolean contains(long packed) {
+        int mask = table.length - 1;
+        int slot = hash(packed) & mask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] == packed) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return Number of distinct IDs
+     */
+    public int size() {
+        return size + unpacked.size();
+    }
+
+    private void grow() {
+        long[] old = table;
+        table = new long[old.length * 2];
+        Arrays.fill(table, EMPTY);
+        resizeAt = table.length / 2;
+        int mask = table.length - 1;
+        for (long packed : old) {
+            if (packed != EMPTY) {
+                int slot = hash(packed) & mask;
+                while (table[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = packed;
+            }
+        }
+    }
+
+    // Spreads the bits so nearby IDs land in different slots
+    static int hash(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+}
@@ -0,0 +1,104 @@
+package com.pesaflow;
+
+/**
+ * TransactionIds - Packs M-Pesa transaction IDs into a long
+ * An ID such as "RBK4H8N2M1" is ten characters from A-Z and 0-9, so it
+ * can be read as a base-36 number. 36^10 is about 3.7 * 10^15, which fits
+ * easily in a long. IDs that do not have this shape cannot be packed.
+ */
+public final class TransactionIds {
+
+    // Returned by pack when an ID does not have the usual shape
+    public static final long NOT_PACKABLE = -1;
+
+    static final int LENGTH = 10;
+
+    // Longest ID accepted at all (unusual IDs are kept, just not packed)
+    static final int MAX_LENGTH = 32;
+    private static final char[] DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+
+    private TransactionIds() {
+    }
+
+    /**
+     * @param id Transaction ID
+     * @return Packed ID, or NOT_PACKABLE
+     */
+    public static long pack(CharSequence id) {
+        return id == null ? NOT_PACKABLE : pack(id, 0, id.length());
+    }
+
+    /**
+     * Checks that an ID is one word of ASCII letters and digits
+     * Anything else (an empty ID, or the first word of a message that has
+     * no ID, such as "Confirmed.") is not a transaction ID.
+     * @param text Text containing the ID
+     * @param start Index of the first character
+     * @param end Index after the last character
+     * @return true if the ID has 1 to MAX_LENGTH letters and digits
+     */
+    public static boolean isWellFormed(CharSequence text, int start, int end) {
+        if (end <= start || end - start > MAX_LENGTH) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'A' && c <= 'Z') && !(c >= 'a' && c <= 'z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Packs an ID found inside a longer text, without making a String
+     * @param text Text containing the ID
+     * @param start Index of the first character
+     * @param end Index after the last character
+     * @return Packed ID, or NOT_PACKABLE
+     */
+    public static long pack(CharSequence text, int start, int end) {
+        if (end - start != LENGTH) {
+            return NOT_PACKABLE;
+        }
+        long packed = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'A' && c <= 'Z') {
+                digit = c - 'A' + 10;
+            } else {
+                return NOT_PACKABLE;
+            }
+            packed = packed * 36 + digit;
+        }
+        return packed;
+    }
+
+    /**
+     * @param packed Value returned by pack
+     * @return The original ten-character ID
+     */
+    public static String unpack(long packed) {
+        char[] id = new char[LENGTH];
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            id[i] = DIGITS[(int) (packed % 36)];
+            packed /= 36;
+        }
+        return new String(id);
+    }
+
+    /**
+     * Writes the ID as ASCII bytes, without making a String
+     * @param packed Value returned by pack
+     * @param out Receives exactly LENGTH bytes at out[offset...]
+     */
+    static void unpack(long packed, byte[] out, int offset) {
+        for (int i = LENGTH - 1; i >= 0; i--) {
+            out[offset + i] = (byte) DIGITS[(int) (packed % 36)];
+            packed /= 36;
+        }
+    }
+}
@@ -0,0 +1,503 @@
+package com.pesaflow;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * TransactionLog - Append-only write-ahead log of added transactions
+ * Every transaction a manager accepts is written here, so after a crash
+ * or restart the log can be replayed to rebuild the store and totals.
+ *
+ * Each entry is [length][CRC32][fields]. On open, the log is scanned and
+ * anything after the last complete, correctly checksummed entry (a write
+ * torn by a crash) is cut off. An entry larger than 1 MB could not be
+ * told apart from such garbage, so append refuses it instead of writing it.
+ *
+ * fsync is the slow part, so it is shared ("group commit"):
+ *   SYNC     add returns only after its entry is on disk. Threads that
+ *            add at the same time wait for one fsync together.
+ *   BATCHED  add returns at once. A background thread writes and fsyncs
+ *            when batchSize entries are waiting or maxDelayMillis has
+ *            passed, so a crash loses at most that window.
+ */
+public class TransactionLog implements Closeable {
+
+    /**
+     * How long an add waits for its entry to be on disk
+     */
+    public enum Durability {
+        SYNC,
+        BATCHED
+    }
+
+    private static final int ENTRY_HEADER = 8;       // length + CRC32
+    private static final int MAX_ENTRY = 1 << 20;    // refused on append, treated as corrupt on open
+
+    private final FileChannel channel;
+    private final Durability durability;
+    private final int batchSize;
+    private final long maxDelayMillis;
+    private final Thread flusher;
+
+    // Guarded by this: entries waiting to be written, and sequence numbers
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long appended;      // Entries handed to append()
+    private long durable;       // Entries known to be on disk
+    private boolean flushing;   // A thread is writing outside the lock
+    private boolean closed;
+    private IOException failure;
+
+    private final CRC32 crc = new CRC32();
+    private long position;      // Where the next write goes
+    private final long replayEnd;
+
+    /**
+     * Opens a log that waits for every entry to reach the disk
+     * @param file Log file; created if missing
+     * @throws IOException If the file cannot be opened
+     */
+    public TransactionLog(Path file) throws IOException {
+        this(file, Durability.SYNC, 1, 0);
+    }
+
+    /**
+     * @param file Log file; created if missing
+     * @param durability SYNC or BATCHED (see class comment)
+     * @param batchSize BATCHED: fsync once this many entries are waiting
+     * @param maxDelayMillis BATCHED: fsync at least this often while entries wait
+     * @throws IOException If the file cannot be opened
+     */
+    public TransactionLog(Path file, Durability durability, int batchSize, long maxDelayMillis)
+            throws IOException {
+        if (batchSize < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("batchSize must be >= 1 and maxDelayMillis >= 0");
+        }
+        this.durability = durability;
+        this.batchSize = batchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // Find where the good entries end and drop any torn tail
+        this.replayEnd = scan(null);
+        if (channel.size() > replayEnd) {
+            channel.truncate(replayEnd);
+            channel.force(false);
+        }
+        this.position = replayEnd;
+
+        if (durability == Durability.BATCHED) {
+            flusher = new Thread(this::flushLoop, "pesaflow-log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Feeds every entry that was in the log when it was opened to the consumer
+     * @param consumer Receives the transactions in the order they were logged
+     * @return Number of entries replayed
+     * @throws IOException If the file cannot be read
+     */
+    public long replay(Consumer<Transaction> consumer) throws IOException {
+        long[] count = {0};
+        scan(transaction -> {
+            consumer.accept(transaction);
+            count[0]++;
+        });
+        return count[0];
+    }
+
+    /**
+     * Logs one row of a store
+     * With SYNC durability this returns once the entry is on disk.
+     * @param store Store holding the row
+     * @param row Row that was just added
+     * @throws UncheckedIOException If an earlier or this write failed
+     * @throws IllegalArgumentException If the entry would be over 1 MB (nothing is logged)
+     */
+    public void append(ColumnarTransactionStore store, int row) {
+        long packedId = store.packedTransactionId(row);
+        long timestamp = store.timestamp(row);
+        appendEntry(packedId, timestamp, store.amountCents(row), store.balanceCents(row),
+                store.category(row), store.type(row), store.getParties().nameOf(store.partyId(row)),
+                packedId == TransactionIds.NOT_PACKABLE ? store.transactionId(row) : null,
+                timestamp == SmsDates.UNKNOWN ? store.dateTime(row) : null);
+    }
+
+    /**
+     * Logs a transaction before it is stored
+     * With SYNC durability this returns once the entry is on disk.
+     * @param transaction Transaction about to be added
+     * @throws UncheckedIOException If an earlier or this write failed
+     * @throws IllegalArgumentException If the entry would be over 1 MB (nothing is logged)
+     */
+    public void append(Transaction transaction) {
+        long packedId = TransactionIds.pack(transaction.getTransactionId());
+        long timestamp = transaction.getTimestamp();
+        appendEntry(packedId, timestamp, transaction.getAmountCents(), transaction.getBalanceCents(),
+                ParsedSms.categoryCode(transaction.getCategory()), ParsedSms.typeCode(transaction.getType()),
+                transaction.getParty(),
+                packedId == TransactionIds.NOT_PACKABLE ? transaction.getTransactionId() : null,
+                timestamp == SmsDates.UNKNOWN ? transaction.getDateTime() : null);
+    }
+
+    /**
+     * Logs a parsed SMS before it is stored
+     * With SYNC durability this returns once the entry is on disk.
+     * @param sms Record filled by MPesaParser.parseInto
+     * @throws UncheckedIOException If an earlier or this write failed
+     * @throws IllegalArgumentException If the entry would be over 1 MB (nothing is logged)
+     */
+    public void append(ParsedSms sms) {
+        long packedId = sms.getPackedTransactionId();
+        long timestamp = sms.getTimestamp();
+        appendEntry(packedId, timestamp, sms.getAmountCents(), sms.getBalanceCents(),
+                sms.getCategory(), sms.getType(), sms.getParty(),
+                packedId == TransactionIds.NOT_PACKABLE ? sms.getTransactionId() : null,
+                timestamp == SmsDates.UNKNOWN ? sms.getDateTime() : null);
+    }
+
+    // id and dateTime are only given when the packed ID and timestamp cannot hold them
+    private void appendEntry(long packedId, long timestamp, long amountCents, long balanceCents,
+                             int category, int type, String party, String id, String dateTime) {
+        long sequence;
+        synchronized (this) {
+            checkOpen();
+            encode(packedId, timestamp, amountCents, balanceCents, category, type, party, id, dateTime);
+            sequence = ++appended;
+            if (durability == Durability.BATCHED) {
+                if (appended - durable >= batchSize) {
+                    notifyAll();
+                }
+                return;
+            }
+        }
+        awaitDurable(sequence);
+    }
+
+    /**
+     * Waits until everything logged so far is on disk
+     */
+    public void sync() {
+        long sequence;
+        synchronized (this) {
+            sequence = appended;
+        }
+        awaitDurable(sequence);
+    }
+
+    /**
+     * Empties the log, e.g. after its entries were saved elsewhere
+     * Call it while no other thread is adding transactions.
+     * @throws IOException If the file cannot be truncated
+     */
+    public void truncate() throws IOException {
+        sync();
+        synchronized (this) {
+            while (flushing) {
+                waitQuietly(0);
+            }
+            channel.truncate(0);
+            channel.force(false);
+            position = 0;
+        }
+    }
+
+    /**
+     * @return Size of the log file in bytes, including entries not yet written
+     */
+    public synchronized long size() {
+        return position + pending.position();
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Writes anything still waiting and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            if (flusher != null) {
+                try {
+                    flusher.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            channel.close();
+        }
+    }
+
+    // Group commit: the first waiting thread writes and fsyncs for everyone
+    // who appended before it started; the rest wait for that fsync
+    private void awaitDurable(long sequence) {
+        while (true) {
+            ByteBuffer toWrite;
+            long target;
+            long at;
+            synchronized (this) {
+                while (true) {
+                    if (failure != null) {
+                        throw new UncheckedIOException(failure);
+                    }
+                    if (durable >= sequence) {
+                        return;
+                    }
+                    if (!flushing) {
+                        break;
+                    }
+                    waitQuietly(0);
+                }
+                // Swap buffers so others can keep appending while we write
+                flushing = true;
+                toWrite = pending;
+                pending = spare;
+                spare = toWrite;
+                target = appended;
+                at = position;
+                position += toWrite.position();
+            }
+
+            IOException error = null;
+            try {
+                toWrite.flip();
+                while (toWrite.hasRemaining()) {
+                    at += channel.write(toWrite, at);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                toWrite.clear();
+                flushing = false;
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durable = target;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + maxDelayMillis;
+                while (!closed && appended - durable < batchSize) {
+                    long now = System.currentTimeMillis();
+                    if (appended > durable && now >= deadline) {
+                        break;
+                    }
+                    waitQuietly(appended > durable ? Math.max(1, deadline - now) : maxDelayMillis + 1);
+                }
+                if (closed && appended == durable) {
+                    return;
+                }
+            }
+            try {
+                sync();
+            } catch (UncheckedIOException e) {
+                return;  // Reported to the next caller of append()
+            }
+        }
+    }
+
+    private void waitQuietly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the log", e);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Log is closed");
+        }
+        if (failure != null) {
+            throw new UncheckedIOException(failure);
+        }
+    }
+
+    // Appends one entry to the pending buffer (lock held); an entry that
+    // turns out too large is taken back out before anyone can see it
+    private void encode(long packedId, long timestamp, long amountCents, long balanceCents,
+                        int category, int type, String party, String id, String dateTime) {
+        int maxBody = 8 * 4 + 1 + maxBytes(party) + maxBytes(id) + maxBytes(dateTime);
+        ensureRoom(ENTRY_HEADER + maxBody);
+
+        int start = pending.position();
+        pending.position(start + ENTRY_HEADER);
+        pending.putLong(packedId).putLong(timestamp)
+                .putLong(amountCents).putLong(balanceCents)
+                .put((byte) (category << 4 | type));  // Older logs: category 0
+        putString(party);
+        putString(id);
+        putString(dateTime);
+        int end = pending.position();
+
+        int length = end - start - ENTRY_HEADER;
+        if (length > MAX_ENTRY) {
+            pending.position(start);
+            throw new IllegalArgumentException("Log entry of " + length + " bytes is over the "
+                    + MAX_ENTRY + "-byte limit (party name too long?)");
+        }
+        crc.reset();
+        crc.update(pending.array(), start + ENTRY_HEADER, length);
+        pending.putInt(start, length);
+        pending.putInt(start + 4, (int) crc.getValue());
+    }
+
+    private void ensureRoom(int bytes) {
+        if (pending.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+    }
+
+    private static int maxBytes(String text) {
+        return 4 + (text == null ? 0 : text.length() * 3);
+    }
+
+    // Length-prefixed UTF-8; -1 length means "no value"
+    private void putString(String text) {
+        if (text == null) {
+            pending.putInt(-1);
+            return;
+        }
+        int lengthAt = pending.position();
+        pending.position(lengthAt + 4);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                // Rare: fall back to the JDK encoder for the whole string
+                pending.position(lengthAt + 4);
+                pending.put(text.getBytes(StandardCharsets.UTF_8));
+                break;
+            }
+            pending.put((byte) c);
+        }
+        pending.putInt(lengthAt, pending.position() - lengthAt - 4);
+    }
+
+    /**
+     * Reads entries from the start of the file
+     * @param consumer Receives each entry, or null to only find the end
+     * @return Offset just after the last good entry
+     */
+    private long scan(Consumer<Transaction> consumer) throws IOException {
+        long end = consumer == null ? channel.size() : replayEnd;
+        ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+        CRC32 check = new CRC32();
+        long offset = 0;
+        long bufferStart = 0;
+        buffer.limit(0);
+
+        while (offset < end) {
+            // Make sure the whole entry is in the buffer
+            int headerAt = (int) (offset - bufferStart);
+            if (buffer.limit() - headerAt < ENTRY_HEADER) {
+                bufferStart = refill(buffer, offset, end);
+                headerAt = 0;
+                if (buffer.limit() < ENTRY_HEADER) {
+                    break;
+                }
+            }
+            int length = buffer.getInt(headerAt);
+            int expectedCrc = buffer.getInt(headerAt + 4);
+            if (length < 0 || length > MAX_ENTRY || offset + ENTRY_HEADER + length > end) {
+                break;
+            }
+            if (buffer.limit() - headerAt < ENTRY_HEADER + length) {
+                if (buffer.capacity() < ENTRY_HEADER + length) {
+                    buffer = ByteBuffer.allocate(ENTRY_HEADER + length);
+                }
+                bufferStart = refill(buffer, offset, end);
+                headerAt = 0;
+            }
+            int bodyAt = headerAt + ENTRY_HEADER;
+            check.reset();
+            check.update(buffer.array(), bodyAt, length);
+            if ((int) check.getValue() != expectedCrc) {
+                break;
+            }
+            if (consumer != null) {
+                consumer.accept(decode(buffer, bodyAt));
+            }
+            offset += ENTRY_HEADER + length;
+        }
+        return offset;
+    }
+
+    // Fills the buffer from the file starting at offset; returns that offset
+    private long refill(ByteBuffer buffer, long offset, long end) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return offset;
+    }
+
+    private static Transaction decode(ByteBuffer buffer, int at) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(at);
+        long packedId = view.getLong();
+        long timestamp = view.getLong();
+        long amount = view.getLong();
+        long balance = view.getLong();
+        int typeAndCategory = view.get() & 0xFF;
+        String party = getString(view);
+        String id = getString(view);
+        String dateTime = getString(view);
+
+        if (id == null) {
+            id = TransactionIds.unpack(packedId);
+        }
+        if (dateTime == null) {
+            dateTime = SmsDates.format(timestamp);
+        }
+        return new Transaction(id, ParsedSms.typeName(typeAndCategory & 0x0F), amount, party, dateTime,
+                balance, timestamp, ParsedSms.categoryName(typeAndCategory >>> 4));
+    }
+
+    private static String getString(ByteBuffer view) {
+        int length = view.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String text = new String(view.array(), view.position(), length, StandardCharsets.UTF_8);
+        view.position(view.position() + length);
+        return text;
+    }
+}
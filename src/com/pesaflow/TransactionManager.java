@@ -1,51 +1,241 @@
 package com.pesaflow;
 
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * TransactionManager - Manages all transactions and performs analysis
  * This class stores transactions and calculates spending patterns
+ *
+ * Transactions are kept in a ColumnarTransactionStore, and the summary
+ * numbers are kept up to date in TransactionAggregates as each transaction
+ * is added. Summary queries therefore cost O(1) or O(parties), no matter
+ * how much history is loaded.
+ *
+ * Adding is idempotent: a transaction whose ID was already added is
+ * skipped, so re-importing an overlapping SMS backup does not double-count.
+ *
+ * Nothing is printed while adding. The add methods return an IngestStatus
+ * and every outcome is counted in IngestMetrics.
  */
 public class TransactionManager {
     
-    // ArrayList to store all transactions
-    private List<Transaction> transactions;
+    // Column store holding all transactions
+    private final ColumnarTransactionStore store;
     
-    // Constructor - initializes the transaction list
+    // Read-only list view that rebuilds Transaction objects on demand
+    private final List<Transaction> transactions;
+    
+    // Running totals, updated on every add
+    private final TransactionAggregates aggregates;
+    
+    // IDs already added, to skip duplicates
+    private final TransactionIdSet seenIds;
+    
+    // Ingest counters and stage latencies
+    private final IngestMetrics metrics;
+    
+    // How many top payees are kept ranked as transactions arrive
+    private static final int TOP_PARTIES_KEPT = 64;
+    
+    // Reused for every SMS parsed by addTransactionFromSMS
+    private final ParsedSms parsed = new ParsedSms();
+
+    // Write-ahead log of added transactions, or null when not logging
+    private TransactionLog log;
+
+    // Hour/day/week/month totals for weekly and monthly reports. Built on
+    // the first report that needs it, then kept up to date on every add
+    private SpendingRollup rollup;
+    
+    // Top payees by amount spent and by number of payments, kept as money goes out
+    private final PartyRanking payeesByAmount;
+    private final PartyRanking payeesByCount;
+    
+    // Used for reports over many rows, or null to always use one thread
+    private ParallelAnalytics parallel;
+    
+    // Checks that each SMS balance follows from the one before it. Built on
+    // the first getBalanceReconciler() call (so loading a long history does
+    // not pay for it), then kept up to date on every add
+    private BalanceReconciler balances;
+    private boolean checkBalances = true;
+    
+    // What a send may cost on top of its amount, for the balance check
+    private BalanceReconciler.FeeSchedule balanceFees = MPesaTariff::maxFeeCents;
+    
+    // Results of recent queries, or null to always compute them
+    private QueryCache cache;
+    
+    // Checks each new payment for unusual amounts and bursts, or null when off
+    private AnomalyDetector anomalies;
+    
+    // Longer date-range results are not cached (they would hold many Transactions)
+    private static final int MAX_CACHED_TRANSACTIONS = 10_000;
+    
+    // Constructor - initializes the transaction store
     public TransactionManager() {
-        this.transactions = new ArrayList<>();
+        this(new ColumnarTransactionStore());
+    }
+    
+    /**
+     * Create a manager on top of an existing store
+     * @param store Store that holds the transactions
+     */
+    public TransactionManager(ColumnarTransactionStore store) {
+        this(store, new IngestMetrics());
+    }
+    
+    /**
+     * Create a manager on top of an existing store
+     * @param store Store that holds the transactions
+     * @param metrics Where to count ingest outcomes (may be shared)
+     */
+    public TransactionManager(ColumnarTransactionStore store, IngestMetrics metrics) {
+        this.store = store;
+        this.metrics = metrics;
+        // A large loaded history is totalled in parallel (small ones stay on this thread)
+        this.aggregates = new ParallelAnalytics().aggregate(store);
+        this.payeesByAmount = new PartyRanking(TOP_PARTIES_KEPT, aggregates::partySpending);
+        this.payeesByCount = new PartyRanking(TOP_PARTIES_KEPT, aggregates::partyExpenseCount);
+        // Rankings are built from the totals on the first query
+        this.payeesByAmount.invalidate();
+        this.payeesByCount.invalidate();
+        this.seenIds = new TransactionIdSet(Math.max(1024, store.size()));
+        for (int row = 0; row < store.size(); row++) {
+            long packed = store.packedTransactionId(row);
+            if (packed == TransactionIds.NOT_PACKABLE) {
+                seenIds.add(store.transactionId(row));
+            } else {
+                seenIds.add(packed);
+            }
+        }
+        this.transactions = new AbstractList<Transaction>() {
+            @Override
+            public Transaction get(int index) {
+                return store.get(index);
+            }
+            
+            @Override
+            public int size() {
+                return store.size();
+            }
+        };
     }
     
     /**
      * Add a new transaction to the list
      * @param transaction The transaction to add
+     * @return true if added, false if null or its ID was already added
+     */
+    public boolean addTransaction(Transaction transaction) {
+        if (transaction == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        boolean added = append(transaction);
+        metrics.recordStore(System.nanoTime() - start);
+        metrics.count(added ? IngestStatus.ADDED : IngestStatus.DUPLICATE);
+        return added;
+    }
+    
+    /**
+     * Store a transaction and update the running totals, without printing
+     * @param transaction The transaction to add (not null)
+     * @return true if added, false if its ID was already added
      */
-    public void addTransaction(Transaction transaction) {
-        if (transaction != null) {
-            transactions.add(transaction);
-            System.out.println("Transaction added: " + transaction.getTransactionId());
+    boolean append(Transaction transaction) {
+        if (seenIds.contains(transaction.getTransactionId())) {
+            return false;
+        }
+        // Logged before anything changes: if the log fails, the transaction
+        // was not added and can simply be tried again
+        if (log != null) {
+            log.append(transaction);
+        }
+        seenIds.add(transaction.getTransactionId());
+        stored(store.append(transaction));
+        return true;
+    }
+    
+    /**
+     * Store a parsed SMS and update the running totals, without printing
+     * @param sms Record filled by MPesaParser.parseInto
+     * @return true if added, false if its ID was already added
+     */
+    boolean append(ParsedSms sms) {
+        long packed = sms.getPackedTransactionId();
+        String unpacked = packed == TransactionIds.NOT_PACKABLE ? sms.getTransactionId() : null;
+        if (unpacked != null ? seenIds.contains(unpacked) : seenIds.contains(packed)) {
+            return false;
+        }
+        if (log != null) {
+            log.append(sms);
+        }
+        if (unpacked != null) {
+            seenIds.add(unpacked);
+        } else {
+            seenIds.add(packed);
+        }
+        stored(store.append(sms));
+        return true;
+    }
+    
+    // Called for each newly stored row
+    private void stored(int row) {
+        aggregates.add(store.type(row), store.amountCents(row), store.partyId(row), store.timestamp(row));
+        if (rollup != null) {
+            rollup.add(store.type(row), store.amountCents(row), store.partyId(row), store.timestamp(row));
+        }
+        if (store.type(row) == ParsedSms.TYPE_SENT) {
+            int partyId = store.partyId(row);
+            payeesByAmount.update(partyId, aggregates.partySpending(partyId));
+            payeesByCount.update(partyId, aggregates.partyExpenseCount(partyId));
+        }
+        if (balances != null) {
+            balances.add(row);
+        }
+        if (cache != null) {
+            cache.invalidate(store.type(row), store.partyId(row), store.timestamp(row));
+        }
+        if (anomalies != null) {
+            anomalies.check(row, store.type(row), store.amountCents(row), store.partyId(row), store.timestamp(row));
         }
     }
     
     /**
      * Add a transaction by parsing an SMS message
      * @param smsMessage The M-Pesa SMS to parse
+     * @return ADDED, DUPLICATE, or the reason the message was rejected
      */
-    public void addTransactionFromSMS(String smsMessage) {
-        Transaction transaction = MPesaParser.parseSMS(smsMessage);
-        if (transaction != null) {
-            addTransaction(transaction);
-        } else {
-            System.out.println("Failed to parse SMS message");
+    public IngestStatus addTransactionFromSMS(CharSequence smsMessage) {
+        long start = System.nanoTime();
+        boolean ok = MPesaParser.parseInto(smsMessage, parsed);
+        long parsedAt = System.nanoTime();
+        metrics.recordParse(parsedAt - start);
+        
+        IngestStatus status = IngestStatus.check(ok, parsed);
+        if (status == null) {
+            status = append(parsed) ? IngestStatus.ADDED : IngestStatus.DUPLICATE;
+            metrics.recordStore(System.nanoTime() - parsedAt);
         }
+        metrics.count(status);
+        return status;
     }
     
     /**
      * Get all transactions
-     * @return List of all transactions
+     * Transaction objects are rebuilt from the store as the list is read
+     * @return Read-only list of all transactions
      */
     public List<Transaction> getAllTransactions() {
         return transactions;
@@ -56,42 +246,180 @@ public class TransactionManager {
      * @return Count of transactions
      */
     public int getTransactionCount() {
-        return transactions.size();
+        return store.size();
     }
     
     /**
-     * Calculate total expenses (money going out)
-     * @return Total amount spent
+     * Load a manager from a history saved with save()
+     * @param base Path without extension, e.g. "data/history"
+     * @return Manager holding every saved transaction
+     * @throws IOException If the files are missing or corrupt
      */
-    public double getTotalExpenses() {
-        double total = 0;
-        for (Transaction t : transactions) {
-            if (t.isExpense()) {
-                total += t.getAmount();
-            }
+    public static TransactionManager load(Path base) throws IOException {
+        return new TransactionManager(TransactionSegment.load(base));
+    }
+    
+    /**
+     * Save the history to disk, appending only what was added since last time
+     * @param base Path without extension, e.g. "data/history"
+     * @return Number of transactions written
+     * @throws IOException If the files cannot be written
+     */
+    public int save(Path base) throws IOException {
+        return TransactionSegment.save(base, store);
+    }
+    
+    /**
+     * Replay a write-ahead log into this manager, then log every new add to it
+     * Entries already in the store (for example saved to a segment before
+     * the restart) are skipped as duplicates.
+     * @param log Log opened on the file to recover from and append to
+     * @return Number of transactions restored from the log
+     * @throws IOException If the log cannot be read
+     */
+    public int attachLog(TransactionLog log) throws IOException {
+        int before = store.size();
+        this.log = null;
+        log.replay(this::append);
+        this.log = log;
+        return store.size() - before;
+    }
+    
+    /**
+     * Log new adds to this log from now on, without replaying it
+     * @param log Shared log, or null to stop logging
+     */
+    void useLog(TransactionLog log) {
+        this.log = log;
+    }
+    
+    /**
+     * Save the history to disk and empty the write-ahead log
+     * After this, a restart only has to load the segment and replay
+     * what was added since.
+     * @param base Path without extension, e.g. "data/history"
+     * @return Number of transactions written to the segment
+     * @throws IOException If the files cannot be written
+     */
+    public int checkpoint(Path base) throws IOException {
+        int written = save(base);
+        if (log != null) {
+            log.truncate();
         }
-        return total;
+        return written;
     }
     
     /**
-     * Calculate total income (money coming in)
-     * @return Total amount received
+     * Write every transaction to a channel (a file, socket or stdout)
+     * @param format CSV, JSON_LINES or BINARY
+     * @param channel Where to write; left open
+     * @return Number of bytes written
+     * @throws IOException If the channel cannot be written
      */
-    public double getTotalIncome() {
-        double total = 0;
-        for (Transaction t : transactions) {
-            if (t.isIncome()) {
-                total += t.getAmount();
-            }
+    public long exportTransactions(TransactionExporter.Format format, WritableByteChannel channel) throws IOException {
+        return new TransactionExporter(format).exportTransactions(store, channel);
+    }
+    
+    /**
+     * Write the running totals (income, expenses, per party and per hour)
+     * @param format CSV, JSON_LINES or BINARY
+     * @param channel Where to write; left open
+     * @return Number of bytes written
+     * @throws IOException If the channel cannot be written
+     */
+    public long exportSummary(TransactionExporter.Format format, WritableByteChannel channel) throws IOException {
+        return new TransactionExporter(format).exportReport(aggregates, store.getParties(), channel);
+    }
+    
+    /**
+     * Get the column store behind this manager
+     * @return The transaction store
+     */
+    public ColumnarTransactionStore getStore() {
+        return store;
+    }
+    
+    /**
+     * Get the ingest counters for this manager
+     * @return Metrics, also publishable through JMX
+     */
+    public IngestMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Get the running totals kept by this manager
+     * @return The aggregates, updated on every add
+     */
+    public TransactionAggregates getAggregates() {
+        return aggregates;
+    }
+    
+    /**
+     * Balance check over all transactions, kept up to date as they are added
+     * The first call builds it from the whole history. A send may leave
+     * the balance lower by up to its M-Pesa charge (see setBalanceFeeSchedule).
+     * @return Reconciler with the gap and out-of-order counts, or null if
+     *         this manager only holds part of a history (a stripe)
+     */
+    public BalanceReconciler getBalanceReconciler() {
+        if (balances == null && checkBalances) {
+            balances = new BalanceReconciler(store, balanceFees);
+            balances.addAll();
         }
-        return total;
+        return balances;
+    }
+    
+    /**
+     * Change what the balance check allows a send to cost
+     * The default is MPesaTariff; use a fixed 0 to require exact balances.
+     * The check is rebuilt on the next getBalanceReconciler() call.
+     * @param fees Most each send may cost, by category and amount
+     */
+    public void setBalanceFeeSchedule(BalanceReconciler.FeeSchedule fees) {
+        balanceFees = fees;
+        balances = null;
+    }
+    
+    /**
+     * Start a query that combines filters on type, party, amount and time
+     * Nothing is read until the results are; see TransactionQuery.
+     * @return New query over all transactions
+     */
+    public TransactionQuery query() {
+        return new TransactionQuery(store);
+    }
+    
+    /**
+     * Turns off the balance check, for managers that hold only part of a
+     * history (their balances never chain, so every row would be a gap)
+     */
+    void skipBalanceCheck() {
+        checkBalances = false;
+        balances = null;
+    }
+
+    /**
+     * Calculate total expenses (money going out)
+     * @return Total amount spent, in cents
+     */
+    public long getTotalExpenses() {
+        return aggregates.getTotalExpenses();
+    }
+    
+    /**
+     * Calculate total income (money coming in)
+     * @return Total amount received, in cents
+     */
+    public long getTotalIncome() {
+        return aggregates.getTotalIncome();
     }
     
     /**
      * Calculate net change (income - expenses)
-     * @return Net change in balance
+     * @return Net change in balance, in cents
      */
-    public double getNetChange() {
+    public long getNetChange() {
         return getTotalIncome() - getTotalExpenses();
     }
     
@@ -100,106 +428,343 @@ public class TransactionManager {
      * @return Map of party names to transaction counts
      */
     public Map<String, Integer> getMostFrequentParties() {
-        Map<String, Integer> partyCounts = new HashMap<>();
-        
-        // Count transactions per party
-        for (Transaction t : transactions) {
-            String party = t.getParty();
-            partyCounts.put(party, partyCounts.getOrDefault(party, 0) + 1);
-        }
-        
-        return partyCounts;
+        return cached(QueryCache.FREQUENT_PARTIES, Long.MIN_VALUE, Long.MAX_VALUE, QueryCache.ALL_PARTIES,
+                () -> partyCounts(aggregates));
     }
     
     /**
      * Find which account you spend money with most
-     * @return Map of party names to total amounts spent
+     * @return Map of party names to total amounts spent, in cents
      */
-    public Map<String, Double> getSpendingByParty() {
-        Map<String, Double> partySpending = new HashMap<>();
-        
-        // Sum expenses per party
-        for (Transaction t : transactions) {
-            if (t.isExpense()) {
-                String party = t.getParty();
-                double currentAmount = partySpending.getOrDefault(party, 0.0);
-                partySpending.put(party, currentAmount + t.getAmount());
-            }
-        }
-        
-        return partySpending;
+    public Map<String, Long> getSpendingByParty() {
+        return cached(QueryCache.SPENDING_BY_PARTY, Long.MIN_VALUE, Long.MAX_VALUE, QueryCache.ALL_PARTIES,
+                () -> partySpending(aggregates));
     }
     
     /**
      * Analyze spending by hour of day
      * This helps identify when you spend money most
-     * @return Map of hours to total spending
+     * @return Map of hours to total spending, in cents
      */
-    public Map<Integer, Double> getSpendingByHour() {
-        Map<Integer, Double> hourlySpending = new HashMap<>();
-        
-        for (Transaction t : transactions) {
-            if (t.isExpense()) {
-                // Extract hour from dateTime (format: "15/1/26 2:30 PM")
-                int hour = extractHour(t.getDateTime());
-                if (hour != -1) {
-                    double currentAmount = hourlySpending.getOrDefault(hour, 0.0);
-                    hourlySpending.put(hour, currentAmount + t.getAmount());
-                }
+    public Map<Integer, Long> getSpendingByHour() {
+        return cached(QueryCache.SPENDING_BY_HOUR, Long.MIN_VALUE, Long.MAX_VALUE, QueryCache.ALL_PARTIES,
+                () -> hourlySpending(aggregates));
+    }
+    
+    /**
+     * Transaction counts per party for a time window, e.g. one month
+     * @param from Start as epoch milliseconds (inclusive)
+     * @param to End as epoch milliseconds (exclusive)
+     * @return Map of party names to transaction counts
+     */
+    public Map<String, Integer> getMostFrequentParties(long from, long to) {
+        return cached(QueryCache.FREQUENT_PARTIES, from, to, QueryCache.ALL_PARTIES,
+                () -> partyCounts(getReport(from, to)));
+    }
+    
+    /**
+     * The parties you have spent the most with
+     * Answered from a ranking kept up to date on every add, so the cost
+     * does not grow with the number of parties (for k up to 64).
+     * @param k How many parties to return
+     * @return Party names to total spent in cents, largest first
+     */
+    public Map<String, Long> getTopPayeesByAmount(int k) {
+        Map<String, Long> top = new LinkedHashMap<>();
+        for (int id : payeesByAmount.top(k, store.getParties().size())) {
+            top.put(store.getParties().nameOf(id), aggregates.partySpending(id));
+        }
+        return top;
+    }
+    
+    /**
+     * The parties you have paid most often
+     * @param k How many parties to return
+     * @return Party names to number of payments, most first
+     */
+    public Map<String, Integer> getTopPayeesByCount(int k) {
+        Map<String, Integer> top = new LinkedHashMap<>();
+        for (int id : payeesByCount.top(k, store.getParties().size())) {
+            top.put(store.getParties().nameOf(id), aggregates.partyExpenseCount(id));
+        }
+        return top;
+    }
+    
+    /**
+     * The hour of day with the most spending
+     * @return Hour (0-23), or -1 if nothing has been spent
+     */
+    public int getPeakSpendingHour() {
+        int peakHour = -1;
+        long maxSpending = 0;
+        for (int hour = 0; hour < 24; hour++) {
+            if (aggregates.hourlySpending(hour) > maxSpending) {
+                maxSpending = aggregates.hourlySpending(hour);
+                peakHour = hour;
             }
         }
-        
-        return hourlySpending;
+        return peakHour;
     }
     
     /**
-     * Helper method to extract hour from dateTime string
-     * @param dateTime The date time string
-     * @return Hour (0-23) or -1 if extraction fails
-     */
-    private int extractHour(String dateTime) {
-        try {
-            // Format: "15/1/26 2:30 PM"
-            String[] parts = dateTime.split(" ");
-            if (parts.length >= 3) {
-                String time = parts[1];  // "2:30"
-                String period = parts[2]; // "PM"
-                
-                String[] timeParts = time.split(":");
-                int hour = Integer.parseInt(timeParts[0]);
-                
-                // Convert to 24-hour format
-                if (period.equalsIgnoreCase("PM") && hour != 12) {
-                    hour += 12;
-                } else if (period.equalsIgnoreCase("AM") && hour == 12) {
-                    hour = 0;
+     * Spending per party for a time window, e.g. one month
+     * @param from Start as epoch milliseconds (inclusive)
+     * @param to End as epoch milliseconds (exclusive)
+     * @return Map of party names to total amounts spent, in cents
+     */
+    public Map<String, Long> getSpendingByParty(long from, long to) {
+        return cached(QueryCache.SPENDING_BY_PARTY, from, to, QueryCache.ALL_PARTIES,
+                () -> partySpending(getReport(from, to)));
+    }
+    
+    /**
+     * Total spent with one party in a time window, e.g. this month
+     * @param party Party name (case and extra spaces do not matter)
+     * @param from Start as epoch milliseconds (inclusive)
+     * @param to End as epoch milliseconds (exclusive)
+     * @return Amount spent in cents (0 for a party never seen)
+     */
+    public long getSpendingWithParty(String party, long from, long to) {
+        int partyId = store.getParties().find(party);
+        if (partyId < 0) {
+            return 0;
+        }
+        return cached(QueryCache.PARTY_SPENDING, from, to, partyId,
+                () -> query().type(ParsedSms.TYPE_SENT).party(party).between(from, to).sumAmounts());
+    }
+    
+    /**
+     * Spending per hour of day for a time window, e.g. one month
+     * @param from Start as epoch milliseconds (inclusive)
+     * @param to End as epoch milliseconds (exclusive)
+     * @return Map of hours to total spending, in cents
+     */
+    public Map<Integer, Long> getSpendingByHour(long from, long to) {
+        return cached(QueryCache.SPENDING_BY_HOUR, from, to, QueryCache.ALL_PARTIES,
+                () -> hourlySpending(getReport(from, to)));
+    }
+    
+    /**
+     * Totals for every transaction in a time window
+     * Uses several threads when parallel analytics is on and the window
+     * is large; the result is the same either way.
+     * @param from Start as epoch milliseconds (inclusive)
+     * @param to End as epoch milliseconds (exclusive)
+     * @return New aggregates covering just that window
+     */
+    public TransactionAggregates getReport(long from, long to) {
+        int[] rows = store.rowsBetween(from, to);
+        if (parallel != null) {
+            return parallel.aggregate(store, rows, rows.length);
+        }
+        TransactionAggregates report = new TransactionAggregates(store.getParties().size());
+        report.addRows(store, rows, 0, rows.length);
+        return report;
+    }
+    
+    /**
+     * Spending per week for the last few weeks, from the rollup
+     * Weeks run Monday to Sunday and end with the week of the latest
+     * transaction. Weeks with no spending are included as 0.
+     * @param weeks Number of weeks
+     * @return Map of week labels ("Week of 12/1/26") to cents, oldest first
+     */
+    public Map<String, Long> getWeeklySpending(int weeks) {
+        Map<String, Long> weekly = new LinkedHashMap<>();
+        SpendingRollup rollup = getRollup();
+        long latest = rollup.getLatestTimestamp();
+        if (latest == SmsDates.UNKNOWN) {
+            return weekly;
+        }
+        long last = SpendingRollup.bucketOf(SpendingRollup.Granularity.WEEK, latest);
+        for (long week = last - weeks + 1; week <= last; week++) {
+            weekly.put(SpendingRollup.label(SpendingRollup.Granularity.WEEK, week),
+                    rollup.expenses(SpendingRollup.Granularity.WEEK, week));
+        }
+        return weekly;
+    }
+    
+    /**
+     * Spending per party for each of the last few months, from the rollup
+     * Months end with the month of the latest transaction. Only the
+     * parties active in a month are read, so this does not depend on
+     * how many transactions there are.
+     * @param months Number of months, e.g. 12
+     * @return Map of month labels ("Jan 2026") to party spending in cents, oldest first
+     */
+    public Map<String, Map<String, Long>> getMonthlySpendingByParty(int months) {
+        Map<String, Map<String, Long>> monthly = new LinkedHashMap<>();
+        SpendingRollup rollup = getRollup();
+        long latest = rollup.getLatestTimestamp();
+        if (latest == SmsDates.UNKNOWN) {
+            return monthly;
+        }
+        SpendingRollup.Granularity level = SpendingRollup.Granularity.MONTH;
+        PartyDictionary parties = store.getParties();
+        long last = SpendingRollup.bucketOf(level, latest);
+        for (long month = last - months + 1; month <= last; month++) {
+            Map<String, Long> byParty = new HashMap<>();
+            for (int id : rollup.parties(level, month)) {
+                if (rollup.partyExpenseCount(level, month, id) > 0) {
+                    byParty.put(parties.nameOf(id), rollup.partyExpenses(level, month, id));
                 }
-                
-                return hour;
             }
-        } catch (Exception e) {
-            System.out.println("Error extracting hour: " + e.getMessage());
+            monthly.put(SpendingRollup.label(level, month), byParty);
         }
-        return -1;
+        return monthly;
     }
     
     /**
-     * Get transactions within a date range
-     * For now, this is a simplified version
-     * @param startDate Start date
-     * @param endDate End date
-     * @return List of transactions in range
+     * Get the hour/day/week/month totals kept by this manager
+     * The first call builds them from the whole history.
+     * @return The rollup, updated on every add
      */
-    public List<Transaction> getTransactionsByDateRange(String startDate, String endDate) {
-        List<Transaction> filtered = new ArrayList<>();
+    public SpendingRollup getRollup() {
+        if (rollup == null) {
+            rollup = new SpendingRollup();
+            rollup.addAll(store);
+        }
+        return rollup;
+    }
+    
+    /**
+     * Turn parallel reports on or off
+     * @param parallel Analytics to use for large windows, or null for one thread
+     */
+    public void setParallelAnalytics(ParallelAnalytics parallel) {
+        this.parallel = parallel;
+    }
+    
+    /**
+     * Turn the query cache on or off
+     * While it is on, the maps and lists returned by the spending, party
+     * count and date range queries are read-only, as they may be shared
+     * with later callers.
+     * @param cache Cache to keep results in, or null to always recompute
+     */
+    public void setQueryCache(QueryCache cache) {
+        this.cache = cache;
+    }
+    
+    /**
+     * @return The query cache, or null if it is off
+     */
+    public QueryCache getQueryCache() {
+        return cache;
+    }
+    
+    /**
+     * Check every transaction added from now on for unusual activity
+     * @param detector Detector to use (set its listener for alerts), or null to stop
+     */
+    public void setAnomalyDetector(AnomalyDetector detector) {
+        this.anomalies = detector;
+    }
+    
+    /**
+     * @return The anomaly detector, or null if it is off
+     */
+    public AnomalyDetector getAnomalyDetector() {
+        return anomalies;
+    }
+    
+    // The cached result of a query, running it (and caching it) on a miss
+    @SuppressWarnings("unchecked")
+    private <T> T cached(int kind, long from, long to, int partyId, Supplier<T> query) {
+        if (cache == null) {
+            return query.get();
+        }
+        Object result = cache.get(kind, from, to, partyId);
+        if (result == null) {
+            result = readOnly(query.get());
+            if (!(result instanceof List) || ((List<?>) result).size() <= MAX_CACHED_TRANSACTIONS) {
+                cache.put(kind, from, to, partyId, result);
+            }
+        }
+        return (T) result;
+    }
+    
+    private static Object readOnly(Object result) {
+        if (result instanceof Map) {
+            return Collections.unmodifiableMap((Map<?, ?>) result);
+        }
+        if (result instanceof List) {
+            return Collections.unmodifiableList((List<?>) result);
+        }
+        return result;
+    }
+    
+    // Party names with their counts (parties never seen are left out)
+    private Map<String, Integer> partyCounts(TransactionAggregates totals) {
+        PartyDictionary parties = store.getParties();
         
-        for (Transaction t : transactions) {
-            // Simplified: just check if date contains the pattern
-            // In production, you'd parse dates properly
-            String transDate = t.getDateTime();
-            filtered.add(t);  // For now, return all
+        Map<String, Integer> partyCounts = new HashMap<>();
+        for (int id = 0; id < parties.size(); id++) {
+            int count = totals.partyCount(id);
+            if (count > 0) {
+                partyCounts.put(parties.nameOf(id), count);
+            }
         }
+        return partyCounts;
+    }
+    
+    // Party names with what was spent with them (only parties paid at least once)
+    private Map<String, Long> partySpending(TransactionAggregates totals) {
+        PartyDictionary parties = store.getParties();
         
+        Map<String, Long> partySpending = new HashMap<>();
+        for (int id = 0; id < parties.size(); id++) {
+            if (totals.partyExpenseCount(id) > 0) {
+                partySpending.put(parties.nameOf(id), totals.partySpending(id));
+            }
+        }
+        return partySpending;
+    }
+    
+    // Hours of the day with what was spent in them (only hours with spending)
+    private static Map<Integer, Long> hourlySpending(TransactionAggregates totals) {
+        Map<Integer, Long> hourlySpending = new HashMap<>();
+        for (int hour = 0; hour < 24; hour++) {
+            if (totals.hourlyExpenseCount(hour) > 0) {
+                hourlySpending.put(hour, totals.hourlySpending(hour));
+            }
+        }
+        return hourlySpending;
+    }
+    
+    /**
+     * Get transactions within a date range
+     * Both days are included, e.g. ("12/1/26", "14/1/26") covers three days
+     * @param startDate Start date in day/month/year form (e.g. "12/1/26")
+     * @param endDate End date in day/month/year form
+     * @return List of transactions in range, oldest first
+     */
+    public List<Transaction> getTransactionsByDateRange(String startDate, String endDate) {
+        long from = SmsDates.parseDate(startDate);
+        long to = SmsDates.parseDate(endDate);
+        if (from == SmsDates.UNKNOWN || to == SmsDates.UNKNOWN) {
+            throw new IllegalArgumentException("Dates must look like 15/1/26: " + startDate + ", " + endDate);
+        }
+        return getTransactionsBetween(from, to + SmsDates.MILLIS_PER_DAY);
+    }
+    
+    /**
+     * Get transactions between two timestamps using the time index
+     * @param from Start as epoch milliseconds (inclusive)
+     * @param to End as epoch milliseconds (exclusive)
+     * @return List of transactions in range, oldest first
+     */
+    public List<Transaction> getTransactionsBetween(long from, long to) {
+        return cached(QueryCache.TRANSACTIONS_BETWEEN, from, to, QueryCache.ALL_PARTIES,
+                () -> transactionsBetween(from, to));
+    }
+    
+    private List<Transaction> transactionsBetween(long from, long to) {
+        int[] rows = store.rowsBetween(from, to);
+        List<Transaction> filtered = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            filtered.add(store.get(row));
+        }
         return filtered;
     }
     
@@ -209,9 +774,9 @@ public class TransactionManager {
     public void printSummary() {
         System.out.println("\n=== TRANSACTION SUMMARY ===");
         System.out.println("Total Transactions: " + getTransactionCount());
-        System.out.println("Total Income: Ksh " + String.format("%.2f", getTotalIncome()));
-        System.out.println("Total Expenses: Ksh " + String.format("%.2f", getTotalExpenses()));
-        System.out.println("Net Change: Ksh " + String.format("%.2f", getNetChange()));
+        System.out.println("Total Income: Ksh " + Money.format(getTotalIncome()));
+        System.out.println("Total Expenses: Ksh " + Money.format(getTotalExpenses()));
+        System.out.println("Net Change: Ksh " + Money.format(getNetChange()));
         
         // Most frequent parties
         System.out.println("\n--- Most Frequent Parties ---");
@@ -222,16 +787,16 @@ public class TransactionManager {
         
         // Spending by party
         System.out.println("\n--- Spending by Party ---");
-        Map<String, Double> spending = getSpendingByParty();
-        for (Map.Entry<String, Double> entry : spending.entrySet()) {
-            System.out.println(entry.getKey() + ": Ksh " + String.format("%.2f", entry.getValue()));
+        Map<String, Long> spending = getSpendingByParty();
+        for (Map.Entry<String, Long> entry : spending.entrySet()) {
+            System.out.println(entry.getKey() + ": Ksh " + Money.format(entry.getValue()));
         }
         
         // Spending by hour
         System.out.println("\n--- Spending by Hour ---");
-        Map<Integer, Double> hourly = getSpendingByHour();
-        for (Map.Entry<Integer, Double> entry : hourly.entrySet()) {
-            System.out.println(entry.getKey() + ":00 - Ksh " + String.format("%.2f", entry.getValue()));
+        Map<Integer, Long> hourly = getSpendingByHour();
+        for (Map.Entry<Integer, Long> entry : hourly.entrySet()) {
+            System.out.println(entry.getKey() + ":00 - Ksh " + Money.format(entry.getValue()));
         }
         
         System.out.println("=".repeat(40));
@@ -0,0 +1,273 @@
+package com.pesaflow;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * TransactionQuery - Finds transactions matching several filters at once
+ * Filters on type, party, amount and time can be combined, e.g. all
+ * payments to SAFARICOM LTD over Ksh 500 last month:
+ *
+ *   manager.query()
+ *          .type(ParsedSms.TYPE_SENT)
+ *          .party("SAFARICOM LTD")
+ *          .amountOver(50000)
+ *          .between(monthStart, monthEnd)
+ *          .stream()
+ *
+ * Nothing is read until the results are. Then the filter with the
+ * fewest candidate rows is answered from its index (the party's posting
+ * list, the time index or the type's bitmap), and only those candidates
+ * are checked against the other filters. Results are produced one row at
+ * a time, so no list of matches is built.
+ *
+ * Rows come out in time order when the time filter picked the
+ * candidates, otherwise in the order they were added. Results are not
+ * defined if transactions are added while they are being read.
+ */
+public class TransactionQuery {
+
+    private static final int NOT_SET = -1;
+
+    // Which index supplies the candidate rows
+    private static final int SCAN = 0;
+    private static final int BY_TYPE = 1;
+    private static final int BY_PARTY = 2;
+    private static final int BY_TIME = 3;
+
+    private final ColumnarTransactionStore store;
+
+    private int type = NOT_SET;
+    private String party;
+    private long minAmount = Long.MIN_VALUE;
+    private long maxAmount = Long.MAX_VALUE;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private boolean timed;
+
+    /**
+     * @param store Store to query (see also TransactionManager.query())
+     */
+    public TransactionQuery(ColumnarTransactionStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Only transactions of one type
+     * @param type One of the ParsedSms.TYPE_ constants
+     * @return This query, for chaining
+     */
+    public TransactionQuery type(int type) {
+        if (type < ParsedSms.TYPE_UNKNOWN || type > ParsedSms.TYPE_RECEIVED) {
+            throw new IllegalArgumentException("Unknown type code: " + type);
+        }
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * Only transactions with one party
+     * The name is matched the way PartyDictionary matches names (case and
+     * extra spaces do not matter).
+     * @param party Party name
+     * @return This query, for chaining
+     */
+    public TransactionQuery party(String party) {
+        this.party = party;
+        return this;
+    }
+
+    /**
+     * Only amounts in a range
+     * @param minCents Smallest amount in cents (inclusive)
+     * @param maxCents Largest amount in cents (inclusive)
+     * @return This query, for chaining
+     */
+    public TransactionQuery amountBetween(long minCents, long maxCents) {
+        this.minAmount = minCents;
+        this.maxAmount = maxCents;
+        return this;
+    }
+
+    /**
+     * Only amounts above a value, e.g. amountOver(50000) for "over Ksh 500"
+     * @param cents Amount in cents the transaction must exceed
+     * @return This query, for chaining
+     */
+    public TransactionQuery amountOver(long cents) {
+        return amountBetween(cents == Long.MAX_VALUE ? cents : cents + 1, Long.MAX_VALUE);
+    }
+
+    /**
+     * Only transactions between two times (rows with no readable date never match)
+     * @param from Start as epoch milliseconds (inclusive)
+     * @param to End as epoch milliseconds (exclusive)
+     * @return This query, for chaining
+     */
+    public TransactionQuery between(long from, long to) {
+        this.from = from;
+        this.to = to;
+        this.timed = true;
+        return this;
+    }
+
+    /**
+     * Runs the query
+     * @return Matching row numbers, found as they are asked for
+     */
+    public PrimitiveIterator.OfInt rows() {
+        return new Rows();
+    }
+
+    /**
+     * @return Matching row numbers as a stream
+     */
+    public IntStream rowStream() {
+        return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(rows(),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * @return Matching transactions as a stream (one Transaction is made per match)
+     */
+    public Stream<Transaction> stream() {
+        return rowStream().mapToObj(store::get);
+    }
+
+    /**
+     * @return Number of matching transactions
+     */
+    public int count() {
+        int count = 0;
+        for (PrimitiveIterator.OfInt rows = rows(); rows.hasNext(); rows.nextInt()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return Total amount of the matching transactions in cents
+     */
+    public long sumAmounts() {
+        long total = 0;
+        for (PrimitiveIterator.OfInt rows = rows(); rows.hasNext(); ) {
+            total += store.amountCents(rows.nextInt());
+        }
+        return total;
+    }
+
+    /**
+     * Rows - Walks the chosen index and yields the rows that pass every filter
+     */
+    private final class Rows implements PrimitiveIterator.OfInt {
+
+        private final int source;
+        private final int partyId;
+        private final int limit;     // Rows added after the query started are not looked at
+        private int position;        // Next position in the chosen index
+        private int end;             // Position to stop before
+        private int next = -1;       // Next matching row, or -1 if not found yet
+
+        Rows() {
+            limit = store.size();
+            partyId = party == null ? NOT_SET : store.getParties().find(party);
+            if (party != null && partyId < 0) {
+                source = SCAN;    // A party never seen has no transactions: read nothing
+                return;
+            }
+
+            // Count the candidates of each filter that is set; the fewest wins
+            int source = SCAN;
+            int candidates = limit;
+            if (partyId != NOT_SET && store.partyPostings().count(partyId) < candidates) {
+                source = BY_PARTY;
+                candidates = store.partyPostings().count(partyId);
+            }
+            int start = 0;
+            int stop = 0;
+            if (timed) {
+                start = store.timeIndex().positionOf(from);
+                stop = Math.max(start, store.timeIndex().positionOf(to));
+                if (stop - start < candidates) {
+                    source = BY_TIME;
+                    candidates = stop - start;
+                }
+            }
+            if (type != NOT_SET && store.typeBitmaps().count(type) < candidates) {
+                source = BY_TYPE;
+            }
+
+            this.source = source;
+            if (source == BY_TIME) {
+                position = start;
+                end = stop;
+            } else if (source == BY_TYPE) {
+                end = limit;
+            } else {
+                end = candidates;    // All rows, or the party's whole posting list
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next < 0 && position < end) {
+                int row = candidate();
+                if (row < 0) {
+                    end = position;
+                } else if (row < limit && matches(row)) {
+                    next = row;
+                }
+            }
+            return next >= 0;
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int row = next;
+            next = -1;
+            return row;
+        }
+
+        // The next row from the chosen index, or -1 when it runs out
+        private int candidate() {
+            switch (source) {
+                case BY_PARTY:
+                    return store.partyPostings().rows(partyId)[position++];
+                case BY_TIME:
+                    return store.timeIndex().rowAt(position++);
+                case BY_TYPE:
+                    int row = store.typeBitmaps().nextRow(type, position, limit);
+                    position = row + 1;
+                    return row;
+                default:
+                    return position++;
+            }
+        }
+
+        private boolean matches(int row) {
+            if (type != NOT_SET && store.type(row) != type) {
+                return false;
+            }
+            if (partyId != NOT_SET && store.partyId(row) != partyId) {
+                return false;
+            }
+            long amount = store.amountCents(row);
+            if (amount < minAmount || amount > maxAmount) {
+                return false;
+            }
+            if (timed) {
+                long timestamp = store.timestamp(row);
+                return timestamp != SmsDates.UNKNOWN && timestamp >= from && timestamp < to;
+            }
+            return true;
+        }
+    }
+}
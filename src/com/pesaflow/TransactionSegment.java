@@ -0,0 +1,376 @@
+package com.pesaflow;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * TransactionSegment - Compact binary files for a transaction history
+ * A history is saved as two files next to each other:
+ *
+ *   name.txn   64-byte header + one 40-byte record per transaction
+ *              (packed ID, timestamp, amount, balance, party ID, type
+ *              and category; the last three share one long)
+ *   name.dict  64-byte header + the party names in ID order, plus the
+ *              rare per-row text that does not fit a record (IDs that
+ *              cannot be packed, dates that could not be read)
+ *
+ * Each header stores how many entries are valid and a 64-bit checksum
+ * of them. Saving again only appends what is new and then rewrites the
+ * header, so a crash mid-append leaves the old contents intact. Loading
+ * memory-maps the records, splits each window of them into columns and
+ * hands those to the store in one piece, with no text to parse; the
+ * indexes are then built in one pass per window.
+ */
+public final class TransactionSegment {
+
+    private static final long RECORDS_MAGIC = 0x5046_5345_4731_0001L;  // "PFSEG1" v1
+    private static final long DICT_MAGIC = 0x5046_4449_4331_0001L;     // "PFDIC1" v1
+
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 40;
+
+    // Header layout (both files): magic, entry count, checksum, data end
+    private static final int COUNT_OFFSET = 8;
+    private static final int CHECKSUM_OFFSET = 16;
+    private static final int DATA_END_OFFSET = 24;
+    private static final int PARTY_COUNT_OFFSET = 32;  // .dict only
+
+    // Kinds of .dict entry
+    private static final byte PARTY = 0;
+    private static final byte UNPACKED_ID = 1;
+    private static final byte UNPARSED_DATE = 2;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // Records are mapped this many at a time while loading
+    private static final int LOAD_WINDOW_RECORDS = 1 << 20;
+
+    private TransactionSegment() {
+    }
+
+    /**
+     * Writes the rows of a store that are not yet in the files
+     * Creates the files if they do not exist.
+     *
+     * @param base Path without extension, e.g. "data/history"
+     * @param store Store to save
+     * @return Number of rows written by this call
+     * @throws IOException If the files cannot be written, or do not
+     *         belong to this store (they hold more rows than it has)
+     */
+    public static int save(Path base, ColumnarTransactionStore store) throws IOException {
+        Path records = recordsFile(base);
+        Path dict = dictFile(base);
+
+        try (FileChannel dictChannel = FileChannel.open(dict, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel recordChannel = FileChannel.open(records, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            Header recordHeader = Header.read(recordChannel, RECORDS_MAGIC);
+            Header dictHeader = Header.read(dictChannel, DICT_MAGIC);
+            int firstRow = (int) recordHeader.count;
+            if (firstRow > store.size() || dictHeader.partyCount > store.getParties().size()) {
+                throw new IOException(base + " holds more data than the store being saved");
+            }
+
+            // Dictionary first: records must never point at parties that are not on disk
+            appendDictionary(dictChannel, dictHeader, store, firstRow);
+            dictChannel.force(false);
+            dictHeader.write(dictChannel);
+            dictChannel.force(false);
+
+            appendRecords(recordChannel, recordHeader, store, firstRow);
+            recordChannel.force(false);
+            recordHeader.write(recordChannel);
+            recordChannel.force(false);
+
+            return store.size() - firstRow;
+        }
+    }
+
+    /**
+     * Loads a saved history into a new store
+     * @param base Path without extension, as passed to save
+     * @return Store holding every saved row
+     * @throws IOException If the files are missing or their checksum is wrong
+     */
+    public static ColumnarTransactionStore load(Path base) throws IOException {
+        ColumnarTransactionStore store = new ColumnarTransactionStore();
+
+        try (FileChannel dictChannel = FileChannel.open(dictFile(base), StandardOpenOption.READ);
+             FileChannel recordChannel = FileChannel.open(recordsFile(base), StandardOpenOption.READ)) {
+
+            Header dictHeader = Header.read(dictChannel, DICT_MAGIC);
+            Header recordHeader = Header.read(recordChannel, RECORDS_MAGIC);
+
+            // Parties come first so their IDs match the ones in the records
+            ByteBuffer dictData = readFully(dictChannel, HEADER_SIZE, dictHeader.dataEnd - HEADER_SIZE);
+            if (checksum(FNV_OFFSET, dictData) != dictHeader.checksum) {
+                throw new IOException(dictFile(base) + " is corrupt (checksum mismatch)");
+            }
+            String[] rowText = new String[0];
+            int[] rowTextRows = new int[0];
+            byte[] rowTextKinds = new byte[0];
+            int extras = 0;
+            while (dictData.hasRemaining()) {
+                byte kind = dictData.get();
+                int row = dictData.getInt();
+                byte[] bytes = new byte[dictData.getInt()];
+                dictData.get(bytes);
+                String text = new String(bytes, StandardCharsets.UTF_8);
+                if (kind == PARTY) {
+                    store.getParties().idOf(text);
+                } else {
+                    if (extras == rowText.length) {
+                        int capacity = Math.max(16, extras * 2);
+                        rowText = java.util.Arrays.copyOf(rowText, capacity);
+                        rowTextRows = java.util.Arrays.copyOf(rowTextRows, capacity);
+                        rowTextKinds = java.util.Arrays.copyOf(rowTextKinds, capacity);
+                    }
+                    rowText[extras] = text;
+                    rowTextRows[extras] = row;
+                    rowTextKinds[extras] = kind;
+                    extras++;
+                }
+            }
+
+            // Records: map a window at a time, split it into columns, and
+            // add each window to the store in one piece
+            long hash = FNV_OFFSET;
+            long count = recordHeader.count;
+            if (count > Integer.MAX_VALUE) {
+                throw new IOException(recordsFile(base) + " holds more rows than a store can");
+            }
+            store.reserve((int) count);
+            int windowSize = (int) Math.min(LOAD_WINDOW_RECORDS, count);
+            long[] packedIds = new long[windowSize];
+            byte[] types = new byte[windowSize];
+            byte[] categories = new byte[windowSize];
+            long[] amounts = new long[windowSize];
+            long[] balances = new long[windowSize];
+            int[] partyIds = new int[windowSize];
+            long[] timestamps = new long[windowSize];
+            for (long first = 0; first < count; first += LOAD_WINDOW_RECORDS) {
+                int inWindow = (int) Math.min(LOAD_WINDOW_RECORDS, count - first);
+                MappedByteBuffer window = recordChannel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + first * RECORD_SIZE, (long) inWindow * RECORD_SIZE);
+                for (int i = 0; i < inWindow; i++) {
+                    int at = i * RECORD_SIZE;
+                    long packedId = window.getLong(at);
+                    long timestamp = window.getLong(at + 8);
+                    long amount = window.getLong(at + 16);
+                    long balance = window.getLong(at + 24);
+                    long partyAndType = window.getLong(at + 32);
+                    hash = mix(mix(mix(mix(mix(hash, packedId), timestamp), amount), balance), partyAndType);
+                    packedIds[i] = packedId;
+                    timestamps[i] = timestamp;
+                    amounts[i] = amount;
+                    balances[i] = balance;
+                    // Bits 0-31 party, 32-39 type, 40-47 category (0 in older files)
+                    partyIds[i] = (int) partyAndType;
+                    types[i] = (byte) (partyAndType >>> 32);
+                    categories[i] = (byte) (partyAndType >>> 40);
+                }
+                store.appendColumns(inWindow, packedIds, types, categories, amounts, balances, partyIds,
+                        timestamps);
+            }
+            if (hash != recordHeader.checksum) {
+                throw new IOException(recordsFile(base) + " is corrupt (checksum mismatch)");
+            }
+
+            for (int i = 0; i < extras; i++) {
+                if (rowTextKinds[i] == UNPACKED_ID) {
+                    store.setUnpackedId(rowTextRows[i], rowText[i]);
+                } else if (rowTextKinds[i] == UNPARSED_DATE) {
+                    store.setUnparsedDate(rowTextRows[i], rowText[i]);
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @return true if a saved history exists at this path
+     */
+    public static boolean exists(Path base) {
+        return Files.exists(recordsFile(base)) && Files.exists(dictFile(base));
+    }
+
+    static Path recordsFile(Path base) {
+        return base.resolveSibling(base.getFileName() + ".txn");
+    }
+
+    static Path dictFile(Path base) {
+        return base.resolveSibling(base.getFileName() + ".dict");
+    }
+
+    private static void appendRecords(FileChannel channel, Header header, ColumnarTransactionStore store,
+                                      int firstRow) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * 8192);
+        long position = HEADER_SIZE + header.count * RECORD_SIZE;
+        long hash = header.checksum;
+
+        for (int row = firstRow; row < store.size(); row++) {
+            long packedId = store.packedTransactionId(row);
+            long timestamp = store.timestamp(row);
+            long amount = store.amountCents(row);
+            long balance = store.balanceCents(row);
+            long partyAndType = (long) store.category(row) << 40 | (long) store.type(row) << 32
+                    | (store.partyId(row) & 0xFFFFFFFFL);
+            hash = mix(mix(mix(mix(mix(hash, packedId), timestamp), amount), balance), partyAndType);
+
+            buffer.putLong(packedId).putLong(timestamp).putLong(amount).putLong(balance).putLong(partyAndType);
+            if (!buffer.hasRemaining()) {
+                position += flush(channel, buffer, position);
+            }
+        }
+        flush(channel, buffer, position);
+
+        header.count = store.size();
+        header.checksum = hash;
+        header.dataEnd = HEADER_SIZE + header.count * RECORD_SIZE;
+    }
+
+    private static void appendDictionary(FileChannel channel, Header header, ColumnarTransactionStore store,
+                                         int firstRow) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = header.dataEnd;
+        long[] hash = {header.checksum};
+        PartyDictionary parties = store.getParties();
+
+        for (int id = (int) header.partyCount; id < parties.size(); id++) {
+            position += writeEntry(channel, buffer, position, PARTY, -1, parties.nameOf(id), hash);
+            header.count++;
+        }
+        header.partyCount = parties.size();
+
+        for (int row = firstRow; row < store.size(); row++) {
+            if (store.packedTransactionId(row) == TransactionIds.NOT_PACKABLE) {
+                position += writeEntry(channel, buffer, position, UNPACKED_ID, row, store.transactionId(row), hash);
+                header.count++;
+            }
+            if (store.timestamp(row) == SmsDates.UNKNOWN) {
+                position += writeEntry(channel, buffer, position, UNPARSED_DATE, row, store.dateTime(row), hash);
+                header.count++;
+            }
+        }
+        position += flush(channel, buffer, position);
+
+        header.checksum = hash[0];
+        header.dataEnd = position;
+    }
+
+    // Adds one entry to the buffer, flushing first if it does not fit; returns bytes flushed
+    private static long writeEntry(FileChannel channel, ByteBuffer buffer, long position, byte kind, int row,
+                                   String text, long[] hash) throws IOException {
+        byte[] bytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        int size = 9 + bytes.length;
+        long flushed = 0;
+        if (buffer.remaining() < size) {
+            flushed = flush(channel, buffer, position);
+        }
+        if (buffer.capacity() < size) {
+            // Oversized entry: write it on its own
+            ByteBuffer single = ByteBuffer.allocate(size);
+            single.put(kind).putInt(row).putInt(bytes.length).put(bytes);
+            single.flip();
+            hash[0] = checksum(hash[0], single.duplicate());
+            return flushed + flush(channel, single.compact(), position + flushed);
+        }
+        int start = buffer.position();
+        buffer.put(kind).putInt(row).putInt(bytes.length).put(bytes);
+        ByteBuffer entry = buffer.duplicate();
+        entry.position(start).limit(start + size);
+        hash[0] = checksum(hash[0], entry);
+        return flushed;
+    }
+
+    // Writes the buffer's contents at position and clears it; returns bytes written
+    private static long flush(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        buffer.clear();
+        return written;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // FNV-1a style hash over 64-bit words; can be resumed from a saved value
+    private static long mix(long hash, long word) {
+        return (hash ^ word) * FNV_PRIME;
+    }
+
+    private static long checksum(long hash, ByteBuffer bytes) {
+        ByteBuffer view = bytes.duplicate();
+        while (view.hasRemaining()) {
+            hash = (hash ^ (view.get() & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Header - The fixed 64 bytes at the start of each file
+     */
+    private static final class Header {
+
+        private final long magic;
+        long count;
+        long checksum = FNV_OFFSET;
+        long dataEnd = HEADER_SIZE;
+        long partyCount;
+
+        private Header(long magic) {
+            this.magic = magic;
+        }
+
+        // Reads the header, or returns an empty one for a new file
+        static Header read(FileChannel channel, long magic) throws IOException {
+            Header header = new Header(magic);
+            if (channel.size() == 0) {
+                return header;
+            }
+            ByteBuffer buffer = readFully(channel, 0, HEADER_SIZE);
+            if (buffer.getLong(0) != magic) {
+                throw new IOException("Not a PesaFlow segment file (bad magic number)");
+            }
+            header.count = buffer.getLong(COUNT_OFFSET);
+            header.checksum = buffer.getLong(CHECKSUM_OFFSET);
+            header.dataEnd = buffer.getLong(DATA_END_OFFSET);
+            header.partyCount = buffer.getLong(PARTY_COUNT_OFFSET);
+            if (header.dataEnd < HEADER_SIZE || header.dataEnd > channel.size()) {
+                throw new IOException("Segment header points past the end of the file");
+            }
+            return header;
+        }
+
+        void write(FileChannel channel) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+            buffer.putLong(0, magic);
+            buffer.putLong(COUNT_OFFSET, count);
+            buffer.putLong(CHECKSUM_OFFSET, checksum);
+            buffer.putLong(DATA_END_OFFSET, dataEnd);
+            buffer.putLong(PARTY_COUNT_OFFSET, partyCount);
+            flush(channel, buffer.position(HEADER_SIZE), 0);
+        }
+    }
+}
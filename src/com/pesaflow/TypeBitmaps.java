@@ -0,0 +1,84 @@
+package com.pesaflow;
+
+import java.util.Arrays;
+
+/**
+ * TypeBitmaps - One bitmap of row numbers per transaction type
+ * Bit r of a type's bitmap is set if row r has that type. Walking a
+ * bitmap skips 64 rows of other types per word, so a query for a rare
+ * type does not read every row.
+ */
+class TypeBitmaps {
+
+    private static final int TYPES = 3;  // TYPE_UNKNOWN, TYPE_SENT, TYPE_RECEIVED
+
+    private long[][] bits = new long[TYPES][16];
+    private final int[] counts = new int[TYPES];
+
+    /**
+     * Marks a row as having a type
+     * @param type One of the ParsedSms.TYPE_ constants
+     * @param row Row number
+     */
+    void add(int type, int row) {
+        int word = row >>> 6;
+        if (word >= bits[type].length) {
+            for (int t = 0; t < TYPES; t++) {
+                bits[t] = Arrays.copyOf(bits[t], Math.max(word + 1, bits[t].length * 2));
+            }
+        }
+        bits[type][word] |= 1L << row;
+        counts[type]++;
+    }
+
+    /**
+     * Marks a run of rows in one go (used when loading from disk)
+     * @param types Type column
+     * @param from First row to add
+     * @param to Row to stop before
+     */
+    void addAll(byte[] types, int from, int to) {
+        int words = (to + 63) >>> 6;
+        if (words > bits[0].length) {
+            for (int t = 0; t < TYPES; t++) {
+                bits[t] = Arrays.copyOf(bits[t], words);
+            }
+        }
+        for (int row = from; row < to; row++) {
+            int type = types[row];
+            bits[type][row >>> 6] |= 1L << row;
+            counts[type]++;
+        }
+    }
+
+    /**
+     * @return Number of rows with the type
+     */
+    int count(int type) {
+        return counts[type];
+    }
+
+    /**
+     * Finds the next row with a type
+     * @param type One of the ParsedSms.TYPE_ constants
+     * @param from First row to look at
+     * @param limit Row to stop before
+     * @return Row number, or -1 if there is none in [from, limit)
+     */
+    int nextRow(int type, int from, int limit) {
+        if (from >= limit) {
+            return -1;
+        }
+        long[] words = bits[type];
+        int word = from >>> 6;
+        long current = words[word] & (-1L << from);
+        while (current == 0) {
+            if (++word << 6 >= limit) {
+                return -1;
+            }
+            current = words[word];
+        }
+        int row = (word << 6) + Long.numberOfTrailingZeros(current);
+        return row < limit ? row : -1;
+    }
+}
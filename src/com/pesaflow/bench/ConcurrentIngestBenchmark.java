@@ -0,0 +1,74 @@
+package com.pesaflow.bench;
+
+import com.pesaflow.ConcurrentTransactionManager;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * ConcurrentIngestBenchmark - Ingestion throughput from 1 to N threads
+ * Each thread feeds its own slice of a fixed message set into one
+ * ConcurrentTransactionManager. Prints messages per second and the
+ * speed-up over a single thread.
+ *
+ * Usage: java com.pesaflow.bench.ConcurrentIngestBenchmark [messages] [maxThreads]
+ */
+public class ConcurrentIngestBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int messageCount = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        String[] messages = new SyntheticSms(42).batch(messageCount);
+
+        // Warm up the JIT before measuring
+        run(messages, maxThreads);
+
+        double baseline = 0;
+        System.out.println("threads  msgs/sec     speed-up");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double rate = run(messages, threads);
+            if (threads == 1) {
+                baseline = rate;
+            }
+            System.out.printf("%7d  %,11.0f  %.2fx%n", threads, rate, rate / baseline);
+            if (threads < maxThreads && threads * 2 > maxThreads) {
+                threads = maxThreads / 2;  // Always finish with maxThreads
+            }
+        }
+    }
+
+    private static double run(String[] messages, int threads) throws InterruptedException {
+        ConcurrentTransactionManager manager = new ConcurrentTransactionManager();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        int slice = messages.length / threads;
+
+        for (int t = 0; t < threads; t++) {
+            int from = t * slice;
+            int to = t == threads - 1 ? messages.length : from + slice;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = from; i < to; i++) {
+                    manager.addTransactionFromSMS(messages[i]);
+                }
+            });
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        if (manager.getTransactionCount() != messages.length) {
+            throw new IllegalStateException("Lost transactions: " + manager.getTransactionCount());
+        }
+        return messages.length / (elapsed / 1e9);
+    }
+}
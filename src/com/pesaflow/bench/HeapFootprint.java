@@ -0,0 +1,70 @@
+package com.pesaflow.bench;
+
+import com.pesaflow.ColumnarTransactionStore;
+import com.pesaflow.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HeapFootprint - Measures heap used per transaction
+ * Compares a plain List of Transaction objects (each with its own Strings,
+ * as the parser creates them) with the ColumnarTransactionStore.
+ *
+ * Usage: java com.pesaflow.bench.HeapFootprint [rows]
+ */
+public class HeapFootprint {
+
+    private static final String[] PARTIES = {
+        "JOHN DOE", "JANE SMITH", "SAFARICOM LTD", "NAIVAS SUPERMARKET",
+        "SALARY DEPOSIT", "KPLC PREPAID", "QUICKMART", "UBER KENYA"
+    };
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        long before = usedHeap();
+        List<Transaction> list = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            list.add(transaction(i));
+        }
+        long listBytes = usedHeap() - before;
+        System.out.println("List<Transaction>:        " + perRow(listBytes, rows) + " bytes/row");
+        list = null;
+
+        before = usedHeap();
+        ColumnarTransactionStore store = new ColumnarTransactionStore();
+        for (int i = 0; i < rows; i++) {
+            store.append(transaction(i));
+        }
+        long storeBytes = usedHeap() - before;
+        System.out.println("ColumnarTransactionStore: " + perRow(storeBytes, rows) + " bytes/row");
+
+        // Keep the store reachable until it has been measured
+        if (store.size() != rows) {
+            throw new IllegalStateException("Unexpected row count");
+        }
+    }
+
+    // Builds a transaction with fresh Strings, like MPesaParser does
+    private static Transaction transaction(int i) {
+        String id = String.format("TX%08d", i);
+        String party = new String(PARTIES[i % PARTIES.length]);
+        String dateTime = (1 + i % 28) + "/" + (1 + i % 12) + "/26 " + (1 + i % 12) + ":"
+                + (10 + i % 50) + (i % 2 == 0 ? " AM" : " PM");
+        return new Transaction(id, i % 3 == 0 ? "received" : "sent", 10_000L + i % 5_000,
+                party, dateTime, 500_000L + i);
+    }
+
+    private static long perRow(long bytes, int rows) {
+        return Math.round((double) bytes / rows);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
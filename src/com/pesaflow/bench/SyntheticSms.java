@@ -0,0 +1,231 @@
+package com.pesaflow.bench;
+
+import java.util.Random;
+
+/**
+ * SyntheticSms - Generates realistic M-Pesa messages for benchmarks
+ * Uses a fixed seed, so every run sees the same messages.
+ *
+ * next() gives a mix close to a real inbox: mostly sent and paid, then
+ * received, withdrawals, deposits and a few malformed messages. Pay Bill,
+ * airtime, Fuliza and reversal messages are available through next(kind).
+ */
+public class SyntheticSms {
+
+    private static final String[] PEOPLE = {
+        "JOHN DOE", "JANE SMITH", "PETER KAMAU", "MARY WANJIKU", "ALI HASSAN",
+        "GRACE AKINYI", "DAVID OTIENO", "FAITH CHEBET"
+    };
+
+    private static final String[] BUSINESSES = {
+        "SAFARICOM LTD", "NAIVAS SUPERMARKET", "KPLC PREPAID", "QUICKMART",
+        "UBER KENYA", "JAVA HOUSE", "CARREFOUR", "TOTAL ENERGIES"
+    };
+
+    private static final char[] ID_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+
+    private final Random random;
+    private long balanceCents = 5_000_000;
+
+    public SyntheticSms(long seed) {
+        this.random = new Random(seed);
+    }
+
+    private static final String[] AGENTS = {
+        "KAMAU SHOP AGENT", "WESTLANDS MPESA", "TOWN CENTRE AGENCIES", "MJINI ENTERPRISES"
+    };
+
+    /**
+     * @return Next message from the realistic mix
+     */
+    public String next() {
+        int kind = random.nextInt(100);
+        if (kind < 40) {
+            return sent();
+        } else if (kind < 65) {
+            return paid();
+        } else if (kind < 85) {
+            return received();
+        } else if (kind < 92) {
+            return withdraw();
+        } else if (kind < 98) {
+            return deposit();
+        }
+        return malformed();
+    }
+
+    /**
+     * @param kind One of sent, paid, received, withdraw, deposit, paybill,
+     *        airtime, fuliza, reversal, malformed
+     * @return Next message of that kind
+     */
+    public String next(String kind) {
+        switch (kind) {
+            case "sent":
+                return sent();
+            case "paid":
+                return paid();
+            case "received":
+                return received();
+            case "withdraw":
+                return withdraw();
+            case "deposit":
+                return deposit();
+            case "paybill":
+                return payBill();
+            case "airtime":
+                return airtime();
+            case "fuliza":
+                return fuliza();
+            case "reversal":
+                return reversal();
+            case "malformed":
+                return malformed();
+            default:
+                throw new IllegalArgumentException("Unknown message kind: " + kind);
+        }
+    }
+
+    /**
+     * Generates a batch of one kind of message
+     * @param kind See next(String)
+     * @param count Number of messages
+     * @return Array of messages
+     */
+    public String[] batch(String kind, int count) {
+        String[] messages = new String[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = next(kind);
+        }
+        return messages;
+    }
+
+    /**
+     * Generates a batch of messages
+     * @param count Number of messages
+     * @return Array of messages
+     */
+    public String[] batch(int count) {
+        String[] messages = new String[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = next();
+        }
+        return messages;
+    }
+
+    public String sent() {
+        long amount = amount();
+        balanceCents -= amount;
+        return id() + " Confirmed. Ksh" + money(amount) + " sent to " + pick(PEOPLE) + " on "
+                + date() + ". New M-PESA balance is Ksh" + money(balanceCents);
+    }
+
+    public String paid() {
+        long amount = amount();
+        balanceCents -= amount;
+        return id() + " Confirmed. Ksh" + money(amount) + " paid to " + pick(BUSINESSES) + " on "
+                + date() + ". New M-PESA balance is Ksh" + money(balanceCents);
+    }
+
+    public String received() {
+        long amount = amount() * 3;
+        balanceCents += amount;
+        return id() + " Confirmed. Ksh" + money(amount) + " received from " + pick(PEOPLE) + " on "
+                + date() + ". New M-PESA balance is Ksh" + money(balanceCents);
+    }
+
+    public String withdraw() {
+        long amount = amount();
+        balanceCents -= amount;
+        return id() + " Confirmed. on " + date() + " Withdraw Ksh" + money(amount) + " from "
+                + random.nextInt(999999) + " - " + pick(AGENTS) + " New M-PESA balance is Ksh"
+                + money(balanceCents) + ". Transaction cost, Ksh29.00.";
+    }
+
+    public String deposit() {
+        long amount = amount() * 2;
+        balanceCents += amount;
+        return id() + " Confirmed. On " + date() + " Give Ksh" + money(amount) + " cash to "
+                + pick(AGENTS) + " New M-PESA balance is Ksh" + money(balanceCents)
+                + ". You can now access M-PESA via *334#. Deposit complete.";
+    }
+
+    public String payBill() {
+        long amount = amount();
+        balanceCents -= amount;
+        return id() + " Confirmed. Ksh" + money(amount) + " sent to " + pick(BUSINESSES) + " for account "
+                + (10_000_000 + random.nextInt(90_000_000)) + " on " + date() + " New M-PESA balance is Ksh"
+                + money(balanceCents) + ". Transaction cost, Ksh23.00.";
+    }
+
+    public String airtime() {
+        long amount = 5_000 + random.nextInt(10) * 1_000;
+        balanceCents -= amount;
+        return id() + " confirmed.You bought Ksh" + money(amount) + " of airtime on " + date()
+                + ".New M-PESA balance is Ksh" + money(balanceCents) + ".";
+    }
+
+    public String fuliza() {
+        long amount = amount();
+        balanceCents += amount;
+        return id() + " Confirmed. Fuliza M-PESA amount is Ksh " + money(amount) + ". Interest charged Ksh"
+                + money(amount / 100) + ". Total Fuliza M-PESA outstanding amount is Ksh"
+                + money(amount + amount / 100) + " due on " + date() + ".";
+    }
+
+    public String reversal() {
+        long amount = amount();
+        balanceCents += amount;
+        return id() + " confirmed. Reversal of transaction " + id() + " has been successfully reversed on "
+                + date() + " and Ksh" + money(amount) + " is credited to your M-PESA account. New M-PESA account"
+                + " balance is Ksh" + money(balanceCents) + ".";
+    }
+
+    /**
+     * A message that is not a transaction, or one that is cut off
+     */
+    public String malformed() {
+        switch (random.nextInt(4)) {
+            case 0:
+                return "Dear Customer, your M-PESA PIN will expire soon. Dial *334# to change it.";
+            case 1:
+                return id() + " Confirmed. Ksh" + money(amount()) + " sent to " + pick(PEOPLE);
+            case 2:
+                return "   ";
+            default:
+                return id() + " Failed. Insufficient funds in your M-PESA account to send Ksh"
+                        + money(amount()) + ".";
+        }
+    }
+
+    String id() {
+        char[] id = new char[10];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = ID_CHARS[random.nextInt(ID_CHARS.length)];
+        }
+        return new String(id);
+    }
+
+    String date() {
+        int hour = 1 + random.nextInt(12);
+        int minute = random.nextInt(60);
+        return (1 + random.nextInt(28)) + "/" + (1 + random.nextInt(12)) + "/" + (20 + random.nextInt(7))
+                + " at " + hour + ":" + (minute < 10 ? "0" : "") + minute + (random.nextBoolean() ? " AM" : " PM");
+    }
+
+    String pick(String[] names) {
+        return names[random.nextInt(names.length)];
+    }
+
+    long amount() {
+        // Mostly small payments with the occasional large one
+        return random.nextInt(10) == 0 ? 100_000 + random.nextInt(5_000_000) : 1_000 + random.nextInt(200_000);
+    }
+
+    // Formats cents the way M-Pesa does, e.g. 150000 -> "1,500.00"
+    static String money(long cents) {
+        String whole = String.format("%,d", Math.abs(cents) / 100);
+        long fraction = Math.abs(cents) % 100;
+        return (cents < 0 ? "-" : "") + whole + "." + (fraction < 10 ? "0" : "") + fraction;
+    }
+}
@@ -0,0 +1,862 @@
+package com.pesaflow.check;
+
+import com.pesaflow.BalanceReconciler;
+import com.pesaflow.ByteSlice;
+import com.pesaflow.ColumnarTransactionStore;
+import com.pesaflow.ConcurrentTransactionManager;
+import com.pesaflow.IngestStatus;
+import com.pesaflow.MPesaParser;
+import com.pesaflow.MPesaTariff;
+import com.pesaflow.ParallelAnalytics;
+import com.pesaflow.ParsedSms;
+import com.pesaflow.PartyDictionary;
+import com.pesaflow.PartyRanking;
+import com.pesaflow.QueryCache;
+import com.pesaflow.ShardedTransactionEngine;
+import com.pesaflow.SmsDates;
+import com.pesaflow.Transaction;
+import com.pesaflow.TransactionAggregates;
+import com.pesaflow.TransactionIdSet;
+import com.pesaflow.TransactionIds;
+import com.pesaflow.TransactionLog;
+import com.pesaflow.TransactionManager;
+import com.pesaflow.TransactionQuery;
+import com.pesaflow.TransactionSegment;
+import com.pesaflow.bench.SyntheticSms;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Checks - Runnable correctness checks for the fast paths
+ * Each check feeds the same input to a fast structure and to a slow,
+ * obviously correct one (or to a case that once went wrong) and fails
+ * if the answers differ. Prints one line per check and exits with
+ * status 1 if any failed.
+ *
+ * Usage: java com.pesaflow.check.Checks
+ */
+public class Checks {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private static int failures;
+
+    public static void main(String[] args) {
+        check("non-ASCII party name read from bytes", Checks::nonAsciiPartyName);
+        check("BalanceReconciler matches a sorted scan", Checks::balanceReconciler);
+        check("balance check allows M-Pesa charges, not missing SMS", Checks::balanceFees);
+        check("leading spaces and missing IDs", Checks::transactionIds);
+        check("Fuliza repayments and oversized amounts", Checks::fulizaAndAmounts);
+        check("day of month checked against the month", Checks::dayOfMonth);
+        check("TransactionQuery matches a full scan", Checks::transactionQuery);
+        check("parallel reports equal one-thread reports", Checks::parallelReports);
+        check("cached reports match uncached ones", Checks::queryCache);
+        check("cache drops only the results an add changes", Checks::cacheInvalidation);
+        check("PartyRanking matches sorting every party", Checks::partyRanking);
+        check("TransactionIdSet matches a HashSet", Checks::transactionIdSet);
+        check("log replays what was added and cuts a torn tail", Checks::transactionLog);
+        check("striped checkpoint, load and replay lose nothing", Checks::stripedCheckpoint);
+        check("segment save, append and reload give the same store", Checks::segmentRoundTrip);
+        check("engine calls from inside a query do not wait on themselves", Checks::shardedEngine);
+
+        if (failures > 0) {
+            System.out.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    // Runs one check and prints whether it passed
+    private static void check(String name, Runnable check) {
+        try {
+            check.run();
+            System.out.println("ok    " + name);
+        } catch (RuntimeException e) {
+            failures++;
+            System.out.println("FAIL  " + name + ": " + e.getMessage());
+        }
+    }
+
+    private static void expect(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    // A UTF-8 name in a file must be stored as the same name, not one character per byte
+    private static void nonAsciiPartyName() {
+        String sms = "RBK4H8N2M1 Confirmed. Ksh1,500.00 sent to JOS\u00c9 MU\u00d1OZ on 15/1/26 at 2:30 PM."
+                + " New M-PESA balance is Ksh5,000.00.";
+        byte[] bytes = sms.getBytes(StandardCharsets.UTF_8);
+        ByteSlice slice = new ByteSlice(ByteBuffer.wrap(bytes), 0, bytes.length);
+
+        ParsedSms parsed = new ParsedSms();
+        expect(MPesaParser.parseInto(slice, parsed), "message did not parse");
+        PartyDictionary parties = new PartyDictionary();
+        int id = parsed.getPartyId(parties);
+        expect(parties.nameOf(id).equals("JOS\u00c9 MU\u00d1OZ"), "stored as " + parties.nameOf(id));
+
+        // The same name parsed from a String must get the same ID
+        ParsedSms fromString = new ParsedSms();
+        MPesaParser.parseInto(sms, fromString);
+        expect(fromString.getPartyId(parties) == id, "String and bytes gave different IDs");
+    }
+
+    // A leading space must not hide the ID, and a message with no usable ID
+    // is rejected every time rather than stored once and then a duplicate
+    private static void transactionIds() {
+        String body = " Confirmed. Ksh500.00 sent to JOHN DOE on 15/1/26 at 2:30 PM."
+                + " New M-PESA balance is Ksh5,000.00";
+        TransactionManager manager = new TransactionManager();
+        expectStatus(manager.addTransactionFromSMS("  RBK4H8N2M1" + body), IngestStatus.ADDED);
+        expect(manager.getAllTransactions().get(0).getTransactionId().equals("RBK4H8N2M1"),
+                "ID read as \"" + manager.getAllTransactions().get(0).getTransactionId() + "\"");
+        expectStatus(manager.addTransactionFromSMS("RBK4H8N2M1" + body), IngestStatus.DUPLICATE);
+        for (int i = 0; i < 2; i++) {
+            expectStatus(manager.addTransactionFromSMS(body), IngestStatus.INVALID_ID);
+            expectStatus(manager.addTransactionFromSMS("RBK4-H8N2" + body), IngestStatus.INVALID_ID);
+        }
+        expect(manager.getTransactionCount() == 1, manager.getTransactionCount() + " transactions stored");
+    }
+
+    // Paying Fuliza back is money going out; a 20-digit amount is rejected, not wrapped
+    private static void fulizaAndAmounts() {
+        ParsedSms parsed = new ParsedSms();
+        MPesaParser.parseInto("RBK4H8N2M1 Confirmed. Ksh101.00 from your M-PESA has been used to fully pay your"
+                + " outstanding Fuliza M-PESA. Available Fuliza M-PESA limit is Ksh500.00."
+                + " M-PESA balance is Ksh399.00.", parsed);
+        expect(parsed.getType() == ParsedSms.TYPE_SENT, "repayment read as " + parsed.getTypeName());
+        expect(parsed.getAmountCents() == 10100, "repayment amount " + parsed.getAmountCents());
+
+        MPesaParser.parseInto("RBK4H8N2M2 Confirmed. Fuliza M-PESA amount is Ksh 100.00. Interest charged Ksh1.00."
+                + " Total Fuliza M-PESA outstanding amount is Ksh101.00 due on 15/2/26.", parsed);
+        expect(parsed.getType() == ParsedSms.TYPE_RECEIVED, "payout read as " + parsed.getTypeName());
+
+        TransactionManager manager = new TransactionManager();
+        expectStatus(manager.addTransactionFromSMS("RBK4H8N2M3 Confirmed. Ksh12345678901234567890.00 sent to"
+                + " JOHN DOE on 15/1/26 at 2:30 PM."), IngestStatus.MISSING_AMOUNT);
+        expectStatus(manager.addTransactionFromSMS("RBK4H8N2M4 Confirmed. Ksh9,999,999,999.99 sent to"
+                + " JOHN DOE on 15/1/26 at 2:30 PM."), IngestStatus.ADDED);
+        expect(manager.getTotalExpenses() == 999_999_999_999L, "large amount read as " + manager.getTotalExpenses());
+    }
+
+    // 31/2/26 is not a date; it must not roll over into 3 March
+    private static void dayOfMonth() {
+        expect(SmsDates.parse("31/2/26 at 2:30 PM") == SmsDates.UNKNOWN, "31/2/26 accepted");
+        expect(SmsDates.parse("29/2/26 at 2:30 PM") == SmsDates.UNKNOWN, "29/2/26 accepted (2026 is not a leap year)");
+        expect(SmsDates.parse("31/4/26 at 2:30 PM") == SmsDates.UNKNOWN, "31/4/26 accepted");
+        expect(SmsDates.parseDate("30/2/24") == SmsDates.UNKNOWN, "30/2/24 accepted");
+        expect(SmsDates.parse("29/2/24 at 2:30 PM") != SmsDates.UNKNOWN, "29/2/24 rejected (2024 is a leap year)");
+        expect(SmsDates.parseDate("29/2/2000") != SmsDates.UNKNOWN, "29/2/2000 rejected");
+        expect(SmsDates.parseDate("29/2/2100") == SmsDates.UNKNOWN, "29/2/2100 accepted");
+        expect(SmsDates.parse("31/12/25 at 11:59 PM") + 60_000 == SmsDates.parse("1/1/26 at 12:00 AM"),
+                "31/12/25 does not run into 1/1/26");
+    }
+
+    // Random filter combinations, so that each index (party postings, time
+    // index, type bitmap, or none) is the one picked for some of them
+    private static void transactionQuery() {
+        ColumnarTransactionStore store = new ColumnarTransactionStore();
+        SyntheticSms messages = new SyntheticSms(23);
+        ParsedSms parsed = new ParsedSms();
+        while (store.size() < 20_000) {
+            if (MPesaParser.parseInto(messages.next(), parsed)) {
+                store.append(parsed);
+            }
+        }
+
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (int row = 0; row < store.size(); row++) {
+            if (store.timestamp(row) != SmsDates.UNKNOWN) {
+                first = Math.min(first, store.timestamp(row));
+                last = Math.max(last, store.timestamp(row));
+            }
+        }
+        String[] parties = new String[store.getParties().size() + 1];
+        for (int id = 0; id < parties.length - 1; id++) {
+            parties[id] = store.getParties().nameOf(id);
+        }
+        parties[parties.length - 1] = "NEVER SEEN";
+
+        Random random = new Random(23);
+        for (int q = 0; q < 1000; q++) {
+            int type = random.nextInt(4) - 1;
+            String party = random.nextBoolean() ? parties[random.nextInt(parties.length)].toLowerCase() : null;
+            long min = random.nextBoolean() ? random.nextInt(500_000) : Long.MIN_VALUE;
+            long max = random.nextBoolean() ? min + random.nextInt(1_000_000) : Long.MAX_VALUE;
+            boolean timed = random.nextBoolean();
+            long from = first + (long) (random.nextDouble() * (last - first));
+            long to = from + (long) (Math.pow(random.nextDouble(), 3) * (last - first));
+
+            TransactionQuery query = new TransactionQuery(store).amountBetween(min, max);
+            if (type >= 0) {
+                query.type(type);
+            }
+            if (party != null) {
+                query.party(party);
+            }
+            if (timed) {
+                query.between(from, to);
+            }
+
+            int partyId = party == null ? -1 : store.getParties().find(party);
+            List<Integer> expected = new ArrayList<>();
+            long expectedSum = 0;
+            for (int row = 0; row < store.size(); row++) {
+                long amount = store.amountCents(row);
+                long timestamp = store.timestamp(row);
+                if ((type < 0 || store.type(row) == type)
+                        && (party == null || store.partyId(row) == partyId)
+                        && amount >= min && amount <= max
+                        && (!timed || (timestamp != SmsDates.UNKNOWN && timestamp >= from && timestamp < to))) {
+                    expected.add(row);
+                    expectedSum += amount;
+                }
+            }
+
+            int[] rows = query.rowStream().toArray();
+            expect(Arrays.stream(rows).distinct().count() == rows.length, "query " + q + " repeats a row");
+            Arrays.sort(rows);
+            expect(Arrays.equals(rows, expected.stream().mapToInt(Integer::intValue).toArray()),
+                    "query " + q + " found " + rows.length + " rows, a scan finds " + expected.size());
+            expect(query.count() == expected.size(), "query " + q + " count differs");
+            expect(query.sumAmounts() == expectedSum, "query " + q + " sum differs");
+        }
+    }
+
+    // Two managers get the same adds; only one caches. Every report must agree
+    private static void queryCache() {
+        TransactionManager cached = new TransactionManager();
+        cached.setQueryCache(new QueryCache(32));
+        TransactionManager plain = new TransactionManager();
+        SyntheticSms messages = new SyntheticSms(24);
+        Random random = new Random(24);
+        String[] parties = {"SAFARICOM LTD", "JOHN DOE", "KPLC PREPAID", "NEVER SEEN"};
+        long start = SmsDates.parseDate("1/1/23");
+        long month = 30 * DAY;
+
+        for (int step = 0; step < 20_000; step++) {
+            if (random.nextInt(4) == 0) {
+                String sms = messages.next();
+                cached.addTransactionFromSMS(sms);
+                plain.addTransactionFromSMS(sms);
+                continue;
+            }
+            long from = start + random.nextInt(24) * month;
+            long to = from + month * (1 + random.nextInt(3));
+            String party = parties[random.nextInt(parties.length)];
+            switch (random.nextInt(6)) {
+                case 0:
+                    expectEqual(cached.getSpendingByParty(from, to), plain.getSpendingByParty(from, to));
+                    break;
+                case 1:
+                    expectEqual(cached.getSpendingByHour(from, to), plain.getSpendingByHour(from, to));
+                    break;
+                case 2:
+                    expectEqual(cached.getMostFrequentParties(from, to), plain.getMostFrequentParties(from, to));
+                    break;
+                case 3:
+                    expectEqual(cached.getSpendingWithParty(party, from, to), plain.getSpendingWithParty(party, from, to));
+                    break;
+                case 4:
+                    expectEqual(cached.getSpendingByParty(), plain.getSpendingByParty());
+                    expectEqual(cached.getMostFrequentParties(), plain.getMostFrequentParties());
+                    break;
+                default:
+                    expectEqual(cached.getTransactionsBetween(from, to).toString(),
+                            plain.getTransactionsBetween(from, to).toString());
+            }
+        }
+        expect(cached.getQueryCache().getHits() > 0, "the cache was never hit");
+    }
+
+    // An add only drops cached results whose window, party or type it touches
+    private static void cacheInvalidation() {
+        TransactionManager manager = new TransactionManager();
+        QueryCache cache = new QueryCache(8);
+        manager.setQueryCache(cache);
+        manager.addTransactionFromSMS("AAA1111111 Confirmed. Ksh100.00 sent to JOHN DOE on 5/1/26 at 2:30 PM."
+                + " New M-PESA balance is Ksh900.00");
+        long jan = SmsDates.parseDate("1/1/26");
+        long feb = SmsDates.parseDate("1/2/26");
+        long mar = SmsDates.parseDate("1/3/26");
+        manager.getSpendingByParty(jan, feb);
+        manager.getSpendingWithParty("JOHN DOE", jan, mar);
+        manager.getMostFrequentParties(jan, mar);
+
+        // Money received in February: only the Jan-Mar party counts change
+        manager.addTransactionFromSMS("AAA2222222 Confirmed. Ksh50.00 received from SAFARICOM LTD on 10/2/26"
+                + " at 2:30 PM. New M-PESA balance is Ksh950.00");
+        expect(cache.getInvalidations() == 1, cache.getInvalidations() + " results dropped, expected 1");
+
+        // Money sent to JOHN DOE in February: his Jan-Mar spending changes, January does not
+        manager.addTransactionFromSMS("AAA3333333 Confirmed. Ksh20.00 sent to JOHN DOE on 11/2/26 at 2:30 PM."
+                + " New M-PESA balance is Ksh930.00");
+        expect(cache.getInvalidations() == 2, cache.getInvalidations() + " results dropped, expected 2");
+
+        long hits = cache.getHits();
+        expectEqual(manager.getSpendingByParty(jan, feb).get("JOHN DOE"), 10000L);
+        expect(cache.getHits() == hits + 1, "a result that was still valid was not served from the cache");
+        expectEqual(manager.getSpendingWithParty("JOHN DOE", jan, mar), 12000L);
+        expectEqual(manager.getMostFrequentParties(jan, mar).get("SAFARICOM LTD"), 1);
+
+        try {
+            manager.getSpendingByParty(jan, feb).put("SOMEONE", 1L);
+            throw new IllegalStateException("a cached result can be changed by the caller");
+        } catch (UnsupportedOperationException expected) {
+            // Cached results are read-only
+        }
+    }
+
+    // The heap keeps the top parties as totals grow (and is rebuilt when one
+    // shrinks); top(k) must equal sorting all totals, for k inside and beyond its capacity
+    private static void partyRanking() {
+        int parties = 500;
+        long[] totals = new long[parties];
+        PartyRanking ranking = new PartyRanking(16, id -> totals[id]);
+        Random random = new Random(16);
+
+        for (int step = 0; step < 50_000; step++) {
+            int id = random.nextInt(10) < 7 ? random.nextInt(40) : random.nextInt(parties);  // A few busy payees
+            if (random.nextInt(100) == 0) {
+                totals[id] /= 2;    // A refund: the total goes down
+            } else {
+                totals[id] += random.nextInt(5) == 0 ? 1000 : random.nextInt(1000);  // Many equal totals
+            }
+            ranking.update(id, totals[id]);
+
+            if (step % 1000 == 0) {
+                Integer[] order = new Integer[parties];
+                for (int i = 0; i < parties; i++) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, Comparator.<Integer>comparingLong(i -> -totals[i]).thenComparingInt(i -> i));
+                for (int k : new int[] {1, 5, 16, 40}) {
+                    int[] expected = Arrays.stream(order).filter(i -> totals[i] > 0).limit(k)
+                            .mapToInt(Integer::intValue).toArray();
+                    expect(Arrays.equals(ranking.top(k, parties), expected), "top " + k + " differs at step " + step);
+                }
+            }
+        }
+    }
+
+    // Packed and unpackable IDs, many repeats, and a table that starts
+    // small so it grows several times along the way
+    private static void transactionIdSet() {
+        String digits = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+        TransactionIdSet ids = new TransactionIdSet(16);
+        Set<String> expected = new HashSet<>();
+        Random random = new Random(9);
+        List<String> added = new ArrayList<>();
+
+        for (int step = 0; step < 200_000; step++) {
+            String id;
+            if (!added.isEmpty() && random.nextInt(4) == 0) {
+                id = added.get(random.nextInt(added.size()));    // A repeat
+            } else {
+                StringBuilder text = new StringBuilder();
+                int length = random.nextInt(20) == 0 ? 1 + random.nextInt(14) : 10;
+                for (int i = 0; i < length; i++) {
+                    text.append(digits.charAt(random.nextInt(digits.length())));
+                }
+                if (random.nextInt(50) == 0) {
+                    text.setCharAt(0, 'x');    // Lower case: cannot be packed
+                }
+                id = text.toString();
+                added.add(id);
+            }
+
+            boolean isNew = expected.add(id);
+            long packed = TransactionIds.pack(id);
+            boolean reported = random.nextBoolean() || packed == TransactionIds.NOT_PACKABLE
+                    ? ids.add(id)
+                    : ids.add(packed);
+            expect(reported == isNew, "add(" + id + ") returned " + reported);
+            expect(ids.contains(id), "contains(" + id + ") is false after adding it");
+        }
+        expect(ids.size() == expected.size(), "size " + ids.size() + ", expected " + expected.size());
+        // IDs never added must not be found
+        for (int i = 0; i < 10_000; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int c = 0; c < 10; c++) {
+                text.append(digits.charAt(random.nextInt(digits.length())));
+            }
+            String id = text.toString();
+            expect(ids.contains(id) == expected.contains(id), "contains(" + id + ") differs");
+        }
+    }
+
+    // Write, reopen and replay must give back every transaction exactly; a
+    // half-written last entry is dropped on open; an entry too large to read
+    // back is refused before the log or the manager change
+    private static void transactionLog() {
+        try {
+            Path file = Files.createTempFile("pesaflow-check", ".log");
+            try {
+                transactionLog(file);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void transactionLog(Path file) throws IOException {
+        TransactionManager manager = new TransactionManager();
+        try (TransactionLog log = new TransactionLog(file)) {
+            manager.attachLog(log);
+            SyntheticSms messages = new SyntheticSms(12);
+            for (int i = 0; i < 2000; i++) {
+                manager.addTransactionFromSMS(messages.next());
+            }
+            // An ID that does not pack, a date that does not parse, a non-ASCII name
+            manager.addTransaction(new Transaction("CUSTOM-ID-1", "sent", 500, "JOS\u00c9", "sometime", 100));
+
+            int count = manager.getTransactionCount();
+            long size = log.size();
+            try {
+                manager.addTransaction(new Transaction("RBK4H8N2M9", "sent", 500, "A".repeat(1 << 20),
+                        "15/1/26 at 2:30 PM", 100));
+                throw new IllegalStateException("1 MB party name was logged");
+            } catch (IllegalArgumentException expected) {
+                // Refused, and nothing was half done
+            }
+            expect(manager.getTransactionCount() == count, "oversized transaction was stored");
+            expect(log.size() == size, "oversized entry left " + (log.size() - size) + " bytes in the log");
+        }
+        List<String> written = describeAll(manager);
+
+        TransactionManager restored = new TransactionManager();
+        try (TransactionLog log = new TransactionLog(file)) {
+            expect(restored.attachLog(log) == written.size(), "replayed " + restored.getTransactionCount());
+        }
+        expectEqual(describeAll(restored), written);
+
+        // A crash in the middle of a write leaves part of an entry at the end
+        long goodSize = Files.size(file);
+        byte[] head = new byte[40];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.read(ByteBuffer.wrap(head), 0);
+            channel.write(ByteBuffer.wrap(head), goodSize);
+        }
+        TransactionManager afterCrash = new TransactionManager();
+        try (TransactionLog log = new TransactionLog(file)) {
+            afterCrash.attachLog(log);
+            expect(Files.size(file) == goodSize, "torn tail not cut: " + Files.size(file) + " bytes");
+            afterCrash.addTransaction(new Transaction("RBK4H8N2M8", "received", 700, "JANE", "16/1/26 at 9:00 AM", 800));
+        }
+        expectEqual(describeAll(afterCrash).subList(0, written.size()), written);
+
+        // The entry added after the cut must follow the good ones, not the garbage
+        TransactionManager again = new TransactionManager();
+        try (TransactionLog log = new TransactionLog(file)) {
+            expect(again.attachLog(log) == written.size() + 1, "replayed " + again.getTransactionCount());
+        }
+    }
+
+    // Adds before a checkpoint come back from the segments, adds after it
+    // from the log, and together they match a plain manager fed the same
+    private static void stripedCheckpoint() {
+        try {
+            Path dir = Files.createTempDirectory("pesaflow-check");
+            try {
+                stripedCheckpoint(dir);
+            } finally {
+                deleteDirectory(dir);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void stripedCheckpoint(Path dir) throws IOException {
+        Path base = dir.resolve("history");
+        Path logFile = dir.resolve("history.log");
+        SyntheticSms messages = new SyntheticSms(5);
+        TransactionManager expected = new TransactionManager();
+
+        ConcurrentTransactionManager striped = new ConcurrentTransactionManager(4);
+        try (TransactionLog log = new TransactionLog(logFile)) {
+            striped.attachLog(log);
+            int saved = 0;
+            for (int round = 0; round < 2; round++) {
+                // Each round adds some, checkpoints, and adds some more after it
+                for (int i = 0; i < 1500; i++) {
+                    String sms = messages.next();
+                    striped.addTransactionFromSMS(sms);
+                    expected.addTransactionFromSMS(sms);
+                }
+                int written = striped.checkpoint(base);
+                expect(written == striped.getTransactionCount() - saved && Files.size(logFile) == 0,
+                        "checkpoint wrote " + written + " rows and left " + Files.size(logFile) + " log bytes");
+                saved += written;
+                for (int i = 0; i < 500; i++) {
+                    String sms = messages.next();
+                    striped.addTransactionFromSMS(sms);
+                    expected.addTransactionFromSMS(sms);
+                }
+            }
+        }
+
+        ConcurrentTransactionManager loaded = ConcurrentTransactionManager.load(base, 4);
+        int fromSegments = loaded.getTransactionCount();
+        try (TransactionLog log = new TransactionLog(logFile)) {
+            int replayed = loaded.attachLog(log);
+            expect(replayed > 0 && fromSegments + replayed == expected.getTransactionCount(),
+                    fromSegments + " loaded and " + replayed + " replayed");
+        }
+        expect(loaded.getTransactionCount() == expected.getTransactionCount(),
+                loaded.getTransactionCount() + " transactions after load");
+        expect(loaded.getTotalExpenses() == expected.getTotalExpenses()
+                && loaded.getTotalIncome() == expected.getTotalIncome(), "totals differ after load");
+        expectEqual(loaded.getSpendingByParty(), expected.getSpendingByParty());
+
+        List<String> got = new ArrayList<>();
+        for (Transaction transaction : loaded.getAllTransactions()) {
+            got.add(transaction + " " + transaction.getTimestamp() + " " + transaction.getCategory());
+        }
+        List<String> want = describeAll(expected);
+        got.sort(null);
+        want.sort(null);
+        expectEqual(got, want);
+
+        // A transaction saved before the checkpoint must still be a duplicate
+        expect(!loaded.addTransaction(expected.getAllTransactions().get(0)), "saved ID added again");
+
+        try {
+            ConcurrentTransactionManager.load(base, 3);
+            throw new IllegalStateException("loaded 4 stripes as 3");
+        } catch (IOException expectedError) {
+            // The stripe of each ID depends on the count
+        }
+    }
+
+    // A query function runs on its shard's thread; engine calls it makes
+    // that need that same thread must run inline, not queue behind it
+    private static void shardedEngine() {
+        String body = " Confirmed. Ksh500.00 sent to JOHN DOE on 15/1/26 at 2:30 PM."
+                + " New M-PESA balance is Ksh5,000.00.";
+        ShardedTransactionEngine engine = new ShardedTransactionEngine(2, 4);
+        try {
+            expectStatus(engine.addTransactionFromSMS("254700000001", "RBK4H8N2M1" + body).join(), IngestStatus.ADDED);
+            int accounts = await(engine.query("254700000001", account -> engine.getAccountCount()));
+            expect(accounts == 1, accounts + " accounts");
+            IngestStatus nested = await(engine.query("254700000001",
+                    account -> engine.addTransactionFromSMS("254700000001", "RBK4H8N2M2" + body).join()));
+            expectStatus(nested, IngestStatus.ADDED);
+            expect(await(engine.getTotalExpenses("254700000001")) == 100_000, "nested add not counted");
+        } finally {
+            engine.close();
+        }
+        try {
+            engine.addTransactionFromSMS("254700000001", "RBK4H8N2M3" + body);
+            throw new IllegalStateException("add after close was accepted");
+        } catch (RejectedExecutionException expected) {
+            // Refused rather than queued on a stopped shard
+        }
+    }
+
+    // Waits a while for a result; a deadlock fails the check instead of hanging it
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get(10, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("no result after 10 s (deadlock?)");
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e.toString(), e);
+        }
+    }
+
+    // A reloaded store must hold the same rows, and its indexes (built in
+    // bulk on load) must answer the same as the ones built row by row
+    private static void segmentRoundTrip() {
+        try {
+            Path dir = Files.createTempDirectory("pesaflow-check");
+            try {
+                segmentRoundTrip(dir.resolve("history"));
+            } finally {
+                deleteDirectory(dir);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void segmentRoundTrip(Path base) throws IOException {
+        ColumnarTransactionStore store = new ColumnarTransactionStore();
+        SyntheticSms messages = new SyntheticSms(11);
+        ParsedSms parsed = new ParsedSms();
+        Random random = new Random(11);
+        for (int part = 0; part < 2; part++) {
+            // The second part goes through the append path of save
+            while (store.size() < 10_000 * (part + 1)) {
+                if (MPesaParser.parseInto(messages.next(), parsed)) {
+                    store.append(parsed);
+                }
+                if (random.nextInt(200) == 0) {
+                    // Late SMS, unpackable IDs and unreadable dates
+                    long late = store.timestamp(store.size() - 1) - random.nextInt(30) * DAY;
+                    store.append(new Transaction("LATE-" + store.size(), "sent", 100 + random.nextInt(10_000),
+                            "LATE PARTY " + random.nextInt(3), "", 5_000, late));
+                    store.append(new Transaction("RBK" + (1_000_000 + store.size()), "received", 700,
+                            "JANE", "sometime", 5_700));
+                }
+            }
+            TransactionSegment.save(base, store);
+        }
+
+        ColumnarTransactionStore loaded = TransactionSegment.load(base);
+        expect(loaded.size() == store.size(), loaded.size() + " rows loaded of " + store.size());
+        for (int row = 0; row < store.size(); row++) {
+            Transaction want = store.get(row);
+            Transaction got = loaded.get(row);
+            expectEqual(got + " " + got.getTimestamp() + " " + got.getCategory(),
+                    want + " " + want.getTimestamp() + " " + want.getCategory());
+            expect(loaded.partyId(row) == store.partyId(row), "party ID of row " + row + " differs");
+        }
+
+        long first = loaded.timestamp(0);
+        for (int q = 0; q < 200; q++) {
+            long from = first + (long) (random.nextDouble() * 200 * DAY) - 30 * DAY;
+            long to = from + random.nextInt(60) * DAY;
+            expect(Arrays.equals(loaded.rowsBetween(from, to), store.rowsBetween(from, to)),
+                    "rows between " + from + " and " + to + " differ");
+        }
+        for (int type = 0; type < 3; type++) {
+            expect(Arrays.equals(new TransactionQuery(loaded).type(type).rowStream().toArray(),
+                    new TransactionQuery(store).type(type).rowStream().toArray()), "rows of type " + type + " differ");
+        }
+        for (int id = 0; id < store.getParties().size(); id++) {
+            String party = store.getParties().nameOf(id);
+            expect(Arrays.equals(new TransactionQuery(loaded).party(party).rowStream().toArray(),
+                    new TransactionQuery(store).party(party).rowStream().toArray()), "rows of " + party + " differ");
+        }
+
+        // Rows added to a loaded store go through the usual path and must fit in
+        loaded.append(new Transaction("RBK4H8N2M9", "sent", 100, "JOHN DOE", "", 0, first - DAY));
+        expect(loaded.rowsBetween(first - DAY, first - DAY + 1).length == 1, "row added after load not indexed");
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    // Every field a transaction has, so two lists can be compared as text
+    private static List<String> describeAll(TransactionManager manager) {
+        List<String> all = new ArrayList<>();
+        for (Transaction transaction : manager.getAllTransactions()) {
+            all.add(transaction + " " + transaction.getTimestamp() + " " + transaction.getCategory());
+        }
+        return all;
+    }
+
+    private static void expectEqual(Object actual, Object expected) {
+        expect(actual.equals(expected), "got " + actual + ", expected " + expected);
+    }
+
+    private static void expectStatus(IngestStatus actual, IngestStatus expected) {
+        expect(actual == expected, "expected " + expected + ", got " + actual);
+    }
+
+    // The treap, built in bulk or one row at a time, must find the same
+    // gaps as sorting the rows and walking them in order
+    private static void balanceReconciler() {
+        Random random = new Random(20);
+        ColumnarTransactionStore store = new ColumnarTransactionStore();
+        addRandomRows(store, random, 5000);
+
+        BalanceReconciler bulk = new BalanceReconciler(store);
+        bulk.addAll();
+        BalanceReconciler oneByOne = new BalanceReconciler(store);
+        for (int row = 0; row < store.size(); row++) {
+            oneByOne.add(row);
+        }
+        expectSameGaps(store, bulk, "bulk build");
+        expectSameGaps(store, oneByOne, "one insert per row");
+
+        // Rows added after a bulk build go through the tree as usual
+        int before = store.size();
+        addRandomRows(store, random, 1000);
+        for (int row = before; row < store.size(); row++) {
+            bulk.add(row);
+        }
+        expectSameGaps(store, bulk, "bulk build plus inserts");
+    }
+
+    // Splitting the rows over threads must not change a single total. A
+    // small threshold makes even a short history split into many pieces.
+    private static void parallelReports() {
+        TransactionManager manager = new TransactionManager();
+        SyntheticSms messages = new SyntheticSms(14);
+        while (manager.getTransactionCount() < 50_000) {
+            manager.addTransactionFromSMS(messages.next());
+        }
+        ColumnarTransactionStore store = manager.getStore();
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (int row = 0; row < store.size(); row++) {
+            if (store.timestamp(row) != SmsDates.UNKNOWN) {
+                first = Math.min(first, store.timestamp(row));
+                last = Math.max(last, store.timestamp(row));
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ParallelAnalytics parallel = new ParallelAnalytics(pool, 500);
+            TransactionAggregates whole = new TransactionAggregates(store.getParties().size());
+            whole.addAll(store);
+            expectSameTotals(parallel.aggregate(store), whole, store.getParties().size(), "whole store");
+
+            Random random = new Random(14);
+            for (int q = 0; q < 50; q++) {
+                long from = first + (long) (random.nextDouble() * (last - first));
+                long to = from + (long) (random.nextDouble() * (last - first));
+                manager.setParallelAnalytics(null);
+                TransactionAggregates sequential = manager.getReport(from, to);
+                manager.setParallelAnalytics(parallel);
+                expectSameTotals(manager.getReport(from, to), sequential, store.getParties().size(), "window " + q);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void expectSameTotals(TransactionAggregates actual, TransactionAggregates expected,
+                                         int parties, String what) {
+        expect(actual.getTotalIncome() == expected.getTotalIncome(), what + ": income differs");
+        expect(actual.getTotalExpenses() == expected.getTotalExpenses(), what + ": expenses differ");
+        for (int id = 0; id < parties; id++) {
+            expect(actual.partyCount(id) == expected.partyCount(id)
+                    && actual.partyExpenseCount(id) == expected.partyExpenseCount(id)
+                    && actual.partySpending(id) == expected.partySpending(id), what + ": party " + id + " differs");
+        }
+        for (int hour = 0; hour < 24; hour++) {
+            expect(actual.hourlySpending(hour) == expected.hourlySpending(hour)
+                    && actual.hourlyExpenseCount(hour) == expected.hourlyExpenseCount(hour),
+                    what + ": hour " + hour + " differs");
+        }
+    }
+
+    // A send's balance drops by its amount plus the charge; that is not a
+    // gap, but a drop larger than any charge (a missing SMS) is
+    private static void balanceFees() {
+        TransactionManager manager = new TransactionManager();
+        expectStatus(manager.addTransactionFromSMS("RBK4H8N2M1 Confirmed. You have received Ksh10,000.00 from"
+                + " JANE DOE on 15/1/26 at 9:00 AM. New M-PESA balance is Ksh10,000.00."), IngestStatus.ADDED);
+        expectStatus(manager.addTransactionFromSMS("RBK4H8N2M2 Confirmed. Ksh500.00 sent to JOHN DOE on 15/1/26"
+                + " at 10:00 AM. New M-PESA balance is Ksh9,493.00. Transaction cost, Ksh7.00."), IngestStatus.ADDED);
+        expectStatus(manager.addTransactionFromSMS("RBK4H8N2M3 Confirmed. on 15/1/26 at 11:00 AM Withdraw"
+                + " Ksh2,000.00 from 123456 - JOE AGENT. New M-PESA balance is Ksh7,464.00."
+                + " Transaction cost, Ksh29.00."), IngestStatus.ADDED);
+        expectStatus(manager.addTransactionFromSMS("RBK4H8N2M4 Confirmed. Ksh464.00 paid to NAIVAS. on 15/1/26"
+                + " at 12:00 PM. New M-PESA balance is Ksh7,000.00."), IngestStatus.ADDED);
+        expect(manager.getBalanceReconciler().getGapCount() == 0,
+                manager.getBalanceReconciler().getGapCount() + " gaps for sends that carried a charge");
+
+        // Exact balances: both charges show up as gaps
+        manager.setBalanceFeeSchedule((category, amountCents) -> 0);
+        expect(manager.getBalanceReconciler().getGapCount() == 2,
+                manager.getBalanceReconciler().getGapCount() + " gaps with no charges allowed");
+        manager.setBalanceFeeSchedule(MPesaTariff::maxFeeCents);
+
+        // Ksh1,000 more gone than a Ksh100 send can cost
+        expectStatus(manager.addTransactionFromSMS("RBK4H8N2M5 Confirmed. Ksh100.00 sent to JOHN DOE on 15/1/26"
+                + " at 1:00 PM. New M-PESA balance is Ksh5,900.00."), IngestStatus.ADDED);
+        // Buy Goods is free for the customer, so even Ksh7 missing is a gap
+        expectStatus(manager.addTransactionFromSMS("RBK4H8N2M6 Confirmed. Ksh100.00 paid to NAIVAS. on 15/1/26"
+                + " at 2:00 PM. New M-PESA balance is Ksh5,793.00."), IngestStatus.ADDED);
+        expect(manager.getBalanceReconciler().getGapCount() == 2,
+                manager.getBalanceReconciler().getGapCount() + " gaps, expected 2");
+    }
+
+    // Rows a few minutes to a day apart, some late, some with no date,
+    // with balances that mostly chain and now and then jump
+    private static void addRandomRows(ColumnarTransactionStore store, Random random, int count) {
+        long time = store.size() == 0 ? 1_767_200_000_000L : store.timestamp(store.size() - 1);
+        long balance = 1_000_000;
+        for (int i = 0; i < count; i++) {
+            time += random.nextInt(10) == 0 ? 0 : random.nextInt(60) * 60_000L;
+            long timestamp = random.nextInt(20) == 0 ? time - random.nextInt(3) * DAY : time;
+            if (random.nextInt(50) == 0) {
+                timestamp = SmsDates.UNKNOWN;
+            }
+            boolean sent = random.nextBoolean();
+            long amount = 100 + random.nextInt(100_000);
+            balance += sent ? -amount : amount;
+            if (random.nextInt(30) == 0) {
+                balance += random.nextInt(5000);
+            }
+            store.append(new Transaction("C" + store.size(), sent ? "sent" : "received", amount,
+                    "PARTY " + random.nextInt(10), "", balance, timestamp));
+        }
+    }
+
+    private static void expectSameGaps(ColumnarTransactionStore store, BalanceReconciler reconciler, String how) {
+        List<Integer> dated = new ArrayList<>();
+        int late = 0;
+        long latest = Long.MIN_VALUE;
+        for (int row = 0; row < store.size(); row++) {
+            long timestamp = store.timestamp(row);
+            if (timestamp == SmsDates.UNKNOWN) {
+                continue;
+            }
+            dated.add(row);
+            if (timestamp < latest) {
+                late++;
+            }
+            latest = Math.max(latest, timestamp);
+        }
+        dated.sort((a, b) -> store.timestamp(a) != store.timestamp(b)
+                ? Long.compare(store.timestamp(a), store.timestamp(b))
+                : Integer.compare(a, b));
+
+        List<Integer> gaps = new ArrayList<>();
+        for (int i = 1; i < dated.size(); i++) {
+            int previous = dated.get(i - 1);
+            int row = dated.get(i);
+            long expected = store.balanceCents(previous);
+            if (store.type(row) == ParsedSms.TYPE_SENT) {
+                expected -= store.amountCents(row);
+            } else if (store.type(row) == ParsedSms.TYPE_RECEIVED) {
+                expected += store.amountCents(row);
+            }
+            if (expected != store.balanceCents(row)) {
+                gaps.add(row);
+            }
+        }
+
+        int[] expectedGaps = gaps.stream().mapToInt(Integer::intValue).toArray();
+        expect(Arrays.equals(reconciler.getGapRows(), expectedGaps), how + ": gap rows differ");
+        expect(reconciler.getGapCount() == expectedGaps.length, how + ": gap count differs");
+        expect(reconciler.getOutOfOrderCount() == late, how + ": out-of-order count differs");
+        expect(reconciler.size() == dated.size(), how + ": size differs");
+    }
+}